@@ -0,0 +1,72 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * SXnet connection which only counts the bytes sent (and keeps the last
+ * message, to check the reply of a command)
+ *
+ * @author mblank
+ */
+class NullConnection implements SXnetClient.Connection {
+
+    long bytes = 0;
+    private byte[] last = null;
+
+    @Override
+    public void send(byte[] data) {
+        bytes += data.length;
+        last = data;
+    }
+
+    /**
+     * @return the last message sent (without the '\n')
+     */
+    String lastMessage() {
+        return (last == null) ? "" : new String(last, StandardCharsets.US_ASCII).trim();
+    }
+
+    @Override
+    public void binaryMode() {
+    }
+
+    @Override
+    public int getQueuedBytes() {
+        return 0;
+    }
+
+    @Override
+    public long getBlockedSince() {
+        return 0;
+    }
+
+    @Override
+    public void writeBlocked() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return "benchmark";
+    }
+}
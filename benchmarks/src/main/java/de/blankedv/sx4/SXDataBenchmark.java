@@ -0,0 +1,105 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import de.blankedv.sx4.timetable.SyntheticLayout;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * the SX data store: every update of a channel also updates the panel
+ * elements of this channel (see PanelElementBenchmark), i.e. the cost
+ * depends on the layout. The writes go to the simulated interface.
+ *
+ * @author mblank
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0")  // the timer thread of SX4 does not end
+public class SXDataBenchmark {
+
+    @Param({"10", "100", "400"})
+    int routes;
+
+    int channels;
+    int i = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        SyntheticLayout.load(routes);
+        channels = SyntheticLayout.channels(routes);
+        SX4.sxi = new SimulationInterface();
+    }
+
+    @TearDown
+    public void tearDown() {
+        SX4.sxi = null;
+        SX4.dataToSend.clear();
+    }
+
+    private int nextChannel() {
+        return SyntheticLayout.channel(i++ % channels);
+    }
+
+    /**
+     * every call changes the value of the channel
+     */
+    @Benchmark
+    public int update() {
+        int n = i;
+        return SXData.update(nextChannel(), ((n / channels) & 1) == 0 ? 0xFF : 0x00, false);
+    }
+
+    /**
+     * as update(), and the new value is scheduled for writing
+     */
+    @Benchmark
+    public int updateAndWrite() {
+        int n = i;
+        return SXData.update(nextChannel(), ((n / channels) & 1) == 0 ? 0xFF : 0x00, true);
+    }
+
+    /**
+     * the value is not changed (most of the polled channels)
+     */
+    @Benchmark
+    public int updateUnchanged() {
+        int ch = nextChannel();
+        return SXData.update(ch, SXData.get(ch), false);
+    }
+
+    @Benchmark
+    public int get() {
+        return SXData.get(nextChannel());
+    }
+}
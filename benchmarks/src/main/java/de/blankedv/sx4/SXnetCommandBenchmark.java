@@ -0,0 +1,112 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import de.blankedv.sx4.timetable.PanelElement;
+import de.blankedv.sx4.timetable.SyntheticLayout;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * parsing and execution of one SXnet command line incl. the reply:
+ * "tokenized" is the path of the network connections (bytes, SXnetTokenizer
+ * with fallback to the String parser), "stringParser" always uses
+ * handleCommand. "UNLOCK" is not tokenized.
+ *
+ * @author mblank
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0")  // the timer thread of SX4 does not end
+public class SXnetCommandBenchmark {
+
+    @Param({"10", "100", "400"})
+    int routes;
+
+    @Param({"SET 853 1", "READ 853", "SX 44 5", "R 44", "READPOWER", "DUMP", "UNLOCK"})
+    String command;
+
+    NullConnection conn;
+    SXnetClient client;
+    byte[] line;
+
+    @Setup
+    public void setup() throws IOException {
+        SyntheticLayout.load(routes);
+        SX4.sxi = new SimulationInterface();
+        conn = new NullConnection();
+        client = new SXnetClient(conn, () -> {
+        });
+        line = (command + "\n").getBytes(StandardCharsets.US_ASCII);
+        client.handleLine(command);  // an invalid command would only measure the error
+        if (conn.lastMessage().startsWith("ERROR")) {
+            throw new IllegalStateException(command + " => " + conn.lastMessage());
+        }
+        checkSetAndSetm();
+    }
+
+    // SET and SETM must set the same bits and state of a 4 aspect signal
+    private void checkSetAndSetm() {
+        int a = SyntheticLayout.signal4(routes, 0);
+        int b = SyntheticLayout.signal4(routes, 1);
+        int ch = SXUtils.lbAddr2SXChannel(a);
+        for (int st = 0; st < 4; st++) {
+            client.handleLine("SET " + a + " " + st);
+            client.handleLine("SETM " + b + " " + st);
+            int d = SXData.get(ch);
+            int sa = PanelElement.getByAddress(a).getState();
+            int sb = PanelElement.getByAddress(b).getState();
+            if (((d & 0x0F) != ((d >> 4) & 0x0F)) || (sa != st) || (sb != st)) {
+                throw new IllegalStateException("SET/SETM " + st + ": SX=" + Integer.toBinaryString(d)
+                        + " states " + sa + "/" + sb);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        SX4.sxi = null;
+        SX4.dataToSend.clear();
+    }
+
+    @Benchmark
+    public void tokenized() {
+        client.handleLine(line, 0, line.length);
+    }
+
+    @Benchmark
+    public void stringParser() {
+        client.handleLine(command);
+    }
+}
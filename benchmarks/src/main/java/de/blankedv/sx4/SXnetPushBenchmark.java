@@ -0,0 +1,105 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import de.blankedv.sx4.timetable.SyntheticLayout;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * "changes" SX channels are changed (incl. their panel elements), then the
+ * updates are collected and encoded for one SXnet client: without a
+ * subscription via the shared broadcast batches (SXnetBroadcast), with a
+ * subscription (of everything) by the diff of the client itself.
+ *
+ * @author mblank
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0")  // the timer thread of SX4 does not end
+public class SXnetPushBenchmark {
+
+    @Param({"10", "100", "400"})
+    int routes;
+
+    @Param({"1", "16"})
+    int changes;
+
+    @Param({"false", "true"})
+    boolean subscribed;
+
+    int channels;
+    int i = 0;
+    NullConnection conn;
+    SXnetClient client;
+
+    @Setup
+    public void setup() throws IOException {
+        SyntheticLayout.load(routes);
+        channels = SyntheticLayout.channels(routes);
+        SX4.sxi = new SimulationInterface();  // for the connection state
+        conn = new NullConnection();
+        client = new SXnetClient(conn, () -> {
+        });
+        client.start();
+        if (subscribed) {
+            command("SUB X 0-1:106", "OK");  // all channels of both busses
+            command("SUB L 10-9999", "OK");
+        } else {
+            command("READPOWER", "XPOWER 1");  // first command, starts the updates
+        }
+        client.pushUpdates();  // complete state
+    }
+
+    private void command(String cmd, String reply) {
+        client.handleLine(cmd);
+        if (!conn.lastMessage().equals(reply)) {
+            throw new IllegalStateException(cmd + " => " + conn.lastMessage());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.stop();
+        SX4.sxi = null;
+    }
+
+    @Benchmark
+    public long push() {
+        for (int k = 0; k < changes; k++) {
+            int n = i++;
+            SXData.update(SyntheticLayout.channel(n % channels), ((n / channels) & 1) == 0 ? 0xFF : 0x00, false);
+        }
+        return client.pushUpdates();
+    }
+}
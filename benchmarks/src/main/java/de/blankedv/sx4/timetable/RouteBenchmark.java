@@ -0,0 +1,89 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4.timetable;
+
+import de.blankedv.sx4.SXData;
+import static de.blankedv.sx4.timetable.Vars.allRoutes;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * setting and checking of a route in the middle of the layout, all other
+ * routes are inactive
+ *
+ * @author mblank
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0")  // the timer thread of SX4 does not end
+public class RouteBenchmark {
+
+    @Param({"10", "100", "400"})
+    int routes;
+
+    Route route;
+
+    @Setup
+    public void setup() throws IOException {
+        SyntheticLayout.load(routes);
+        route = Route.getFromAddress(SyntheticLayout.ROUTE_BASE + routes / 2);
+    }
+
+    /**
+     * manual setting (incl. the SX writes and lanbahn updates), then clear
+     */
+    @Benchmark
+    public boolean setAndClear() {
+        boolean res = route.set();
+        route.clear();
+        return res;
+    }
+
+    @Benchmark
+    public boolean isFreeExceptStart() {
+        return route.isFreeExceptStart(SXData.snapshot());
+    }
+
+    @Benchmark
+    public boolean offendingRouteActive() {
+        return route.offendingRouteActive();
+    }
+
+    /**
+     * done once after reading the config, compares all turnouts of all routes
+     */
+    @Benchmark
+    public int calcOffendingRoutes() {
+        Route.calcOffendingRoutes();
+        return allRoutes.size();
+    }
+}
@@ -0,0 +1,165 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4.timetable;
+
+import com.esotericsoftware.minlog.Log;
+import de.blankedv.sx4.SXUtils;
+import static de.blankedv.sx4.timetable.Vars.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * generated panel config (like the panel*.xml of SX4Draw) with "routes"
+ * routes in a row: route i sets turnout i to 0, turnout i+1 to 1 and signal i
+ * to green and has the sensors S(i), M(i), S(i+1). Neighbouring routes are
+ * offending (turnout i+1), the routes i and i+2 are a compound route (for
+ * every 4th i).
+ *
+ * all turnouts, signals and sensors are mapped to SX bits (SX0, then SX1),
+ * the sensors have a pure lanbahn address as second address (in route).
+ * Two 4 aspect signals (2 bits each) use the first channel after the layout.
+ *
+ * @author mblank
+ */
+public final class SyntheticLayout {
+
+    public static final int MAX_ROUTES = 400;  // 4 * routes + 2 SX bits
+
+    private static final int CHANNELS_PER_BUS = 105;
+    private static final int SENSOR2_BASE = 1200;  // secondary sensor addresses
+    public static final int ROUTE_BASE = 3000;
+    public static final int COMPROUTE_BASE = 6000;
+
+    private SyntheticLayout() {
+    }
+
+    /**
+     * @return lanbahn address of the k-th SX bit of the layout
+     */
+    public static int sxBit(int k) {
+        int c = k / 8;
+        int ch = SXUtils.sxChannel(c / CHANNELS_PER_BUS, c % CHANNELS_PER_BUS);
+        return SXUtils.sxChannel2LbAddr(ch, (k % 8) + 1);
+    }
+
+    /**
+     * @return number of SX channels used by the layout
+     */
+    public static int channels(int routes) {
+        return (4 * routes + 2 + 7) / 8;
+    }
+
+    /**
+     * @return SX channel index of the i-th used channel
+     */
+    public static int channel(int i) {
+        return SXUtils.sxChannel(i / CHANNELS_PER_BUS, i % CHANNELS_PER_BUS);
+    }
+
+    /**
+     * @return lanbahn address of the i-th (0 or 1) 4 aspect signal, its
+     * second address is adr + 1
+     */
+    public static int signal4(int routes, int i) {
+        return SXUtils.sxChannel2LbAddr(channel(channels(routes)), 1 + 4 * i);
+    }
+
+    private static int turnout(int i) {
+        return sxBit(i);
+    }
+
+    private static int signal(int routes, int i) {
+        return sxBit(routes + 1 + i);
+    }
+
+    // sensor j, S(i) = 2 * i, M(i) = 2 * i + 1
+    private static int sensor(int routes, int j) {
+        return sxBit(2 * routes + 1 + j);
+    }
+
+    /**
+     * write the config of a layout with "routes" routes to a temp file
+     */
+    public static File write(int routes) throws IOException {
+        if ((routes < 2) || (routes > MAX_ROUTES)) {
+            throw new IllegalArgumentException("routes must be 2.." + MAX_ROUTES);
+        }
+        File f = File.createTempFile("panel_synthetic" + routes + "_", ".xml");
+        f.deleteOnExit();
+        try (PrintWriter w = new PrintWriter(f, "UTF-8")) {
+            w.println("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>"
+                    + "<layout-config filename=\"" + f.getName() + "\" version=\"synthetic\">");
+            w.println("<panels><panel name=\"synthetic" + routes + "\">");
+            w.println("<locos><loco adr=\"97\" mass=\"2\" name=\"SchoenBB\" vmax=\"120\"/></locos>");
+            w.println("<turnouts>");
+            for (int i = 0; i <= routes; i++) {
+                w.println("<turnout adr=\"" + turnout(i) + "\"/>");
+            }
+            w.println("</turnouts><signals>");
+            for (int i = 0; i < routes; i++) {
+                w.println("<signal adr=\"" + signal(routes, i) + "\"/>");
+            }
+            for (int i = 0; i < 2; i++) {
+                w.println("<signal adr=\"" + signal4(routes, i) + "," + (signal4(routes, i) + 1) + "\"/>");
+            }
+            w.println("</signals><sensors>");
+            for (int j = 0; j <= 2 * routes; j++) {
+                w.println("<sensor adr=\"" + sensor(routes, j) + "," + (SENSOR2_BASE + j) + "\"/>");
+            }
+            w.println("</sensors><routes>");
+            for (int i = 0; i < routes; i++) {
+                w.println("<route adr=\"" + (ROUTE_BASE + i) + "\" route=\""
+                        + turnout(i) + ",0;" + turnout(i + 1) + ",1;" + signal(routes, i) + ",1\""
+                        + " sensors=\"" + sensor(routes, 2 * i) + "," + sensor(routes, 2 * i + 1) + ","
+                        + sensor(routes, 2 * i + 2) + "\"/>");
+            }
+            w.println("</routes><comproutes>");
+            for (int i = 0; i + 2 < routes; i += 4) {
+                w.println("<comproute adr=\"" + (COMPROUTE_BASE + i) + "\" routes=\""
+                        + (ROUTE_BASE + i) + "," + (ROUTE_BASE + i + 2) + "\"/>");
+            }
+            w.println("</comproutes>");
+            w.println("</panel></panels></layout-config>");
+        }
+        return f;
+    }
+
+    /**
+     * read the config file like SX4 at startup
+     */
+    public static void load(File f) {
+        // SX4 logs with LEVEL_INFO, f.e. every SET command - the console
+        // output would be measured instead of the code
+        Log.set(Log.LEVEL_WARN);
+        // readXML clears only the panel elements and locos
+        allRoutes.clear();
+        allCompRoutes.clear();
+        String res = ReadConfig.readXML(f.getPath());
+        if (!res.equals("OK")) {
+            throw new IllegalStateException("cannot read " + f + ": " + res);
+        }
+    }
+
+    /**
+     * generate and read a layout with "routes" routes
+     */
+    public static void load(int routes) throws IOException {
+        load(write(routes));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import static com.esotericsoftware.minlog.Log.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * central change notification: SXData, LanbahnData and the train numbers of
+ * the PanelElements report every change of their data here, SXnet clients,
+ * routes, compound routes and the GUI subscribe to it (instead of polling for
+ * changes)
+ *
+ * SX changes are fired only after the PanelElements of the channel have been
+ * updated, i.e. a listener always sees the new element states.
+ *
+ * the listeners are called on the thread which changed the data (serial
+ * interface, sxnet client, routing) - they must return quickly and must not
+ * block, usually they only wake up their own worker thread.
+ *
+ * @author mblank
+ */
+public class ChangeBus {
+
+    public interface Listener {
+
+        default void sxChanged(int addr, int data) {
+        }
+
+        default void lanbahnChanged(int addr, int data) {
+        }
+
+        default void trainChanged(int addr, int train) {
+        }
+
+        default void powerChanged(boolean on) {
+        }
+    }
+
+    private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public static void subscribe(Listener l) {
+        listeners.addIfAbsent(l);
+    }
+
+    public static void unsubscribe(Listener l) {
+        listeners.remove(l);
+    }
+
+    public static void fireSXChanged(int addr, int data) {
+        for (Listener l : listeners) {
+            try {
+                l.sxChanged(addr, data);
+            } catch (RuntimeException e) {
+                error("ChangeBus listener error: " + e);
+            }
+        }
+    }
+
+    public static void fireLanbahnChanged(int addr, int data) {
+        for (Listener l : listeners) {
+            try {
+                l.lanbahnChanged(addr, data);
+            } catch (RuntimeException e) {
+                error("ChangeBus listener error: " + e);
+            }
+        }
+    }
+
+    public static void fireTrainChanged(int addr, int train) {
+        for (Listener l : listeners) {
+            try {
+                l.trainChanged(addr, train);
+            } catch (RuntimeException e) {
+                error("ChangeBus listener error: " + e);
+            }
+        }
+    }
+
+    public static void firePowerChanged(boolean on) {
+        for (Listener l : listeners) {
+            try {
+                l.powerChanged(on);
+            } catch (RuntimeException e) {
+                error("ChangeBus listener error: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * lock-free ring of the most recently changed addresses, indexed by a
+ * monotonically increasing sequence number (the "epoch" of the data store)
+ *
+ * can be written from several threads, every sequence number must only be
+ * put once. Readers never block writers, if a reader is too slow and the ring
+ * has been overwritten, OVERRUN is returned and the reader has to check all
+ * addresses
+ *
+ * @author mblank
+ */
+public class ChangeRing {
+
+    public static final long OVERRUN = -1L;
+    private static final long BUSY = -1L;  // slot is just being written
+
+    private final int mask;
+    private final AtomicLongArray seqs;
+    private final AtomicIntegerArray addrs;
+
+    /**
+     * @param size number of entries, must be a power of 2
+     */
+    public ChangeRing(int size) {
+        if ((size <= 0) || ((size & (size - 1)) != 0)) {
+            throw new IllegalArgumentException("size must be a power of 2");
+        }
+        mask = size - 1;
+        seqs = new AtomicLongArray(size);
+        addrs = new AtomicIntegerArray(size);
+    }
+
+    public int size() {
+        return mask + 1;
+    }
+
+    /**
+     * store the address which was changed with sequence number seq
+     */
+    public void put(long seq, int addr) {
+        int i = (int) (seq & mask);
+        seqs.set(i, BUSY);
+        addrs.set(i, addr);
+        seqs.set(i, seq);  // publish
+    }
+
+    /**
+     * sets the bit of every address changed after sequence number "since" (up
+     * to "head") in the bitset "changed"
+     *
+     * @param since last sequence number already known to the caller
+     * @param head current sequence number of the data store
+     * @param changed bitset, must be large enough for all addresses
+     * @return the sequence number up to which all changes have been
+     * collected, or OVERRUN if the ring does not reach back to "since"
+     */
+    public long collect(long since, long head, long[] changed) {
+        if ((head - since) > size()) {
+            return OVERRUN;
+        }
+        for (long s = since + 1; s <= head; s++) {
+            int i = (int) (s & mask);
+            long slotSeq = seqs.get(i);
+            if (slotSeq < s) {
+                // writer has not yet published this entry (or is writing
+                // it right now), the data are already stored => pick it up next time
+                return s - 1;
+            }
+            int addr = addrs.get(i);
+            if ((slotSeq > s) || (seqs.get(i) != s)) {
+                return OVERRUN;  // overwritten while reading
+            }
+            changed[addr >> 6] |= (1L << (addr & 63));
+        }
+        return head;
+    }
+}
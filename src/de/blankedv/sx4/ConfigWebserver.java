@@ -17,42 +17,53 @@ along with this program. If not, see <http://www.gnu.org/licenses/>.
  */
 package de.blankedv.sx4;
 
-/**
- *
- * @author mblank
- */
 import static com.esotericsoftware.minlog.Log.*;
-import com.sun.net.httpserver.Headers;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.net.InetSocketAddress;
-
-import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpHandler;
-import com.sun.net.httpserver.HttpServer;
-import de.blankedv.sx4.timetable.FileWatcher;
 import de.blankedv.sx4.timetable.ReadConfig;
 
 import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.net.URI;
-
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * very simple http server to be able for update the layout config file in
  * client applications like lanbahnPanel (Android) from the SX4 program
  *
+ * browser panels can open a WebSocket at ws://&lt;sx4&gt;:8000/sxnet and
+ * use the SXnet protocol over it, see SXnetWebSocketConnection. Dashboards
+ * can read the changes as Server-Sent Events at :8000/events, see
+ * SXnetEventStream. The counters and latencies of SX4 are at :8000/metrics
+ * (Prometheus text format), see Metrics.
+ *
+ * (the com.sun.net.httpserver.HttpServer used before cannot hand over a
+ * connection after "101 Switching Protocols", therefore the few requests
+ * are handled here directly, one thread per connection)
+ *
  * @author mblank
  */
 public class ConfigWebserver {
 
+    private static final int MAX_HEADER = 8192;
+    // an idle (or half-open) connection would keep its thread forever, the
+    // timeout is used until the request has been read
+    private static final int REQUEST_TIMEOUT_MSECS = 10000;
+
     String fileName = "";
-    HttpServer server;
+    private ServerSocketChannel server;
     private final int PORT = 8000;  // fixed port used by android software
-   
+    private volatile boolean stopped = false;
+    private final CopyOnWriteArrayList<SXnetClient> sessions = new CopyOnWriteArrayList<>();
 
     public ConfigWebserver(String fname) throws Exception {
 
@@ -69,63 +80,193 @@ public class ConfigWebserver {
             error("wrong 'filename' attribute=" + pName + " in layout-config file=" + fileName);
         }
 
-        server = HttpServer.create(new InetSocketAddress(PORT), 0);
-        server.createContext("/", new MyHandler());
-        server.setExecutor(null); // creates a default executor
-        server.start();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(PORT));
+        Thread t = new Thread(this::acceptLoop, "config-server");
+        t.setDaemon(true);
+        t.start();
     }
 
     public void stop() {
-        
-        server.stop(0);
-
+        stopped = true;
+        for (SXnetClient c : sessions) {
+            c.close();
+        }
+        try {
+            server.close();  // ends the accept loop
+        } catch (IOException ex) {
+            error(ex.getMessage());
+        }
     }
 
-    class MyHandler implements HttpHandler {
-
-        @Override
-        public void handle(HttpExchange t) {
-            String response;
-            URI requestURI = t.getRequestURI();
-            Headers h = t.getResponseHeaders();
-            debug("config server URI=" + requestURI.getPath());
-            OutputStream os;
-            try {
-                if (requestURI.getPath().contains("config")) {
-                    response = new String(Files.readAllBytes(Paths.get(fileName)));
-                    h.add("Content-Type", "text/xml ; charset=utf-8");
-                    t.sendResponseHeaders(200, response.length());
-                    os = t.getResponseBody();
-                    os.write(response.getBytes());
-                    os.close();
-                } else if (requestURI.getPath().contains("apk")) {
-                    h.add("Content-Type", "application/vnd.android.package-archive");
-                    File file = new File("lanbahnpanel.apk");
-                    byte[] bytearray = new byte[(int) file.length()];
-                    FileInputStream fis = new FileInputStream(file);
-                    BufferedInputStream bis = new BufferedInputStream(fis);
-                    bis.read(bytearray, 0, bytearray.length);
-
-                    // ok, we are ready to send the response.
-                    t.sendResponseHeaders(200, file.length());
-                    os = t.getResponseBody();
-                    os.write(bytearray, 0, bytearray.length);
-                    os.close();
+    private void acceptLoop() {
+        try {
+            while (!stopped) {
+                SocketChannel ch = server.accept();
+                SXnetServer.startThread(() -> handle(ch), "config-server-conn");
+            }
+        } catch (IOException ex) {
+            if (!stopped) {
+                error("config server error: " + ex.getMessage());
+            }
+        }
+    }
 
+    // one request, a WebSocket or event stream request becomes an SXnet session
+    private void handle(SocketChannel ch) {
+        boolean upgraded = false;
+        try {
+            ch.socket().setSoTimeout(REQUEST_TIMEOUT_MSECS);
+            InputStream in = new BufferedInputStream(ch.socket().getInputStream());
+            HashMap<String, String> headers = new HashMap<>();
+            String path = readRequest(in, headers);
+            if (path == null) {
+                return;
+            }
+            debug("config server URI=" + path);
+            OutputStream os = ch.socket().getOutputStream();
+            if (path.startsWith("/sxnet")
+                    && "websocket".equalsIgnoreCase(headers.get("upgrade"))
+                    && headers.containsKey("sec-websocket-key")) {
+                String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                        + "Upgrade: websocket\r\n"
+                        + "Connection: Upgrade\r\n"
+                        + "Sec-WebSocket-Accept: "
+                        + SXnetWebSocketConnection.acceptKey(headers.get("sec-websocket-key")) + "\r\n\r\n";
+                os.write(response.getBytes(StandardCharsets.US_ASCII));
+                os.flush();
+                upgraded = true;
+                ch.socket().setSoTimeout(0);  // an SXnet session may be idle
+                new SXnetWebSocketConnection(ch, in).run(sessions);
+            } else if (path.startsWith("/events")) {
+                String setup = eventStreamSetup(path, headers.get("last-event-id"));
+                if (setup == null) {
+                    sendResponse(os, "400 Bad Request", "text/html ; charset=utf-8",
+                            "ERROR: use :8000/events?sub=X+44-50&sub=L+1200".getBytes(StandardCharsets.UTF_8));
                 } else {
-                    response = "ERROR:  use URL :8000/config or :8000/lanbahnpanel.apk";
-                    h.add("Content-Type", "text/html ; charset=utf-8");
-                    t.sendResponseHeaders(200, response.length());
-                    os = t.getResponseBody();
-                    os.write(response.getBytes());
-                    os.close();
+                    upgraded = true;
+                    ch.socket().setSoTimeout(0);  // nothing is read from the client
+                    new SXnetEventStream(ch, in).run(setup, sessions);
+                }
+            } else if (path.startsWith("/metrics")) {
+                sendResponse(os, "200 OK", "text/plain; version=0.0.4; charset=utf-8",
+                        Metrics.toText().getBytes(StandardCharsets.UTF_8));
+            } else if (path.contains("config")) {
+                byte[] response = Files.readAllBytes(Paths.get(fileName));
+                sendResponse(os, "200 OK", "text/xml ; charset=utf-8", response);
+            } else if (path.contains("apk")) {
+                byte[] response = Files.readAllBytes(Paths.get("lanbahnpanel.apk"));
+                sendResponse(os, "200 OK", "application/vnd.android.package-archive", response);
+            } else {
+                String response = "ERROR:  use URL :8000/config or :8000/lanbahnpanel.apk or :8000/metrics or ws://...:8000/sxnet";
+                sendResponse(os, "200 OK", "text/html ; charset=utf-8", response.getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (SocketTimeoutException ex) {
+            if (DEBUG) {
+                debug("config server: no request from " + ch.socket().getRemoteSocketAddress());
+            }
+        } catch (IOException ex) {
+            error(ex.getMessage());
+        } finally {
+            if (!upgraded) {
+                try {
+                    ch.close();
+                } catch (IOException ex) {
+                    // ignore
                 }
+            }
+        }
+    }
 
-            } catch (IOException ex) {
-                error(ex.getMessage());
+    /**
+     * reads the request line and the headers (names in lower case)
+     *
+     * @return the path of the request or null if it is invalid
+     */
+    private String readRequest(InputStream in, HashMap<String, String> headers) throws IOException {
+        byte[] line = new byte[MAX_HEADER];
+        String requestLine = null;
+        int total = 0;
+        while (total < MAX_HEADER) {
+            int n = 0;
+            int b;
+            while (((b = in.read()) != '\n') && (n < line.length)) {
+                if (b < 0) {
+                    return null;
+                } else if (b != '\r') {
+                    line[n++] = (byte) b;
+                }
+            }
+            total += n + 2;
+            String s = new String(line, 0, n, StandardCharsets.ISO_8859_1);
+            if (requestLine == null) {
+                requestLine = s;
+            } else if (s.isEmpty()) {
+                String[] par = requestLine.split(" ");
+                return (par.length >= 2) ? par[1] : null;
+            } else {
+                int colon = s.indexOf(':');
+                if (colon > 0) {
+                    headers.put(s.substring(0, colon).trim().toLowerCase(), s.substring(colon + 1).trim());
+                }
             }
+        }
+        error("config server: request header too long");
+        return null;
+    }
 
+    /**
+     * SXnet commands for the filter ("sub" parameters, e.g.
+     * /events?sub=X+44-50&amp;sub=L+1200-1299, see SUB) and the resume
+     * ("Last-Event-ID" header or "lastEventId" parameter)
+     *
+     * @return the commands or null if a parameter is invalid
+     */
+    private String eventStreamSetup(String path, String lastEventId) {
+        StringBuilder setup = new StringBuilder();
+        int q = path.indexOf('?');
+        if (q >= 0) {
+            try {
+                for (String p : path.substring(q + 1).split("&")) {
+                    int eq = p.indexOf('=');
+                    if (eq < 0) {
+                        continue;
+                    }
+                    String name = p.substring(0, eq);
+                    String value = URLDecoder.decode(p.substring(eq + 1), "UTF-8").trim();
+                    if (name.equals("sub")) {
+                        // only a filter, no other commands
+                        if (!value.matches("[XxLl*]( [0-9A-Fa-fx:\\-]+)*")) {
+                            return null;
+                        }
+                        setup.append("SUB ").append(value).append(';');
+                    } else if (name.equals("lastEventId") && (lastEventId == null)) {
+                        lastEventId = value;
+                    }
+                }
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                return null;
+            }
         }
+        long seq = 0;  // complete state
+        if ((lastEventId != null) && !lastEventId.isEmpty()) {
+            try {
+                seq = Long.parseLong(lastEventId.trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return setup.append("RESUME ").append(seq).toString();
+    }
+
+    private void sendResponse(OutputStream os, String status, String contentType, byte[] body) throws IOException {
+        String header = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        os.write(header.getBytes(StandardCharsets.US_ASCII));
+        os.write(body);
+        os.flush();
     }
 
 }
@@ -56,6 +56,16 @@ public class Constants {
      * programming
      */
     public static final int SXMAX_USED = 106;
+    /**
+     * {@value #SXBUSSES} = number of SX busses (SX0 and SX1, the FCC
+     * delivers the data of both busses with every poll)
+     */
+    public static final int SXBUSSES = 2;
+    /**
+     * {@value #SXCHANNELS} = number of channels in SXData, the channel index
+     * is bus * (SXMAX + 1) + sx address, i.e. 0..111 = SX0, 112..223 = SX1
+     */
+    public static final int SXCHANNELS = SXBUSSES * (SXMAX + 1);
 
     /**
      * {@value #LBMIN} =minimum lanbahn channel number
@@ -66,6 +76,15 @@ public class Constants {
      * {@value #LBMAX} =maximum lanbahn channel number
      */
     public static final int LBMAX = 9999;
+    /**
+     * {@value #LBSX1} = offset of the lanbahn addresses of the SX1 bits,
+     * SX1 address 44 bit 3 => lanbahn address 10443
+     */
+    public static final int LBSX1 = 10000;
+    /**
+     * {@value #LBMAX_SX1} = highest lanbahn address (SX1 address 111, bit 8)
+     */
+    public static final int LBMAX_SX1 = LBSX1 + SXMAX * 10 + 8;
     /**
      * {@value #LBDATAMIN} =minimum lanbahn data value
      */
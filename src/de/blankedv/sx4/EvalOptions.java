@@ -91,6 +91,27 @@ public class EvalOptions {
                 .longOpt("gui")
                 .build();
 
+        Option option_n = Option.builder("n")
+                .required(false)
+                .desc("sxnet: one thread per client (virtual threads, needs Java 21)")
+                .hasArg(false)
+                .longOpt("vthreads")
+                .build();
+
+        Option option_q = Option.builder("q")
+                .required(false)
+                .desc("sxnet: max. output queue per client in kbytes, default=64")
+                .hasArg(true)
+                .longOpt("queue")
+                .build();
+
+        Option option_p = Option.builder("p")
+                .required(false)
+                .desc("sxnet: policy for too slow clients (RESYNC, DISCONNECT), default=RESYNC")
+                .hasArg(true)
+                .longOpt("policy")
+                .build();
+
         Options options = new Options();
         CommandLineParser parser = new DefaultParser();
 
@@ -102,6 +123,9 @@ public class EvalOptions {
         options.addOption(option_v);
         options.addOption(option_r);
         options.addOption(option_g);
+        options.addOption(option_n);
+        options.addOption(option_q);
+        options.addOption(option_p);
 
         HelpFormatter formatter = new HelpFormatter();
 
@@ -128,6 +152,34 @@ public class EvalOptions {
                 }
             }
 
+            if (commandLine.hasOption("n")) {
+                info("sxnet: one thread per client session");
+                sessionThreads = true;
+            }
+
+            if (commandLine.hasOption("q")) {
+                try {
+                    sxnetQueueLimit = Integer.parseInt(commandLine.getOptionValue("q")) * 1024;
+                } catch (NumberFormatException e) {
+                    error("invalid queue size=" + commandLine.getOptionValue("q"));
+                }
+                info("sxnet: max. output queue " + sxnetQueueLimit / 1024 + " kbytes");
+            }
+
+            if (commandLine.hasOption("p")) {
+                switch (commandLine.getOptionValue("p").toUpperCase()) {
+                    case "DISCONNECT":
+                        disconnectSlowClients = true;
+                        break;
+                    case "RESYNC":
+                        disconnectSlowClients = false;
+                        break;
+                    default:
+                        error("invalid policy=" + commandLine.getOptionValue("p") + ", using RESYNC");
+                }
+                info("sxnet: slow clients will be " + (disconnectSlowClients ? "disconnected" : "resynced"));
+            }
+
             simulation = false;
 
             if (commandLine.hasOption("t")) {
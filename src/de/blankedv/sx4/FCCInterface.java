@@ -36,6 +36,8 @@ import static com.esotericsoftware.minlog.Log.*;
  */
 public class FCCInterface extends GenericSXInterface {
 
+    private static final int SX1_START = 112;  // SX1 data start after this byte of the poll block
+
     private String portName;
 
     CommPortIdentifier serialPortId;
@@ -51,6 +53,13 @@ public class FCCInterface extends GenericSXInterface {
     private static int fccErrorCount = 0;
 
     private boolean lastPowerState = false;
+
+    /**
+     * @return number of consecutive errors, for the metrics
+     */
+    static int getErrorCount() {
+        return fccErrorCount;
+    }
     private long startTime = System.currentTimeMillis();
 
     FCCInterface(String port) {
@@ -157,21 +166,35 @@ public class FCCInterface extends GenericSXInterface {
                 sendSetPower(SXData.isPowerToBe());
             }
 
-            while (!dataToSend.isEmpty()) {
-                IntegerPair sxd = dataToSend.poll();
-                if (sxd != null) {
-                    sendWrite(sxd);
+            // one pass over all pending channels, last value wins
+            int addr;
+            while ((addr = dataToSend.pollWrite()) != INVALID_INT) {
+                long t0 = System.nanoTime();
+                Flight.SerialEvent ev = Flight.serialBegin();
+                int data = dataToSend.getValue(addr);
+                Trace.writing(addr);
+                boolean ok = sendWrite(addr, data);
+                if (ok) {
+                    Metrics.SERIAL_WRITE_TIME.since(t0);
+                    Trace.written(addr, data);
+                } else {
+                    Metrics.SERIAL_ERRORS.inc();
                 }
+                Metrics.SERIAL_WRITES.inc();
+                Flight.serialEnd(ev, "FCC", "write", addr, 3, ok ? 1 : 0, !ok);
             }
+            Flight.SerialEvent poll = Flight.serialBegin();
             try {
                 // request block of SX0 / SX1 bus data
                 Byte[] b = {0x78, 0x03};
                 outputStream.write(b[0]);
                 outputStream.write(b[1]);
                 outputStream.flush();
+                Metrics.SERIAL_READS.inc();
             } catch (IOException ex) {
                 error("ERROR: Serial-IO where trying to write");
                 fccErrorCount++;
+                Metrics.SERIAL_ERRORS.inc();
             }
             shortSleep();  // must wait 40 milliseconds to have all 226 channels received
             try {
@@ -181,21 +204,32 @@ public class FCCInterface extends GenericSXInterface {
                 byte[] buf = new byte[226];  // in case w
                 int nread = inputStream.read(buf, 0, 226);
 
+                Flight.serialEnd(poll, "FCC", "read", INVALID_INT, 2, nread, nread != 226);
                 if (nread != 226) {
                     error("ERROR wrong number of bytes read=" + nread);
                     fccErrorCount++;
+                    Metrics.SERIAL_ERRORS.inc();
                     return "ERROR";
                 } else {
                     fccErrorCount = 0;
                     //error("226 bytes gelesen");
                 }
 
+                // bytes 0..111 = SX0 channels, 112 = SX0 power,
+                // 113..224 = SX1 channels, 225 = SX1 status (not used)
                 for (int count = 0; count < 226; count++) {
 
                     if (count < SXMAX_USED) {
+                        Trace.polled(count, buf[count] & 0xff);
                         if ((buf[count] & 0xff) != SXData.get(count)) {
                             SXData.update(count, (buf[count] & 0xff), false);
                         }
+                    } else if ((count > SX1_START) && ((count - SX1_START - 1) < SXMAX_USED)) {
+                        int ch = SXUtils.sxChannel(1, count - SX1_START - 1);
+                        Trace.polled(ch, buf[count] & 0xff);
+                        if ((buf[count] & 0xff) != SXData.get(ch)) {
+                            SXData.update(ch, (buf[count] & 0xff), false);
+                        }
                     } else if (count == 112) {
                         //error("power="+buf[count]);
                         if (buf[count] == 0) {
@@ -207,7 +241,7 @@ public class FCCInterface extends GenericSXInterface {
                             lastPowerState = true;
                             //info("FCC power is on");
                         }
-                    } // ignore SX1 data
+                    }
 
                 }
                 connectionOK = true;
@@ -215,6 +249,8 @@ public class FCCInterface extends GenericSXInterface {
             } catch (IOException ex) {
                 error("ERROR: Serial-IO where trying to read");
                 fccErrorCount++;
+                Metrics.SERIAL_ERRORS.inc();
+                Flight.serialEnd(poll, "FCC", "read", INVALID_INT, 2, 0, true);
             }
         }
 
@@ -277,6 +313,8 @@ public class FCCInterface extends GenericSXInterface {
     //Gleisspannung aus (SX1/2-Bus 0):
     //Vom PC: 0x00 0xFF Gleich 0x00 Zum PC: 0x00
     private void sendSetPower(boolean on) {
+        Flight.SerialEvent ev = Flight.serialBegin();
+        boolean ok = true;
         Byte[] b = {(byte) 0x00, (byte) 0xFF, (byte) 0x00};
         if (on) {
             debug("FCC: switchPowerOn");
@@ -293,16 +331,20 @@ public class FCCInterface extends GenericSXInterface {
             outputStream.flush();
         } catch (IOException e) {
             error("Error: Serial Fehler beim Senden");
+            ok = false;
         }
         veryShortSleep();
         try {
             int result = inputStream.read();
             if (result != 0) {
                 error("Error: Serial Fehler beim Empfangen");
+                ok = false;
             }
         } catch (IOException ex) {
             error("Error: Serial Fehler beim Empfangen");
+            ok = false;
         }
+        Flight.serialEnd(ev, "FCC", "power", INVALID_INT, 3, 1, !ok);
     }
 
     @Override
@@ -315,16 +357,15 @@ public class FCCInterface extends GenericSXInterface {
      * für alle Schreibbefehle an die FCC muss zusätzlich zur Kanalnummer das
      * höchste Bit auf 1 gesetzt werden
      */
-    private boolean sendWrite(IntegerPair sxd) {
-        int addr = sxd.addr;
-        int data = sxd.data;
-
-        if (addr > SXMAX_USED) {
-            error("ERROR: SX addr invalid addr=" + addr);
+    private boolean sendWrite(int ch, int data) {
+        int bus = SXUtils.sxBus(ch);
+        int addr = SXUtils.sxAddr(ch);
+        if ((bus >= SXBUSSES) || (addr > SXMAX_USED)) {
+            error("ERROR: SX addr invalid addr=" + SXUtils.sxChannelToString(ch));
             return false;
         }
         try {
-            outputStream.write((byte) 0);  // BUS SX0
+            outputStream.write((byte) bus);  // BUS SX0 or SX1
             outputStream.write((byte) (addr + 0x80)); // set highest bit for writing
             outputStream.write((byte) data);
             outputStream.flush();
@@ -0,0 +1,282 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of SX4: serial I/O with the SX interface,
+ * routes, trips and the SXnet broadcast. Recorded with f.e.
+ *
+ * java -XX:StartFlightRecording=filename=sx4.jfr -jar SX4.jar ...
+ * jfr print --categories SX4 sx4.jfr
+ *
+ * the events are only created while a recording with these events is
+ * running, otherwise begin() returns null and end() does nothing. The event
+ * classes are only loaded if the JVM has JFR (jdk.jfr, Java 11 or 8u272+),
+ * i.e. SX4 still runs on older JVMs - the call sites use only the static
+ * methods of this class.
+ *
+ * @author mblank
+ */
+public final class Flight {
+
+    /**
+     * false if the JVM does not support JFR
+     */
+    public static final boolean AVAILABLE = available();
+
+    private Flight() {
+    }
+
+    private static boolean available() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    @Name("de.blankedv.sx4.Serial")
+    @Label("Serial I/O")
+    @Description("command sent to the SX interface incl. its answer")
+    @Category({"SX4", "Interface"})
+    @StackTrace(false)
+    public static final class SerialEvent extends Event {
+
+        @Label("Interface")
+        String device;
+        @Label("Operation")
+        @Description("write, read (of all channels) or power")
+        String operation;
+        @Label("Channel")
+        int channel;
+        @Label("Bytes Written")
+        @DataAmount
+        int written;
+        @Label("Bytes Read")
+        @DataAmount
+        int read;
+        @Label("Error")
+        boolean error;
+    }
+
+    @Name("de.blankedv.sx4.Route")
+    @Label("Route")
+    @Description("setting or clearing of a route or compound route")
+    @Category({"SX4", "Routing"})
+    public static final class RouteEvent extends Event {
+
+        @Label("Address")
+        int adr;
+        @Label("Compound Route")
+        boolean compound;
+        @Label("Action")
+        @Description("set or clear")
+        String action;
+        @Label("Automatic")
+        boolean automatic;
+        @Label("Train Number")
+        int trainNumber;
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("de.blankedv.sx4.Trip")
+    @Label("Trip State")
+    @Description("state change of a trip")
+    @Category({"SX4", "Routing"})
+    public static final class TripEvent extends Event {
+
+        @Label("Trip")
+        int adr;
+        @Label("Loco")
+        int loco;
+        @Label("Route")
+        int route;
+        @Label("From")
+        String from;
+        @Label("To")
+        String to;
+        @Label("Message")
+        String message;
+    }
+
+    @Name("de.blankedv.sx4.BroadcastBatch")
+    @Label("Broadcast Batch")
+    @Description("new batch of changes for the SXnet clients")
+    @Category({"SX4", "SXnet"})
+    @StackTrace(false)
+    public static final class BatchEvent extends Event {
+
+        @Label("Sequence Number")
+        long seq;
+        @Label("SX Channels")
+        int sx;
+        @Label("Lanbahn Addresses")
+        int lanbahn;
+        @Label("Train Numbers")
+        int trains;
+        @Label("Clients")
+        @Description("connected SXnet clients")
+        int clients;
+    }
+
+    @Name("de.blankedv.sx4.Broadcast")
+    @Label("Broadcast Send")
+    @Description("batches sent to one SXnet client")
+    @Category({"SX4", "SXnet"})
+    @StackTrace(false)
+    public static final class BroadcastEvent extends Event {
+
+        @Label("Client")
+        int client;
+        @Label("Batches")
+        int batches;
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+        @Label("Binary")
+        boolean binary;
+    }
+
+    /**
+     * @return the started event or null if it is not recorded
+     */
+    public static SerialEvent serialBegin() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        SerialEvent e = new SerialEvent();
+        if (!e.isEnabled()) {
+            return null;
+        }
+        e.begin();
+        return e;
+    }
+
+    public static void serialEnd(SerialEvent e, String device, String operation, int channel,
+            int written, int read, boolean error) {
+        if (e == null) {
+            return;
+        }
+        e.end();
+        if (e.shouldCommit()) {
+            e.device = device;
+            e.operation = operation;
+            e.channel = channel;
+            e.written = written;
+            e.read = read;
+            e.error = error;
+            e.commit();
+        }
+    }
+
+    public static RouteEvent routeBegin() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        RouteEvent e = new RouteEvent();
+        if (!e.isEnabled()) {
+            return null;
+        }
+        e.begin();
+        return e;
+    }
+
+    public static void routeEnd(RouteEvent e, int adr, boolean compound, String action,
+            boolean automatic, int trainNumber, boolean success) {
+        if (e == null) {
+            return;
+        }
+        e.end();
+        if (e.shouldCommit()) {
+            e.adr = adr;
+            e.compound = compound;
+            e.action = action;
+            e.automatic = automatic;
+            e.trainNumber = trainNumber;
+            e.success = success;
+            e.commit();
+        }
+    }
+
+    public static void trip(int adr, int loco, int route, String from, String to, String message) {
+        if (!AVAILABLE) {
+            return;
+        }
+        TripEvent e = new TripEvent();
+        if (e.shouldCommit()) {
+            e.adr = adr;
+            e.loco = loco;
+            e.route = route;
+            e.from = from;
+            e.to = to;
+            e.message = message;
+            e.commit();
+        }
+    }
+
+    static void batch(long seq, int sx, int lanbahn, int trains, int clients) {
+        if (!AVAILABLE) {
+            return;
+        }
+        BatchEvent e = new BatchEvent();
+        if (e.shouldCommit()) {
+            e.seq = seq;
+            e.sx = sx;
+            e.lanbahn = lanbahn;
+            e.trains = trains;
+            e.clients = clients;
+            e.commit();
+        }
+    }
+
+    static BroadcastEvent broadcastBegin() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        BroadcastEvent e = new BroadcastEvent();
+        if (!e.isEnabled()) {
+            return null;
+        }
+        e.begin();
+        return e;
+    }
+
+    static void broadcastEnd(BroadcastEvent e, int client, int batches, int bytes, boolean binary) {
+        if (e == null) {
+            return;
+        }
+        e.end();
+        if (e.shouldCommit()) {
+            e.client = client;
+            e.batches = batches;
+            e.bytes = bytes;
+            e.binary = binary;
+            e.commit();
+        }
+    }
+}
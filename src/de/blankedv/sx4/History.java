@@ -0,0 +1,188 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * history of the last SIZE changes of SX channels, lanbahn data, train
+ * numbers and power, each with a monotonic timestamp and the source of the
+ * change (serial interface, sxnet client, route, trip)
+ *
+ * fixed size ring of primitive (atomic) arrays, recording a change does not
+ * allocate and never blocks - it is always switched on. Old entries are
+ * overwritten.
+ *
+ * the source is stored per thread: the sxnet client threads set it once,
+ * routes, trips and the interface polling set it for the duration of their
+ * action (see enter/exit)
+ *
+ * @author mblank
+ */
+public class History {
+
+    public static final int SIZE = 32768;  // must be a power of 2
+    private static final int MASK = SIZE - 1;
+    private static final long BUSY = -1L;
+
+    // types of entries
+    public static final int SX = 1;
+    public static final int LANBAHN = 2;
+    public static final int TRAIN = 3;
+    public static final int POWER = 4;
+
+    // sources = kind << 16 | id
+    public static final int SRC_NONE = 0;
+    private static final int KIND_SERIAL = 1;
+    private static final int KIND_SXNET = 2;
+    private static final int KIND_ROUTE = 3;
+    private static final int KIND_TRIP = 4;
+    public static final int SRC_SERIAL = KIND_SERIAL << 16;
+
+    private static final long START_NANOS = System.nanoTime();
+
+    private static final AtomicLong head = new AtomicLong(0);  // next sequence number
+    private static final AtomicLongArray seqs = new AtomicLongArray(SIZE);
+    private static final AtomicLongArray times = new AtomicLongArray(SIZE);  // nanos since start
+    private static final AtomicIntegerArray addrs = new AtomicIntegerArray(SIZE);
+    private static final AtomicIntegerArray values = new AtomicIntegerArray(SIZE);
+    private static final AtomicIntegerArray metas = new AtomicIntegerArray(SIZE);  // type << 24 | source
+
+    private static final ThreadLocal<int[]> source = ThreadLocal.withInitial(() -> new int[]{SRC_NONE});
+
+    /**
+     * a consumer of history entries, called in chronological order
+     */
+    public interface Visitor {
+
+        void entry(long millis, int type, int addr, int value, int source);
+    }
+
+    static {
+        for (int i = 0; i < SIZE; i++) {
+            seqs.set(i, BUSY);
+        }
+    }
+
+    public static int sxnet(int session) {
+        return (KIND_SXNET << 16) | (session & 0xFFFF);
+    }
+
+    public static int route(int adr) {
+        return (KIND_ROUTE << 16) | (adr & 0xFFFF);
+    }
+
+    public static int trip(int adr) {
+        return (KIND_TRIP << 16) | (adr & 0xFFFF);
+    }
+
+    /**
+     * set the source of all changes done by the current thread
+     */
+    public static void setSource(int src) {
+        source.get()[0] = src;
+    }
+
+    /**
+     * set the source of the changes done by the current thread until exit()
+     * is called
+     *
+     * @return previous source, to be passed to exit()
+     */
+    public static int enter(int src) {
+        int[] s = source.get();
+        int prev = s[0];
+        s[0] = src;
+        return prev;
+    }
+
+    public static void exit(int prev) {
+        source.get()[0] = prev;
+    }
+
+    /**
+     * @return source of the changes done by the current thread
+     */
+    public static int source() {
+        return source.get()[0];
+    }
+
+    /**
+     * record a change (called by the data stores)
+     */
+    public static void record(int type, int addr, int value) {
+        long s = head.getAndIncrement();
+        int i = (int) (s & MASK);
+        seqs.set(i, BUSY);
+        times.set(i, System.nanoTime() - START_NANOS);
+        addrs.set(i, addr);
+        values.set(i, value);
+        metas.set(i, (type << 24) | source.get()[0]);
+        seqs.set(i, s);  // publish
+    }
+
+    /**
+     * @return milliseconds since program start (time base of the history)
+     */
+    public static long now() {
+        return (System.nanoTime() - START_NANOS) / 1000000L;
+    }
+
+    /**
+     * calls the visitor for all stored entries with a time &gt;= sinceMillis,
+     * entries which are overwritten during the scan are skipped
+     */
+    public static void query(long sinceMillis, Visitor v) {
+        long h = head.get();
+        long sinceNanos = sinceMillis * 1000000L;
+        for (long s = Math.max(0, h - SIZE); s < h; s++) {
+            int i = (int) (s & MASK);
+            if (seqs.get(i) != s) {
+                continue;  // not yet published or already overwritten
+            }
+            long t = times.get(i);
+            int a = addrs.get(i);
+            int val = values.get(i);
+            int meta = metas.get(i);
+            if (seqs.get(i) != s) {
+                continue;  // overwritten while reading
+            }
+            if (t >= sinceNanos) {
+                v.entry(t / 1000000L, meta >>> 24, a, val, meta & 0xFFFFFF);
+            }
+        }
+    }
+
+    public static String sourceToString(int src) {
+        int id = src & 0xFFFF;
+        switch (src >>> 16) {
+            case KIND_SERIAL:
+                return "SERIAL";
+            case KIND_SXNET:
+                return "SXNET" + id;
+            case KIND_ROUTE:
+                return "ROUTE" + id;
+            case KIND_TRIP:
+                return "TRIP" + id;
+            default:
+                return "-";
+        }
+    }
+}
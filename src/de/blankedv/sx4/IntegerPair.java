@@ -1,34 +0,0 @@
-/*
-SX4
-Copyright (C) 2019 Michael Blank
-
-This program is free software: you can redistribute it and/or modify
-it under the terms of the GNU General Public License as published by
-the Free Software Foundation, either version 3 of the License, or
-(at your option) any later version.
-
-This program is distributed in the hope that it will be useful,
-but WITHOUT ANY WARRANTY; without even the implied warranty of
-MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
-GNU General Public License for more details.
-
-You should have received a copy of the GNU General Public License
-along with this program. If not, see <http://www.gnu.org/licenses/>.
- */
-package de.blankedv.sx4;
-
-/**
- *
- * @author mblank
- */
-public class IntegerPair {
-    
-    public int addr;
-    public int data;
-    
-    IntegerPair(int a, int d) {
-        addr = a;
-        data = d;
-    }
-    
-}
@@ -18,38 +18,116 @@ along with this program. If not, see <http://www.gnu.org/licenses/>.
 package de.blankedv.sx4;
 
 import static de.blankedv.sx4.Constants.*;
-import static de.blankedv.sx4.SX4.*;
-import java.util.HashMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  *
  * @author mblank
+ *
+ * data of the "pure" lanbahn addresses LBPURE ... LBMAX, every value has only
+ * 2 bits, 16 values are packed into one int.
+ *
+ * lock-free, like SXData: every change increments the "epoch" and is stored
+ * in a change ring, consumers get the addresses changed since their last
+ * epoch as a bitset (see changedSince) - no copies of the data are needed.
+ * Only addresses which have been used (set or read) are reported.
  */
 public class LanbahnData {
-    static private ConcurrentHashMap<Integer,Integer> d = new ConcurrentHashMap<>(500);
- 
+
+    private static final int NVALUES = LBMAX - LBPURE + 1;
+    static final int WORDS = (NVALUES + 15) / 16;
+    private static final AtomicIntegerArray d = new AtomicIntegerArray(WORDS);
+    private static final AtomicLongArray used = new AtomicLongArray(LBMAX / 64 + 1);  // bit = address
+    private static final AtomicLong epoch = new AtomicLong(0);
+    private static final ChangeRing changes = new ChangeRing(1024);
+
     public static int update(int addr, int data) {
         if ((addr < LBPURE) || (addr > LBMAX) 
                 || (data < LBDATAMIN) || (data > LBDATAMAX)) return INVALID_INT;
         
-        d.put(addr, data);
+        int i = addr - LBPURE;
+        int shift = (i & 15) << 1;
+        int oldWord, newWord;
+        do {
+            oldWord = d.get(i >> 4);
+            newWord = (oldWord & ~(0x03 << shift)) | (data << shift);
+        } while (!d.compareAndSet(i >> 4, oldWord, newWord));
+
+        if (markUsed(addr) || (oldWord != newWord)) {
+            History.record(History.LANBAHN, addr, data);
+            markChanged(addr, data);
+        }
         
         return data;
     }
     
     public static int get(int addr) {
         if ((addr < LBPURE) || (addr > LBMAX)) return INVALID_INT;
-        if (d.containsKey(addr)) {
-            return d.get(addr);
-        } else {
-            update(addr, 0); // initialize
-            return 0;
+        int data = value(addr);
+        if (markUsed(addr)) {
+            markChanged(addr, data);   // first use, "initialized" with 0
         }
+        return data;
     }
-    
-    public static HashMap<Integer, Integer> getAll() {
-        return new HashMap<>(d);
+
+    // packed data of 16 addresses, for LayoutState
+    static int getWord(int w) {
+        return d.get(w);
+    }
+
+    private static int value(int addr) {
+        int i = addr - LBPURE;
+        return (d.get(i >> 4) >> ((i & 15) << 1)) & 0x03;
+    }
+
+    /**
+     * @return true if the address has not been used before
+     */
+    private static boolean markUsed(int addr) {
+        int w = addr >> 6;
+        long mask = 1L << (addr & 63);
+        long old;
+        do {
+            old = used.get(w);
+            if ((old & mask) != 0) {
+                return false;
+            }
+        } while (!used.compareAndSet(w, old, old | mask));
+        return true;
+    }
+
+    private static void markChanged(int addr, int data) {
+        LayoutState.lanbahnChanged((addr - LBPURE) >> 4);  // before the epoch changes
+        changes.put(epoch.incrementAndGet(), addr);
+        ChangeBus.fireLanbahnChanged(addr, data);
+    }
+
+    public static long getEpoch() {
+        return epoch.get();
+    }
+
+    /**
+     * marks all addresses which have been changed after epoch "since" in the
+     * bitset "changed" (bit n = address n, needs LBMAX/64+1 longs)
+     *
+     * @param since last epoch known to caller (0 = get all used addresses)
+     * @param changed bitset for the result
+     * @return epoch up to which the changes have been collected, to be used as
+     * "since" in the next call
+     */
+    public static long changedSince(long since, long[] changed) {
+        long head = epoch.get();
+        long upTo = changes.collect(since, head, changed);
+        if (upTo == ChangeRing.OVERRUN) {
+            // caller is too slow, report all used addresses
+            for (int w = 0; w < changed.length; w++) {
+                changed[w] |= used.get(w);
+            }
+            upTo = head;
+        }
+        return upTo;
     }
     
 }
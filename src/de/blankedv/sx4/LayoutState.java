@@ -0,0 +1,187 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import static de.blankedv.sx4.Constants.*;
+import de.blankedv.sx4.timetable.PanelElement;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * immutable, consistent view of the complete layout state: SX channels,
+ * power, lanbahn data and the train numbers of the sensors.
+ *
+ * copy-on-write: every change of the data stores creates a new LayoutState
+ * (only the changed part is copied, the rest is shared) and replaces the
+ * current one with a CAS. Getting a snapshot is O(1) and never blocks, all
+ * checks done with one snapshot see the layout at one point in time.
+ *
+ * the data stores publish a change BEFORE incrementing their epoch, i.e. a
+ * snapshot taken after reading an epoch contains all changes up to this
+ * epoch.
+ *
+ * @author mblank
+ */
+public final class LayoutState {
+
+    private static final AtomicReference<LayoutState> current
+            = new AtomicReference<>(new LayoutState(0, new int[SXCHANNELS],
+                    new int[LanbahnData.WORDS], SXData.getActualPower(),
+                    new PanelElement[0], new int[0]));
+
+    private final long version;
+    private final int[] sx;
+    private final int[] lanbahn;  // packed, same layout as in LanbahnData
+    private final boolean power;
+    private final PanelElement[] sensors;  // sensor of each train slot
+    private final int[] trains;
+
+    private LayoutState(long version, int[] sx, int[] lanbahn, boolean power,
+            PanelElement[] sensors, int[] trains) {
+        this.version = version;
+        this.sx = sx;
+        this.lanbahn = lanbahn;
+        this.power = power;
+        this.sensors = sensors;
+        this.trains = trains;
+    }
+
+    /**
+     * @return the current layout state (O(1), no copy)
+     */
+    public static LayoutState current() {
+        return current.get();
+    }
+
+    /**
+     * @return version number, incremented with every change
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public int get(int addr) {
+        if (!SXUtils.isValidSXChannel(addr)) {
+            return INVALID_INT;
+        }
+        return sx[addr];
+    }
+
+    public int get(int addr, int bit) {
+        if (!SXUtils.isValidSXChannel(addr) || !SXUtils.isValidSXBit(bit)) {
+            return INVALID_INT;
+        }
+        return (sx[addr] >> (bit - 1)) & 0x01;
+    }
+
+    public int getLanbahn(int addr) {
+        if ((addr < LBPURE) || (addr > LBMAX)) {
+            return INVALID_INT;
+        }
+        int i = addr - LBPURE;
+        return (lanbahn[i >> 4] >> ((i & 15) << 1)) & 0x03;
+    }
+
+    public boolean getPower() {
+        return power;
+    }
+
+    /**
+     * @return train number of the sensor at the time of the snapshot
+     */
+    public int getTrain(PanelElement sensor) {
+        int slot = sensor.getSensorSlot();
+        if ((slot >= 0) && (slot < sensors.length) && (sensors[slot] == sensor)) {
+            return trains[slot];
+        }
+        return sensor.getTrain();  // not (yet) registered
+    }
+
+    // the new values are always read from the data stores INSIDE the CAS
+    // loop, so the last successful CAS always sees the latest value
+
+    static void sxChanged(int addr) {
+        LayoutState cur, next;
+        do {
+            cur = current.get();
+            int[] s = cur.sx.clone();
+            s[addr] = SXData.get(addr);
+            next = new LayoutState(cur.version + 1, s, cur.lanbahn, cur.power, cur.sensors, cur.trains);
+        } while (!current.compareAndSet(cur, next));
+    }
+
+    // several channels in ONE new state (bulk update, see SXData.updateAll)
+    static void sxChanged(int[] addrs, int n) {
+        LayoutState cur, next;
+        do {
+            cur = current.get();
+            int[] s = cur.sx.clone();
+            for (int i = 0; i < n; i++) {
+                s[addrs[i]] = SXData.get(addrs[i]);
+            }
+            next = new LayoutState(cur.version + 1, s, cur.lanbahn, cur.power, cur.sensors, cur.trains);
+        } while (!current.compareAndSet(cur, next));
+    }
+
+    static void lanbahnChanged(int word) {
+        LayoutState cur, next;
+        do {
+            cur = current.get();
+            int[] lb = cur.lanbahn.clone();
+            lb[word] = LanbahnData.getWord(word);
+            next = new LayoutState(cur.version + 1, cur.sx, lb, cur.power, cur.sensors, cur.trains);
+        } while (!current.compareAndSet(cur, next));
+    }
+
+    static void powerChanged() {
+        LayoutState cur, next;
+        do {
+            cur = current.get();
+            next = new LayoutState(cur.version + 1, cur.sx, cur.lanbahn, SXData.getActualPower(), cur.sensors, cur.trains);
+        } while (!current.compareAndSet(cur, next));
+    }
+
+    public static void trainChanged(PanelElement sensor) {
+        LayoutState cur, next;
+        do {
+            cur = current.get();
+            int slot = sensor.getSensorSlot();
+            if ((slot < 0) || (slot >= cur.sensors.length) || (cur.sensors[slot] != sensor)) {
+                return;  // not registered
+            }
+            int[] t = cur.trains.clone();
+            t[slot] = sensor.getTrain();
+            next = new LayoutState(cur.version + 1, cur.sx, cur.lanbahn, cur.power, cur.sensors, t);
+        } while (!current.compareAndSet(cur, next));
+    }
+
+    /**
+     * register the sensors (after reading the config), the sensor at index i
+     * must have sensor slot i
+     */
+    public static void setSensors(PanelElement[] newSensors) {
+        LayoutState cur, next;
+        do {
+            cur = current.get();
+            int[] t = new int[newSensors.length];
+            for (int i = 0; i < newSensors.length; i++) {
+                t[i] = newSensors[i].getTrain();
+            }
+            next = new LayoutState(cur.version + 1, cur.sx, cur.lanbahn, cur.power, newSensors.clone(), t);
+        } while (!current.compareAndSet(cur, next));
+    }
+}
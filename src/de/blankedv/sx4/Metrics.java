@@ -0,0 +1,368 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import static de.blankedv.sx4.SX4.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * registry of all counters, gauges and latency histograms of SX4, in the
+ * text format of Prometheus at :8000/metrics (see ConfigWebserver) and with
+ * the SXnet command STATS
+ *
+ * all metrics are defined here (like the Constants), recording is cheap and
+ * never blocks: counters are LongAdders, histograms have fixed log-linear
+ * buckets (8 per power of 2, i.e. max. 12.5% error, like HdrHistogram with 1
+ * significant digit) and are reported as quantiles.
+ *
+ * @author mblank
+ */
+public class Metrics {
+
+    private static final Map<String, Family> families = new LinkedHashMap<>();
+
+    // SX data and SX interface
+    public static final Counter SX_CHANGES = counter("sx4_sx_changes_total", "",
+            "changes of SX channels (from all sources)");
+    public static final Counter SX_WRITES_SCHEDULED = counter("sx4_sx_writes_scheduled_total", "",
+            "writes to the SX interface requested, before coalescing");
+    public static final Counter SERIAL_WRITES = counter("sx4_serial_writes_total", "",
+            "channel writes sent to the SX interface");
+    public static final Counter SERIAL_READS = counter("sx4_serial_reads_total", "",
+            "read requests sent to the SX interface");
+    public static final Counter SERIAL_ERRORS = counter("sx4_serial_errors_total", "",
+            "errors of the serial communication with the SX interface");
+    public static final Histogram SERIAL_WRITE_TIME = histogram("sx4_serial_write_seconds",
+            "duration of one channel write incl. acknowledge");
+    public static final Histogram INTERFACE_CYCLE_TIME = histogram("sx4_interface_cycle_seconds",
+            "duration of one update cycle of the SX interface");
+
+    // SXnet
+    public static final Counter SXNET_CONNECTIONS = counter("sx4_sxnet_connections_total", "",
+            "SXnet sessions started (TCP, WebSocket, event stream)");
+    public static final Counter SXNET_COMMANDS = counter("sx4_sxnet_commands_total", "",
+            "SXnet commands received");
+    public static final Counter SXNET_MESSAGES = counter("sx4_sxnet_messages_sent_total", "",
+            "SXnet messages (writes) sent");
+    public static final Counter SXNET_BYTES = counter("sx4_sxnet_bytes_sent_total", "",
+            "SXnet bytes sent");
+    public static final Histogram SXNET_COMMAND_TIME = histogram("sx4_sxnet_command_seconds",
+            "duration of handling one received SXnet line");
+
+    // routes and trips
+    public static final Counter ROUTE_SET = counter("sx4_route_set_total", "type=\"route\",result=\"ok\"",
+            "route set requests");
+    public static final Counter ROUTE_SET_FAILED = counter("sx4_route_set_total", "type=\"route\",result=\"failed\"", "");
+    public static final Counter COMPROUTE_SET = counter("sx4_route_set_total", "type=\"comproute\",result=\"ok\"", "");
+    public static final Counter COMPROUTE_SET_FAILED = counter("sx4_route_set_total", "type=\"comproute\",result=\"failed\"", "");
+    public static final Counter ROUTE_CLEAR = counter("sx4_route_clear_total", "type=\"route\"",
+            "routes cleared");
+    public static final Counter COMPROUTE_CLEAR = counter("sx4_route_clear_total", "type=\"comproute\"", "");
+    public static final Counter TRIP_STARTED = counter("sx4_trip_start_total", "result=\"active\"",
+            "trip starts");
+    public static final Counter TRIP_WAITING = counter("sx4_trip_start_total", "result=\"waiting_for_route\"", "");
+    public static final Counter TRIP_START_FAILED = counter("sx4_trip_start_total", "result=\"failed\"", "");
+    public static final Counter TRIP_FINISHED = counter("sx4_trip_finish_total", "",
+            "trips finished");
+    public static final Histogram TRIP_DURATION = histogram("sx4_trip_duration_seconds",
+            "duration of the trips from start to finish");
+
+    static {
+        gauge("sx4_power", "", "actual track power (1=on)",
+                () -> SXData.getActualPower() ? 1 : 0);
+        gauge("sx4_sx_write_pending_channels", "", "channels waiting to be written to the SX interface",
+                () -> dataToSend.pendingWrites());
+        gauge("sx4_fcc_error_count", "", "consecutive FCC errors (>10 = no response from FCC)",
+                () -> FCCInterface.getErrorCount());
+        gauge("sx4_sxnet_clients", "", "connected SXnet clients",
+                () -> SXnetClient.getClients().size());
+        family("sx4_sxnet_client_commands_total", "counter", "SXnet commands received per client",
+                out -> SXnetClient.getClients().forEach(c -> out.accept(c.metricLabels(), c.getCommands())));
+        family("sx4_sxnet_client_messages_sent_total", "counter", "SXnet messages sent per client",
+                out -> SXnetClient.getClients().forEach(c -> out.accept(c.metricLabels(), c.getMessagesSent())));
+        family("sx4_sxnet_client_queued_bytes", "gauge", "bytes in the output queue per client",
+                out -> SXnetClient.getClients().forEach(c -> out.accept(c.metricLabels(), (long) c.getQueuedBytes())));
+    }
+
+    /**
+     * receives the metrics, see write()
+     */
+    public interface Writer {
+
+        /**
+         * the samples of a new metric follow
+         */
+        void family(String name, String type, String help);
+
+        void sample(String name, String value);
+    }
+
+    /**
+     * all metrics in the Prometheus text format (version 0.0.4)
+     */
+    public static String toText() {
+        final StringBuilder sb = new StringBuilder(4096);
+        write(new Writer() {
+            @Override
+            public void family(String name, String type, String help) {
+                sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+                sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            }
+
+            @Override
+            public void sample(String name, String value) {
+                sb.append(name).append(' ').append(value).append('\n');
+            }
+        });
+        return sb.toString();
+    }
+
+    public static void write(Writer out) {
+        List<Family> all;
+        synchronized (families) {
+            all = new ArrayList<>(families.values());
+        }
+        for (Family f : all) {
+            out.family(f.name, f.type, f.help);
+            f.write(out);
+        }
+    }
+
+    public static Counter counter(String name, String labels, String help) {
+        Counter c = new Counter();
+        family(name, "counter", help).add(labels, c);
+        return c;
+    }
+
+    public static Histogram histogram(String name, String help) {
+        return histogram(name, "", help);
+    }
+
+    public static Histogram histogram(String name, String labels, String help) {
+        Histogram h = new Histogram();
+        family(name, "summary", help).add(labels, h);
+        return h;
+    }
+
+    public static void gauge(String name, String labels, String help, LongSupplier value) {
+        family(name, "gauge", help).add(labels, value);
+    }
+
+    /**
+     * samples with variable labels (e.g. one per client), the collector is
+     * called with the labels and the value of every sample
+     */
+    public static void family(String name, String type, String help,
+            Consumer<BiConsumer<String, Long>> collector) {
+        family(name, type, help).collector = collector;
+    }
+
+    private static Family family(String name, String type, String help) {
+        synchronized (families) {
+            Family f = families.get(name);
+            if (f == null) {
+                f = new Family(name, type, help);
+                families.put(name, f);
+            }
+            return f;
+        }
+    }
+
+    private static String labeled(String name, String labels) {
+        return labels.isEmpty() ? name : name + "{" + labels + "}";
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static class Family {
+
+        final String name, type, help;
+        final List<String> labels = new ArrayList<>();
+        final List<Object> metrics = new ArrayList<>();  // Counter, Histogram or LongSupplier
+        volatile Consumer<BiConsumer<String, Long>> collector = null;
+
+        Family(String name, String type, String help) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+        }
+
+        synchronized void add(String l, Object m) {
+            labels.add(l);
+            metrics.add(m);
+        }
+
+        synchronized void write(Writer out) {
+            for (int i = 0; i < metrics.size(); i++) {
+                Object m = metrics.get(i);
+                String n = labeled(name, labels.get(i));
+                if (m instanceof Counter) {
+                    out.sample(n, Long.toString(((Counter) m).get()));
+                } else if (m instanceof LongSupplier) {
+                    out.sample(n, Long.toString(((LongSupplier) m).getAsLong()));
+                } else {
+                    ((Histogram) m).write(name, labels.get(i), out);
+                }
+            }
+            if (collector != null) {
+                collector.accept((l, v) -> out.sample(labeled(name, l), Long.toString(v)));
+            }
+        }
+    }
+
+    public static final class Counter {
+
+        private final LongAdder n = new LongAdder();
+
+        public void inc() {
+            n.increment();
+        }
+
+        public void add(long d) {
+            n.add(d);
+        }
+
+        public long get() {
+            return n.sum();
+        }
+    }
+
+    /**
+     * latency histogram, values in nanoseconds: 0 ... 15 exact, then 8
+     * buckets per power of 2
+     */
+    public static final class Histogram {
+
+        private static final int SUB_BITS = 3;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int LINEAR = 2 * SUB;
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+        private final AtomicLongArray buckets = new AtomicLongArray(LINEAR + (63 - SUB_BITS) * SUB);
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong(0);
+
+        /**
+         * @param startNanos System.nanoTime() at the start
+         */
+        public void since(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            buckets.incrementAndGet(index(nanos));
+            sum.add(nanos);
+            long m;
+            while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+                // retry
+            }
+        }
+
+        static int index(long v) {
+            if (v < LINEAR) {
+                return (int) v;
+            }
+            int e = 63 - Long.numberOfLeadingZeros(v);  // >= SUB_BITS + 1
+            return LINEAR + (e - SUB_BITS - 1) * SUB + (int) ((v >>> (e - SUB_BITS)) & (SUB - 1));
+        }
+
+        // highest value of bucket i
+        static long upperBound(int i) {
+            if (i < LINEAR) {
+                return i;
+            }
+            int k = i - LINEAR;
+            int shift = k / SUB + 1;
+            return ((long) (SUB + k % SUB) << shift) + (1L << shift) - 1;
+        }
+
+        /**
+         * @return counts of all buckets, consistent with each other only
+         * approximately (recording does not stop)
+         */
+        private long[] counts() {
+            long[] c = new long[buckets.length()];
+            for (int i = 0; i < c.length; i++) {
+                c[i] = buckets.get(i);
+            }
+            return c;
+        }
+
+        private static long quantile(long[] c, long total, double q, long max) {
+            long rank = (long) Math.ceil(q * total);
+            long n = 0;
+            for (int i = 0; i < c.length; i++) {
+                n += c[i];
+                if ((n >= rank) && (n > 0)) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        public long getCount() {
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                total += buckets.get(i);
+            }
+            return total;
+        }
+
+        /**
+         * @return value (nanoseconds) below which the fraction q of all
+         * recorded values is
+         */
+        public long getQuantile(double q) {
+            long[] c = counts();
+            long total = 0;
+            for (long n : c) {
+                total += n;
+            }
+            return quantile(c, total, q, max.get());
+        }
+
+        void write(String name, String labels, Writer out) {
+            String l = labels.isEmpty() ? "" : labels + ",";
+            long[] c = counts();
+            long total = 0;
+            for (long n : c) {
+                total += n;
+            }
+            long m = max.get();
+            for (double q : QUANTILES) {
+                out.sample(name + "{" + l + "quantile=\"" + q + "\"}", seconds(quantile(c, total, q, m)));
+            }
+            out.sample(labeled(name + "_sum", labels), seconds(sum.sum()));
+            out.sample(labeled(name + "_count", labels), Long.toString(total));
+        }
+    }
+}
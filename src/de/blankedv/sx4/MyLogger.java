@@ -19,49 +19,279 @@ package de.blankedv.sx4;
 
 import static com.esotericsoftware.minlog.Log.*;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.io.Writer;
-import java.util.logging.Level;
-
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
+ * asynchronous logger: the logging threads (serial interface, routing, sxnet
+ * clients) only store the raw message in a preallocated ring buffer, the
+ * formatting, writing, flushing and console output is done by a separate
+ * writer thread. If the ring is full, messages are dropped (and counted)
+ * instead of blocking the caller.
+ *
+ * the log files are rotated by size, only the newest NUMBER_OF_FILES_TO_RETAIN
+ * log files are kept.
  *
  * @author mblank
  */
 public class MyLogger extends Logger {
 
-    Writer writer;
-    String lastMessage="";
+    private static final int RING_SIZE = 8192;  // must be a power of 2
+    private static final long MAX_FILE_SIZE = 10L * 1024 * 1024;  // rotate after 10 MB
+    private static final long IDLE_WAIT_NANOS = 200_000_000L;
 
-    MyLogger(String path)  {
-        try {
-            writer = new OutputStreamWriter(new FileOutputStream(path));
-        } catch (FileNotFoundException ex) {
-            error(ex.getMessage());
-            try {
-                writer = new OutputStreamWriter(new FileOutputStream("log.txt"));
-                error("could not open "+path+" - using log.txt instead");
-            } catch (FileNotFoundException ex1) {
-                error(ex.getMessage());
+    private static class Entry {
+
+        volatile long seq = -1;  // published sequence number
+        long time;
+        int level;
+        String category;
+        String message;
+        Throwable ex;
+    }
+
+    private final Entry[] ring = new Entry[RING_SIZE];
+    private final AtomicLong claimed = new AtomicLong(0);  // next sequence number to write to
+    private volatile long consumed = 0;  // next sequence number to be read by writer thread
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    private final long firstLogTime = System.currentTimeMillis();
+    private final Thread writerThread;
+    private volatile boolean writerSleeping = false;
+    private volatile boolean closing = false;
+
+    private Writer writer;
+    private long fileSize = 0;
+    private String lastMessage = "";
+
+    MyLogger() {
+        for (int i = 0; i < RING_SIZE; i++) {
+            ring[i] = new Entry();
+        }
+        openNewLogfile();
+        writerThread = new Thread(this::writeLoop, "logwriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        // write all pending messages before the program ends
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "logwriter-close"));
+    }
+
+    /**
+     * called on the logging thread: only store the message, formatting is
+     * done in the writer thread
+     */
+    @Override
+    public void log(int level, String category, String message, Throwable ex) {
+        long s;
+        do {
+            s = claimed.get();
+            if ((s - consumed) >= RING_SIZE) {
+                dropped.incrementAndGet();   // never block the caller
+                return;
             }
+        } while (!claimed.compareAndSet(s, s + 1));
+
+        Entry e = ring[(int) (s & (RING_SIZE - 1))];
+        e.time = System.currentTimeMillis();
+        e.level = level;
+        e.category = category;
+        e.message = message;
+        e.ex = ex;
+        e.seq = s;  // publish
+
+        if (writerSleeping) {
+            LockSupport.unpark(writerThread);
         }
     }
-    
+
     @Override
     protected void print(String message) {
         if (!message.equals(lastMessage)) {
             System.out.println(message);
         }
         lastMessage = message;
+        if (writer == null) {
+            return;
+        }
         try {
             writer.write(message);
             writer.write('\n');
+            fileSize += message.length() + 1;
+        } catch (IOException ex) {
+            System.out.println("ERROR: " + ex.getMessage());
+        }
+        if (fileSize > MAX_FILE_SIZE) {
+            openNewLogfile();
+        }
+    }
+
+    private void writeLoop() {
+        long r = 0;
+        boolean unflushed = false;
+        while (true) {
+            Entry e = ring[(int) (r & (RING_SIZE - 1))];
+            if (e.seq == r) {
+                print(format(e));
+                e.message = null;
+                e.ex = null;
+                r++;
+                consumed = r;
+                unflushed = true;
+                continue;
+            }
+            // ring is empty => flush once for the whole batch
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                print("WARN: " + lost + " log messages dropped");
+                unflushed = true;
+            }
+            if (unflushed) {
+                flush();
+                unflushed = false;
+            }
+            if (closing) {
+                return;
+            }
+            writerSleeping = true;
+            if (ring[(int) (r & (RING_SIZE - 1))].seq != r) {
+                LockSupport.parkNanos(IDLE_WAIT_NANOS);
+            }
+            writerSleeping = false;
+        }
+    }
+
+    private void flush() {
+        if (writer == null) {
+            return;
+        }
+        try {
             writer.flush();
         } catch (IOException ex) {
-            error(ex.getMessage());
+            System.out.println("ERROR: " + ex.getMessage());
+        }
+    }
+
+    // same format as minlog: "mm:ss LEVEL: [category] message"
+    private String format(Entry e) {
+        StringBuilder sb = new StringBuilder(128);
+        long time = e.time - firstLogTime;
+        long minutes = time / (1000 * 60);
+        long seconds = time / 1000 % 60;
+        if (minutes <= 9) {
+            sb.append('0');
+        }
+        sb.append(minutes).append(':');
+        if (seconds <= 9) {
+            sb.append('0');
+        }
+        sb.append(seconds);
+        switch (e.level) {
+            case LEVEL_ERROR:
+                sb.append(" ERROR: ");
+                break;
+            case LEVEL_WARN:
+                sb.append("  WARN: ");
+                break;
+            case LEVEL_INFO:
+                sb.append("  INFO: ");
+                break;
+            case LEVEL_DEBUG:
+                sb.append(" DEBUG: ");
+                break;
+            case LEVEL_TRACE:
+                sb.append(" TRACE: ");
+                break;
+        }
+        if (e.category != null) {
+            sb.append('[').append(e.category).append("] ");
+        }
+        sb.append(e.message);
+        if (e.ex != null) {
+            StringWriter sw = new StringWriter(256);
+            e.ex.printStackTrace(new PrintWriter(sw));
+            sb.append('\n').append(sw.toString().trim());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * write all pending messages and close the log file (waits max. 2 secs)
+     */
+    public void close() {
+        closing = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(2000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+
+    private void openNewLogfile() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ex) {
+                System.out.println("ERROR: " + ex.getMessage());
+            }
+        }
+        SimpleDateFormat df = new SimpleDateFormat("yyyyMMdd_HHmmss");
+        String base = "log." + df.format(new Date());
+        String path = base + ".txt";
+        for (int i = 1; new File(path).exists(); i++) {
+            path = base + "_" + i + ".txt";  // rotated within the same second
+        }
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(path));
+        } catch (FileNotFoundException ex) {
+            System.out.println("ERROR: " + ex.getMessage());
+            try {
+                writer = new OutputStreamWriter(new FileOutputStream("log.txt"));
+                System.out.println("ERROR: could not open " + path + " - using log.txt instead");
+            } catch (FileNotFoundException ex1) {
+                System.out.println("ERROR: " + ex1.getMessage());
+            }
+        }
+        fileSize = 0;
+        deleteOlderLogfiles();
+    }
+
+    private static void deleteOlderLogfiles() {
+        File curDir = new File(".");
+        ArrayList<File> logFiles = new ArrayList<>();
+        File[] filesList = curDir.listFiles();
+        if (filesList == null) {
+            return;
+        }
+
+        for (File f : filesList) {
+            if (f.isFile() && f.getName().startsWith("log.") && f.getName().endsWith(".txt")) {
+                logFiles.add(f);
+            }
+        }
+        Collections.sort(logFiles);
+        int n = SX4.NUMBER_OF_FILES_TO_RETAIN;
+        for (int i = 0; i < (logFiles.size() - n); i++) {
+            logFiles.get(i).delete();
         }
     }
 }
@@ -173,8 +173,14 @@ public class SLX825Interface extends GenericSXInterface {
             outputStream.flush();
         } catch (IOException e) {
             error("Fehler beim Senden");
+            Metrics.SERIAL_ERRORS.inc();
             return false;
         }
+        if (data == INVALID_INT) {
+            Metrics.SERIAL_READS.inc();
+        } else {
+            Metrics.SERIAL_WRITES.inc();
+        }
         return true;
 
     }
@@ -293,9 +299,8 @@ public class SLX825Interface extends GenericSXInterface {
     @Override
     public void requestPower() {
         if (serialPortGeoeffnet) {
-            //dataToSend.add(new IntegerPair(POWER_CHAN, INVALID_INT));
             //sendToInterface(POWER_CHAN, INVALID_INT);
-            dataToSend.add(new IntegerPair(POWER_CHAN, INVALID_INT));
+            dataToSend.requestPowerRead();
             debug("requestPower sent");
 
         }
@@ -310,7 +315,7 @@ public class SLX825Interface extends GenericSXInterface {
     @Override
     public void request(int addr) {
         if (serialPortGeoeffnet) {
-            dataToSend.add(new IntegerPair(addr, INVALID_INT));
+            dataToSend.read(addr);
         }
 
     }
@@ -318,7 +323,11 @@ public class SLX825Interface extends GenericSXInterface {
     @Override
     public String doUpdate() {
         if (serialPortGeoeffnet) {
-            readSerialPortAndUpdateSXData();
+            Flight.SerialEvent ev = Flight.serialBegin();
+            int n = readSerialPortAndUpdateSXData();
+            if (n != 0) {  // only if the interface has sent something
+                Flight.serialEnd(ev, "SLX825", "read", INVALID_INT, 0, Math.max(n, 0), n < 0);
+            }
             if (SXData.isPowerToBe() != lastPowerState) {
                 //error("powertoBe="+powerToBe.get()+" SXD.getPower()="+SXData.getPower());
                 sendPower();
@@ -329,18 +338,23 @@ public class SLX825Interface extends GenericSXInterface {
                 }
                 readSerialPortAndUpdateSXData();
             }
-            while (!dataToSend.isEmpty()) {
-                IntegerPair sxd = dataToSend.poll();
-                if (sxd != null) {
-                    sendToInterface(sxd.addr, sxd.data);
-                    try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException ex) {
-                        Logger.getLogger(SLX825Interface.class.getName()).log(Level.SEVERE, null, ex);
-                    }
-                    readSerialPortAndUpdateSXData();
+            // one pass over all pending channels, multiple writes to the
+            // same channel have already been merged by the scheduler
+            // the SLX825 has only one bus (SX0), SX1 channels are ignored
+            int addr;
+            while ((addr = dataToSend.pollWrite()) != INVALID_INT) {
+                if (SXUtils.sxBus(addr) == 0) {
+                    sendAndRead(addr, dataToSend.getValue(addr));
                 }
             }
+            while ((addr = dataToSend.pollRead()) != INVALID_INT) {
+                if (SXUtils.sxBus(addr) == 0) {
+                    sendAndRead(addr, INVALID_INT);
+                }
+            }
+            if (dataToSend.pollPowerRead()) {
+                sendAndRead(POWER_CHAN, INVALID_INT);
+            }
             if (interfaceActiveCount > 10) {
                 interfaceActiveCount = 0;
                 requestPower();
@@ -351,9 +365,39 @@ public class SLX825Interface extends GenericSXInterface {
         return "";
     }
 
-    private void readSerialPortAndUpdateSXData() {
+    private void sendAndRead(int addr, int data) {
+        long t0 = System.nanoTime();
+        Flight.SerialEvent ev = Flight.serialBegin();
+        boolean ok;
+        if (data != INVALID_INT) {
+            Trace.writing(addr);
+            ok = sendToInterface(addr, data);
+            if (ok) {
+                Trace.written(addr, data);  // no acknowledge, the value is read back
+            }
+        } else {
+            ok = sendToInterface(addr, data);
+        }
+        try {
+            Thread.sleep(20);
+        } catch (InterruptedException ex) {
+            Logger.getLogger(SLX825Interface.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        int n = readSerialPortAndUpdateSXData();
+        if (data != INVALID_INT) {
+            Metrics.SERIAL_WRITE_TIME.since(t0);
+        }
+        Flight.serialEnd(ev, "SLX825", (data != INVALID_INT) ? "write" : "read", addr,
+                ok ? 2 : 0, Math.max(n, 0), !ok || (n < 0));
+    }
+
+    /**
+     * @return number of bytes read, -1 in case of an error
+     */
+    private int readSerialPortAndUpdateSXData() {
 
         // Achtung: immer auf 2 Byte warten .... TODO: timer reset wenn länger als 10 ms keine Bytes
+        int total = 0;
         try {
             int adr, data;
 
@@ -362,13 +406,17 @@ public class SLX825Interface extends GenericSXInterface {
             while (inputStream.available() > 1) {
 
                 int numBytes = inputStream.read(readBuffer);
+                total += numBytes;
 
-                debug("read n=" + numBytes);
+                if (DEBUG) {
+                    debug("read n=" + numBytes);
+                }
 
                 int offset;
                 if (leftoverFlag) {
                     offset = 1;
                     data = (int) (readBuffer[0] & 0xFF);
+                    Trace.polled(leftover, data);
                     SXData.update(leftover, data, false); // DO NOT SEND BACK TO SXI (loop !)
                 } else {
                     offset = 0;
@@ -390,8 +438,11 @@ public class SLX825Interface extends GenericSXInterface {
                             debug("rec. power=" + data);
                         } else {
                             if (adr <= SXMAX_USED) {  // ignore >106 channel numbers
+                            Trace.polled(adr, data);
                             SXData.update(adr, data, false); // DO NOT SEND BACK TO SXI (loop !)
-                            debug("read a=" + adr + " d=" + data);
+                            if (DEBUG) {
+                                debug("read a=" + adr + " d=" + data);
+                            }
                             }
                         }
                         leftoverFlag = false;
@@ -408,8 +459,10 @@ public class SLX825Interface extends GenericSXInterface {
 
         } catch (IOException e) {
             error("Fehler beim Lesen empfangener Daten");
+            Metrics.SERIAL_ERRORS.inc();
+            return -1;
         }
-
+        return total;
     }
 
     public static int toUnsignedInt(byte value) {
@@ -18,11 +18,9 @@ along with this program. If not, see <http://www.gnu.org/licenses/>.
 package de.blankedv.sx4;
 
 import java.net.InetAddress;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.text.SimpleDateFormat;
 
 import static de.blankedv.sx4.Constants.*;
@@ -56,8 +54,11 @@ public class SX4 {
     public static volatile boolean running = true;
     public static boolean routingEnabled = false;
     public static boolean guiEnabled = false;
+    public static boolean sessionThreads = false;  // sxnet: one (virtual) thread per session
+    public static int sxnetQueueLimit = 64 * 1024;  // max. unsent output bytes per sxnet client
+    public static boolean disconnectSlowClients = false;  // else: resync when the queue is full
 
-    public static ArrayBlockingQueue<IntegerPair> dataToSend = new ArrayBlockingQueue<>(400);
+    public static final SXWriteScheduler dataToSend = new SXWriteScheduler();
 
     public static List<InetAddress> myips;
     public static String configFilename = "";
@@ -183,7 +184,14 @@ public class SX4 {
             @Override
             public void run() {
                 //System.out.println("m400");
-                sxi.doUpdate();     // includes reading all SX data 
+                int src = History.enter(History.SRC_SERIAL);
+                long t0 = System.nanoTime();
+                try {
+                    sxi.doUpdate();     // includes reading all SX data 
+                } finally {
+                    History.exit(src);
+                }
+                Metrics.INTERFACE_CYCLE_TIME.since(t0);
                 if (routingEnabled) {
                     if (guiEnabled) {
                         for (TimetableUI tt : allTimetableUIs) {
@@ -324,34 +332,13 @@ public class SX4 {
         return false;
     }
 
-    private static void deleteOlderLogfiles() {
-        File curDir = new File(".");
-        ArrayList<File> logFiles = new ArrayList<>();
-        File[] filesList = curDir.listFiles();
-
-        for (File f : filesList) {
-            if (f.isFile() && f.getName().startsWith("log") && f.getName().endsWith(".txt")) {
-                logFiles.add(f);
-            }
-        }
-        Collections.sort(logFiles);
-        if (!logFiles.isEmpty() && (logFiles.size() > NUMBER_OF_FILES_TO_RETAIN)) {
-            for (int i = 0; i < (logFiles.size() - NUMBER_OF_FILES_TO_RETAIN); i++) {
-                //debug("deleting old log file" + logFiles.get(i).getName());
-                logFiles.get(i).delete();
-            }
-        }
-    }
-
     private static void startLogging() {
         // start simple logging
         SimpleDateFormat df = new SimpleDateFormat("yyyyMMdd_HHmmss");
         String currDateTime = df.format(new Date());
-        String logFileName = "log." + currDateTime + ".txt";
-        setLogger(new MyLogger(logFileName));
+        setLogger(new MyLogger());  // asynchronous, rotates and deletes older log files
         info("starting " + VERSION);
         info("datetime=" + currDateTime);
-        deleteOlderLogfiles();
 
     }
 }
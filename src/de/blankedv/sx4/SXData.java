@@ -22,6 +22,9 @@ import static de.blankedv.sx4.Constants.*;
 import static de.blankedv.sx4.SX4.*;
 import static com.esotericsoftware.minlog.Log.*;
 import de.blankedv.sx4.timetable.PanelElement;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  *
@@ -29,52 +32,69 @@ import de.blankedv.sx4.timetable.PanelElement;
  *
  * central data class, can be used from all threads
  *
+ * lock-free: the channel data are stored in an atomic array, every change
+ * increments the global "epoch" and stores it as the sequence number of the
+ * changed channel. Consumers can ask for all channels changed since a given
+ * epoch (see changedSince) without scanning all channels.
+ *
+ * the channels of both SX busses are stored, the channel index is
+ * bus*(SXMAX+1) + sx address (see SXUtils.sxChannel)
+ *
  */
 public class SXData {
 
-    private static final int[] d = new int[SXMAX + 1];
-    static private boolean actualPower = true;
-    static private boolean powerToBe = false;
-    static private boolean powerControlEnabled = false;
+    private static final AtomicIntegerArray d = new AtomicIntegerArray(SXCHANNELS);
+    private static final AtomicLongArray seq = new AtomicLongArray(SXCHANNELS);  // epoch of last change
+    private static final AtomicLong epoch = new AtomicLong(0);
+    private static final ChangeRing changes = new ChangeRing(256);
 
+    static private volatile boolean actualPower = true;
+    static private volatile boolean powerToBe = false;
+    static private volatile boolean powerControlEnabled = false;
 
-    public static synchronized int update(int addr, int data, boolean writeFlag) {
-        if (!SXUtils.isValidSXAddress(addr)) {
+    public static int update(int addr, int data, boolean writeFlag) {
+        if (!SXUtils.isValidSXChannel(addr)) {
             return 0;
         }
 
-        d[addr] = 0xFF & data;
+        int newData = 0xFF & data;
+        boolean changed = (d.getAndSet(addr, newData) != newData);
+        if (changed) {
+            markChanged(addr, newData);
+        }
         if (sxi != null) {
             if (writeFlag) {  //WRITE to central station
-                try {
-                    dataToSend.put(new IntegerPair(addr, d[addr]));
-                } catch (InterruptedException ex) {
-                    error("ERROR - sendqueue full");
-                }
+                dataToSend.write(addr, newData);
+                Metrics.SX_WRITES_SCHEDULED.inc();
+                Trace.scheduled(addr);
             }
         }
-        debug("set: SX[" + addr + "]=" + d[addr] + " ");
-        PanelElement.updateFromSXData(addr, d[addr]);
+        if (DEBUG) {
+            debug("set: SX[" + addr + "]=" + newData + " ");
+        }
+        // always use the latest value, another thread might have changed it in the meantime
+        int current = d.get(addr);
+        PanelElement.updateFromSXData(addr, current);
+        if (changed) {
+            // only after the panel elements, listeners see their new state
+            ChangeBus.fireSXChanged(addr, current);
+        }
 
-        return d[addr];
+        return newData;
     }
 
     public static int get(int addr) {
-        if ((sxi != null) && (d[addr] == INVALID_INT)) {
+        int data = d.get(addr);
+        if ((sxi != null) && (data == INVALID_INT)) {
             // this can only happen for "old SX Interface", where data are
             // polled - for FCC and SLX we always have valid data for ALL channels
-            try {
-                // request data read
-                dataToSend.put(new IntegerPair(addr, INVALID_INT));
-            } catch (InterruptedException ex) {
-                error("ERROR - sendqueue full");
-            }
+            dataToSend.read(addr);  // request data read
         }
-        return d[addr];
+        return data;
     }
     
     public static int get(int addr, int bit) {
-        int data = d[addr];
+        int data = d.get(addr);
         if ( (data & (1 << (bit - 1))) != 0 ) {
             return 1;
         } else {
@@ -82,46 +102,190 @@ public class SXData {
         }
     }
 
-    synchronized static public void setBit(int addr, int bit, boolean writeFlag) {
-        if (!SXUtils.isValidSXAddress(addr) || (!SXUtils.isValidSXBit(bit))) {
+    static public void setBit(int addr, int bit, boolean writeFlag) {
+        if (!SXUtils.isValidSXBit(bit)) {
             return;
         }
+        int mask = 1 << (bit - 1);  // selectrix sxbit !!! 1 ..8
+        updateBits(addr, mask, mask, writeFlag);
+    }
 
-        debug("setBit addr=" + addr + " bit=" + bit);
+    static public void clearBit(int addr, int bit, boolean writeFlag) {
+        if (!SXUtils.isValidSXBit(bit)) {
+            return;
+        }
+        updateBits(addr, 1 << (bit - 1), 0, writeFlag);
+    }
 
-        d[addr] = SXUtils.setBit(d[addr], bit);
+    /**
+     * atomically sets the bits of channel addr selected by "mask" to the
+     * corresponding bits of "value", all other bits are not touched, and sends
+     * the result to the SX interface
+     *
+     * @return the new data of the channel
+     */
+    public static int updateBits(int addr, int mask, int value) {
+        return updateBits(addr, mask, value, true);
+    }
 
-        debug("sxData[" + addr + "]=" + d[addr]);
+    /**
+     * atomic read-modify-write of the bits selected by "mask": no concurrent
+     * change of the other bits of the same channel can get lost. Results in
+     * (at most) one write to the SX interface.
+     *
+     * @return the new data of the channel
+     */
+    public static int updateBits(int addr, int mask, int value, boolean writeFlag) {
+        if (!SXUtils.isValidSXChannel(addr)) {
+            return 0;
+        }
+        int oldData, newData;
+        do {
+            oldData = d.get(addr);
+            newData = ((oldData & ~mask) | (value & mask)) & 0xFF;
+        } while (!d.compareAndSet(addr, oldData, newData));
+        if (oldData != newData) {
+            markChanged(addr, newData);
+        }
+        if (writeFlag && (sxi != null)) {
+            dataToSend.write(addr, newData);
+            Metrics.SX_WRITES_SCHEDULED.inc();
+            Trace.scheduled(addr);
+        }
+        if (DEBUG) {
+            debug("updateBits: SX[" + addr + "]=" + newData + " mask=" + mask);
+        }
+        int current = d.get(addr);
+        PanelElement.updateFromSXData(addr, current);
+        if (oldData != newData) {
+            ChangeBus.fireSXChanged(addr, current);
+        }
+        return newData;
+    }
 
+    /**
+     * bulk update (SXM / SETM): sets the bits selected by masks[i] of channel
+     * addrs[i] to the bits of values[i], for i = 0 ... n-1. All changes are
+     * published as ONE new LayoutState, i.e. a snapshot contains either all or
+     * none of them, and the writes are scheduled only after all channels have
+     * been stored - a channel which is changed several times is written once.
+     *
+     * all channels must be valid (see SXUtils.isValidSXChannel)
+     */
+    public static void updateAll(int[] addrs, int[] masks, int[] values, int n, boolean writeFlag) {
+        int[] changed = new int[n];
+        int nChanged = 0;
+        for (int i = 0; i < n; i++) {
+            int addr = addrs[i];
+            int oldData, newData;
+            do {
+                oldData = d.get(addr);
+                newData = ((oldData & ~masks[i]) | (values[i] & masks[i])) & 0xFF;
+            } while (!d.compareAndSet(addr, oldData, newData));
+            if ((oldData != newData) && !contains(changed, nChanged, addr)) {
+                changed[nChanged++] = addr;
+            }
+        }
+        if (nChanged > 0) {
+            LayoutState.sxChanged(changed, nChanged);  // before the epochs change
+            Metrics.SX_CHANGES.add(nChanged);
+            for (int i = 0; i < nChanged; i++) {
+                int addr = changed[i];
+                long e = epoch.incrementAndGet();
+                seq.set(addr, e);
+                changes.put(e, addr);
+                Trace.changed(addr);
+            }
+            for (int i = 0; i < nChanged; i++) {
+                History.record(History.SX, changed[i], d.get(changed[i]));
+            }
+        }
         if (writeFlag && (sxi != null)) {
-            try {
-                dataToSend.put(new IntegerPair(addr, d[addr]));
-            } catch (InterruptedException ex) {
-                error("ERROR - sendqueue full");
+            for (int i = 0; i < n; i++) {
+                dataToSend.write(addrs[i], d.get(addrs[i]));  // coalesced by the scheduler
+                Trace.scheduled(addrs[i]);
             }
-            //sxi.sendWrite(addr, d[addr]);
+            Metrics.SX_WRITES_SCHEDULED.add(n);
+        }
+        if (DEBUG) {
+            debug("updateAll: " + n + " channels, " + nChanged + " changed");
+        }
+        for (int i = 0; i < n; i++) {
+            if (!contains(addrs, i, addrs[i])) {
+                PanelElement.updateFromSXData(addrs[i], d.get(addrs[i]));
+            }
+        }
+        // only after all panel elements have been updated
+        for (int i = 0; i < nChanged; i++) {
+            ChangeBus.fireSXChanged(changed[i], d.get(changed[i]));
         }
     }
 
-    synchronized static public void clearBit(int addr, int bit, boolean writeFlag) {
-        if (!SXUtils.isValidSXAddress(addr) || (!SXUtils.isValidSXBit(bit))) {
-            return;
+    private static boolean contains(int[] a, int n, int v) {
+        for (int i = 0; i < n; i++) {
+            if (a[i] == v) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        debug("clearBit addr=" + addr + " bit=" + bit);
+    private static void markChanged(int addr, int data) {
+        LayoutState.sxChanged(addr);  // must be published before the epoch changes
+        Metrics.SX_CHANGES.inc();
+        Trace.changed(addr);
+        long e = epoch.incrementAndGet();
+        seq.set(addr, e);
+        changes.put(e, addr);
+        History.record(History.SX, addr, data);
+        // ChangeBus is fired by the caller, after the PanelElements are updated
+    }
 
-        d[addr] = SXUtils.clearBit(d[addr], bit);
+    /**
+     * @return current epoch, is incremented with every change of a channel
+     */
+    public static long getEpoch() {
+        return epoch.get();
+    }
 
-        debug("sxData[" + addr + "]=" + d[addr]);
+    /**
+     * @return epoch of the last change of channel addr
+     */
+    public static long getEpoch(int addr) {
+        return seq.get(addr);
+    }
 
-        if (writeFlag && (sxi != null)) {
-            try {
-                dataToSend.put(new IntegerPair(addr, d[addr]));
-            } catch (InterruptedException ex) {
-                error("ERROR - sendqueue full");
+    /**
+     * marks all channels which have been changed after epoch "since" in the
+     * bitset "changed" (bit n = channel n, needs SXCHANNELS/64+1 longs). Usually
+     * only the recently changed channels are looked at, a full scan of all
+     * channels is done only if the caller lags too far behind.
+     *
+     * @param since last epoch known to caller
+     * @param changed bitset for the result
+     * @return epoch up to which the changes have been collected, to be used as
+     * "since" in the next call
+     */
+    public static long changedSince(long since, long[] changed) {
+        long head = epoch.get();
+        long upTo = changes.collect(since, head, changed);
+        if (upTo == ChangeRing.OVERRUN) {
+            // caller is too slow, report all channels as changed (the data
+            // are always stored before the epoch is incremented)
+            for (int addr = 0; addr < SXCHANNELS; addr++) {
+                changed[addr >> 6] |= (1L << (addr & 63));
             }
-            //sxi.sendWrite(addr, d[addr]);
+            upTo = head;
         }
+        return upTo;
+    }
+
+    /**
+     * @return immutable, consistent view of the complete layout (SX data,
+     * power, lanbahn data, train numbers), O(1)
+     */
+    public static LayoutState snapshot() {
+        return LayoutState.current();
     }
 
     public static boolean getActualPower() {
@@ -130,7 +294,12 @@ public class SXData {
 
     /** feedback from interface received about the actual power state */    
     public static void setActualPower(boolean onOff) {
-        actualPower = onOff;
+        if (actualPower != onOff) {
+            actualPower = onOff;
+            LayoutState.powerChanged();
+            History.record(History.POWER, 0, onOff ? 1 : 0);
+            ChangeBus.firePowerChanged(onOff);
+        }
     }
 
     public static boolean isPowerToBe() {
@@ -141,7 +310,7 @@ public class SXData {
      *  controlling interface.
      *  power control is only started after this function is called at least once
      */    
-    public static synchronized void setPowerToBe(boolean onOff) {
+    public static void setPowerToBe(boolean onOff) {
         powerToBe = onOff;
         powerControlEnabled = true;   
     }
@@ -54,35 +54,8 @@ public class SXUtils {
         return d & ~(1 << (bit - 1));  // selectrix sxbit !!! 1 ..8
     }
 
-    synchronized static public void setBitSxData(int addr, int bit, boolean writeFlag) {
-        debug("setBit addr="+addr+" bit="+bit);
-        SXData.update(addr,  setBit(SXData.get(addr), bit), writeFlag);
-        debug("sxData["+addr+"]="+SXData.get(addr));
-    }
-
-    synchronized static public void updateBitSxData(int addr, int bit, int val, boolean writeFlag) {
-        debug("setBit addr="+addr+" bit="+bit);
-        SXData.update(addr,  setBit(SXData.get(addr), bit), writeFlag);
-        debug("sxData["+addr+"]="+SXData.get(addr));
-    }
-    
-    synchronized static public void update2BitSxData(int addr, int bit1, int val, boolean writeFlag) {
-        debug("update2Bits addr="+addr+" bits="+bit1+"/"+(bit1+1) + " d="+val);
-        int d = SXData.get(addr);
-        val = val & 0x03;  // mask 2 bits
-        d = (d & ~(3 << (bit1-1))) | (val << (bit1-1));
-        SXData.update(addr, d, writeFlag);
-        debug("sxData["+addr+"]="+SXData.get(addr));
-    }
-    
-    synchronized static public void clearBitSxData(int addr, int bit, boolean writeFlag) {
-        debug("clearBit addr="+addr+" bit="+bit);
-        SXData.update(addr, clearBit(SXData.get(addr),bit), writeFlag);
-        debug("sxData["+addr+"]="+SXData.get(addr));
-    }
-    
     /**
-     * is the address a valid SX0 or SX1 address
+     * is the address a valid SX address (on one bus, SX0 or SX1)
      *
      * @param address
      * @return true or false
@@ -112,14 +85,87 @@ public class SXUtils {
         return false;
     }
 
-    public static SXAddrAndBits lbAddr2SX(int lbAddr) {
-        if (lbAddr == INVALID_INT) {
-            return null;
+    /**
+     * is ch a valid channel index of SXData (SX0 or SX1)
+     */
+    public static boolean isValidSXChannel(int ch) {
+        return ((ch >= 0) && (ch < SXCHANNELS));
+    }
+
+    /**
+     * @return channel index in SXData of the sx address addr on bus (0 or 1)
+     */
+    public static int sxChannel(int bus, int addr) {
+        return bus * (SXMAX + 1) + addr;
+    }
+
+    /**
+     * @return bus (0 or 1) of the channel index ch
+     */
+    public static int sxBus(int ch) {
+        return ch / (SXMAX + 1);
+    }
+
+    /**
+     * @return sx address (0..111) on its bus of the channel index ch
+     */
+    public static int sxAddr(int ch) {
+        return ch % (SXMAX + 1);
+    }
+
+    /**
+     * @return "44" for SX0 channels and "1:44" for SX1 channels
+     */
+    public static String sxChannelToString(int ch) {
+        if (sxBus(ch) == 0) {
+            return Integer.toString(ch);
+        }
+        return sxBus(ch) + ":" + sxAddr(ch);
+    }
+
+    /**
+     * SX channel index of a lanbahn address: 10..1118 are mapped to SX0
+     * (sxaddr*10 + bit), 10010..11118 to SX1 (LBSX1 + sxaddr*10 + bit)
+     *
+     * @return channel index or INVALID_INT if the address is not mapped to
+     * an SX bit
+     */
+    public static int lbAddr2SXChannel(int lbAddr) {
+        int bus = 0;
+        if ((lbAddr >= LBSX1) && (lbAddr <= LBMAX_SX1)) {
+            bus = 1;
+            lbAddr -= LBSX1;
+        } else if ((lbAddr < 0) || (lbAddr >= LBPURE)) {
+            return INVALID_INT;
         }
         int a = lbAddr / 10;
         int b = lbAddr % 10;
         if (isValidSXAddress(a) && isValidSXBit(b)) {
-            return new SXAddrAndBits(a, b, 1);  // TODO generalize for multibit addresses
+            return sxChannel(bus, a);
+        }
+        return INVALID_INT;
+    }
+
+    /**
+     * @return lanbahn address of bit "bit" of the SX channel ch (SX0 or SX1)
+     */
+    public static int sxChannel2LbAddr(int ch, int bit) {
+        int lbAddr = sxAddr(ch) * 10 + bit;
+        if (sxBus(ch) == 1) {
+            lbAddr += LBSX1;
+        }
+        return lbAddr;
+    }
+
+    public static SXAddrAndBits lbAddr2SX(int lbAddr) {
+        if (lbAddr == INVALID_INT) {
+            return null;
+        }
+        int ch = lbAddr2SXChannel(lbAddr);
+        if (ch != INVALID_INT) {
+            SXAddrAndBits sx = new SXAddrAndBits(sxAddr(ch), lbAddr % 10, 1);  // TODO generalize for multibit addresses
+            sx.bus = sxBus(ch);
+            return sx;
         } else {
             return null;
         }
@@ -0,0 +1,156 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import static de.blankedv.sx4.Constants.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * channels to be written to (or read from) the SX interface
+ *
+ * per channel there is only a "dirty" bit and the last value to write, i.e.
+ * several writes to the same channel before the interface drains the
+ * scheduler result in a single serial write (last value wins). Producers never
+ * block and never allocate objects.
+ *
+ * the interface drains all pending channels in one pass per cycle with
+ * pollWrite() / pollRead()
+ *
+ * @author mblank
+ */
+public class SXWriteScheduler {
+
+    private static final int N_WORDS = (SXCHANNELS + 63) / 64;
+
+    private final AtomicLongArray writeBits = new AtomicLongArray(N_WORDS);
+    private final AtomicIntegerArray values = new AtomicIntegerArray(SXCHANNELS);
+    private final AtomicLongArray readBits = new AtomicLongArray(N_WORDS);
+    private final AtomicBoolean powerRead = new AtomicBoolean(false);
+
+    /**
+     * schedule writing "data" to channel "addr"
+     */
+    public void write(int addr, int data) {
+        if ((addr < 0) || (addr >= SXCHANNELS)) {
+            return;
+        }
+        values.set(addr, data);   // store value BEFORE marking dirty
+        setBit(writeBits, addr);
+    }
+
+    /**
+     * schedule a read request for channel "addr" (only needed for interfaces
+     * which do not deliver all channels automatically)
+     */
+    public void read(int addr) {
+        if ((addr < 0) || (addr >= SXCHANNELS)) {
+            return;
+        }
+        setBit(readBits, addr);
+    }
+
+    public void requestPowerRead() {
+        powerRead.set(true);
+    }
+
+    /**
+     * @return the next channel to write (and clears its dirty bit) or
+     * INVALID_INT if there is nothing to write. The value to write must be
+     * fetched with getValue() AFTER this call.
+     */
+    public int pollWrite() {
+        return pollBit(writeBits);
+    }
+
+    /**
+     * @return the value to write for channel addr
+     */
+    public int getValue(int addr) {
+        return values.get(addr);
+    }
+
+    /**
+     * @return the next channel to read (and clears its bit) or INVALID_INT
+     */
+    public int pollRead() {
+        return pollBit(readBits);
+    }
+
+    public boolean pollPowerRead() {
+        return powerRead.getAndSet(false);
+    }
+
+    /**
+     * @return number of channels waiting to be written
+     */
+    public int pendingWrites() {
+        int n = 0;
+        for (int w = 0; w < N_WORDS; w++) {
+            n += Long.bitCount(writeBits.get(w));
+        }
+        return n;
+    }
+
+    public boolean isEmpty() {
+        for (int w = 0; w < N_WORDS; w++) {
+            if ((writeBits.get(w) != 0) || (readBits.get(w) != 0)) {
+                return false;
+            }
+        }
+        return !powerRead.get();
+    }
+
+    /**
+     * discard all pending writes and reads
+     */
+    public void clear() {
+        for (int w = 0; w < N_WORDS; w++) {
+            writeBits.set(w, 0);
+            readBits.set(w, 0);
+        }
+        powerRead.set(false);
+    }
+
+    private static void setBit(AtomicLongArray bits, int addr) {
+        int w = addr >> 6;
+        long mask = 1L << (addr & 63);
+        long old;
+        do {
+            old = bits.get(w);
+            if ((old & mask) != 0) {
+                return;  // already pending
+            }
+        } while (!bits.compareAndSet(w, old, old | mask));
+    }
+
+    private static int pollBit(AtomicLongArray bits) {
+        for (int w = 0; w < N_WORDS; w++) {
+            long v = bits.get(w);
+            while (v != 0) {
+                long lowest = Long.lowestOneBit(v);
+                if (bits.compareAndSet(w, v, v & ~lowest)) {
+                    return (w << 6) + Long.numberOfTrailingZeros(lowest);
+                }
+                v = bits.get(w);
+            }
+        }
+        return INVALID_INT;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * the (default) ASCII SXnet protocol, every message line is terminated with
+ * '\n'. In batch mode several messages are combined into one line, separated
+ * by ';' - a new line is started after ~60 chars.
+ *
+ * @author mblank
+ */
+public class SXnetAsciiEncoder extends SXnetEncoder {
+
+    private static final int MAX_LINE = 60;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private int lineStart = 0;
+
+    public SXnetAsciiEncoder(SXnetClient.Connection conn, boolean batch) {
+        super(conn, batch);
+    }
+
+    private void begin() {
+        if (len > lineStart) {
+            put(';');
+        }
+    }
+
+    private void end() {
+        if (!batch) {
+            flush();
+        } else if ((len - lineStart) > MAX_LINE) {
+            put('\n');
+            lineStart = len;
+        }
+    }
+
+    private void putChannel(int ch) {
+        if (SXUtils.sxBus(ch) != 0) {
+            putDecimal(SXUtils.sxBus(ch));
+            put(':');
+        }
+        putDecimal(SXUtils.sxAddr(ch));
+    }
+
+    @Override
+    public void sx(int ch, int data) {
+        begin();
+        putAscii("X ");
+        putChannel(ch);
+        put(' ');
+        putDecimal(data);
+        end();
+    }
+
+    @Override
+    public void loco(int ch, int data) {
+        begin();
+        putAscii("XLOCO ");
+        putDecimal(ch);
+        put(' ');
+        putDecimal(data);
+        end();
+    }
+
+    @Override
+    public void lanbahn(int addr, int data) {
+        begin();
+        putAscii("XL ");
+        putDecimal(addr);
+        put(' ');
+        putDecimal(data);
+        end();
+    }
+
+    @Override
+    public void train(int addr, int train) {
+        begin();
+        putAscii("XTRAIN ");
+        putDecimal(addr);
+        put(' ');
+        putDecimal(train);
+        end();
+    }
+
+    @Override
+    public void power(boolean on) {
+        begin();
+        putAscii(on ? "XPOWER 1" : "XPOWER 0");
+        end();
+    }
+
+    @Override
+    public void connState(int state) {
+        begin();
+        putAscii("XCONN ");
+        putDecimal(state);
+        end();
+    }
+
+    @Override
+    public void routing(int state) {
+        begin();
+        putAscii("ROUTING ");
+        putDecimal(state);
+        end();
+    }
+
+    @Override
+    public void seq(long seq) {
+        begin();
+        putAscii("SEQ ");
+        putAscii(Long.toString(seq));
+        end();
+    }
+
+    @Override
+    public void dump(boolean power, int[] sx, int nSX, int[] lbAddr, int[] lbData, int nLb) {
+        if (len > lineStart) {
+            put('\n');  // always on a line of its own
+        }
+        ensure(16 + 2 * nSX);
+        putAscii(power ? "XDUMP 1 " : "XDUMP 0 ");
+        for (int i = 0; i < nSX; i++) {
+            buf[len++] = (byte) HEX[(sx[i] >> 4) & 0x0F];
+            buf[len++] = (byte) HEX[sx[i] & 0x0F];
+        }
+        for (int i = 0; i < nLb; i++) {
+            put(' ');
+            putDecimal(lbAddr[i]);
+            put(' ');
+            putDecimal(lbData[i]);
+        }
+        put('\n');
+        lineStart = len;
+        if (!batch) {
+            flush();
+        }
+    }
+
+    @Override
+    public void ok() {
+        text("OK");
+    }
+
+    @Override
+    public void error() {
+        text("ERROR");
+    }
+
+    @Override
+    public void text(String msg) {
+        if (len > lineStart) {
+            put('\n');  // always on a line of its own
+        }
+        byte[] b = msg.getBytes(StandardCharsets.UTF_8);
+        ensure(b.length + 1);
+        System.arraycopy(b, 0, buf, len, b.length);
+        len += b.length;
+        put('\n');
+        lineStart = len;
+        if (!batch) {
+            flush();
+        }
+    }
+
+    @Override
+    public byte[] take() {
+        if (len > lineStart) {
+            put('\n');
+        }
+        lineStart = 0;
+        return super.take();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * compact binary variant of the SXnet protocol, selected by the client with
+ * the line "BINARY" (see SXnetClient)
+ *
+ * every frame: length (2 bytes, big endian, = number of following bytes),
+ * opcode (1 byte), payload. Addresses and channels are 2 bytes (big endian),
+ * the channel number is the SX4 channel index (bus * 112 + address).
+ *
+ * @author mblank
+ */
+public class SXnetBinaryEncoder extends SXnetEncoder {
+
+    // client => server, same semantics as the ASCII commands
+    public static final int CMD_S = 0x01;         // ch(2) data(1)
+    public static final int CMD_R = 0x02;         // ch(2)
+    public static final int CMD_SET = 0x03;       // lbaddr(2) data(1)
+    public static final int CMD_READ = 0x04;      // lbaddr(2)
+    public static final int CMD_SETTRAIN = 0x05;  // addr(2) train(2)
+    public static final int CMD_READTRAIN = 0x06; // addr(2)
+    public static final int CMD_REQ = 0x07;       // route(2) data(1)
+    public static final int CMD_SETPOWER = 0x08;  // data(1)
+    public static final int CMD_READPOWER = 0x09; // -
+    public static final int CMD_SETLOCO = 0x0A;   // ch(2) data(1)
+    public static final int CMD_READLOCO = 0x0B;  // ch(2)
+    public static final int CMD_RESUME = 0x0C;    // seq(8)
+    public static final int CMD_SXM = 0x0D;       // {ch(2) data(1)} ...
+    public static final int CMD_SETM = 0x0E;      // {lbaddr(2) data(1)} ...
+    public static final int CMD_DUMP = 0x0F;      // -
+    public static final int CMD_TEXT = 0x7F;      // any ASCII command line
+
+    // server => client
+    public static final int MSG_X = 0x81;         // ch(2) data(1)
+    public static final int MSG_XL = 0x82;        // lbaddr(2) data(1)
+    public static final int MSG_XTRAIN = 0x83;    // addr(2) train(2)
+    public static final int MSG_XPOWER = 0x84;    // data(1)
+    public static final int MSG_XCONN = 0x85;     // data(1)
+    public static final int MSG_ROUTING = 0x86;   // data(1)
+    public static final int MSG_XLOCO = 0x87;     // ch(2) data(1)
+    public static final int MSG_OK = 0x88;        // -
+    public static final int MSG_ERROR = 0x89;     // -
+    public static final int MSG_SEQ = 0x8A;       // seq(8)
+    public static final int MSG_DUMP = 0x8B;      // power(1) n(2) data(n) {lbaddr(2) data(1)} ...
+    public static final int MSG_TEXT = 0xFF;      // any other ASCII message
+
+    public SXnetBinaryEncoder(SXnetClient.Connection conn, boolean batch) {
+        super(conn, batch);
+    }
+
+    private void frame(int op, int payloadLength) {
+        ensure(3 + payloadLength);
+        int n = payloadLength + 1;
+        buf[len++] = (byte) (n >> 8);
+        buf[len++] = (byte) n;
+        buf[len++] = (byte) op;
+    }
+
+    private void put16(int v) {
+        buf[len++] = (byte) (v >> 8);
+        buf[len++] = (byte) v;
+    }
+
+    private void end() {
+        if (!batch) {
+            flush();
+        }
+    }
+
+    private void addrAndByte(int op, int addr, int data) {
+        frame(op, 3);
+        put16(addr);
+        buf[len++] = (byte) data;
+        end();
+    }
+
+    private void oneByte(int op, int data) {
+        frame(op, 1);
+        buf[len++] = (byte) data;
+        end();
+    }
+
+    @Override
+    public void sx(int ch, int data) {
+        addrAndByte(MSG_X, ch, data);
+    }
+
+    @Override
+    public void loco(int ch, int data) {
+        addrAndByte(MSG_XLOCO, ch, data);
+    }
+
+    @Override
+    public void lanbahn(int addr, int data) {
+        addrAndByte(MSG_XL, addr, data);
+    }
+
+    @Override
+    public void train(int addr, int train) {
+        frame(MSG_XTRAIN, 4);
+        put16(addr);
+        put16(train);
+        end();
+    }
+
+    @Override
+    public void power(boolean on) {
+        oneByte(MSG_XPOWER, on ? 1 : 0);
+    }
+
+    @Override
+    public void connState(int state) {
+        oneByte(MSG_XCONN, state);
+    }
+
+    @Override
+    public void routing(int state) {
+        oneByte(MSG_ROUTING, state);
+    }
+
+    @Override
+    public void seq(long seq) {
+        frame(MSG_SEQ, 8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buf[len++] = (byte) (seq >> shift);
+        }
+        end();
+    }
+
+    @Override
+    public void dump(boolean power, int[] sx, int nSX, int[] lbAddr, int[] lbData, int nLb) {
+        frame(MSG_DUMP, 3 + nSX + 3 * nLb);  // < 0xFFFF, all lanbahn addresses: 3 * 8880
+        buf[len++] = (byte) (power ? 1 : 0);
+        put16(nSX);
+        for (int i = 0; i < nSX; i++) {
+            buf[len++] = (byte) sx[i];
+        }
+        for (int i = 0; i < nLb; i++) {
+            put16(lbAddr[i]);
+            buf[len++] = (byte) lbData[i];
+        }
+        end();
+    }
+
+    @Override
+    public void ok() {
+        frame(MSG_OK, 0);
+        end();
+    }
+
+    @Override
+    public void error() {
+        frame(MSG_ERROR, 0);
+        end();
+    }
+
+    @Override
+    public void text(String msg) {
+        byte[] b = msg.getBytes(StandardCharsets.UTF_8);
+        int n = Math.min(b.length, 0xFFFE);
+        frame(MSG_TEXT, n);
+        System.arraycopy(b, 0, buf, len, n);
+        len += n;
+        end();
+    }
+}
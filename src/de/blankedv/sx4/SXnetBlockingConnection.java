@@ -0,0 +1,280 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import static com.esotericsoftware.minlog.Log.*;
+import static de.blankedv.sx4.SX4.*;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * blocking connection of one SXnet client for the "thread per session" mode
+ * of the SXnetServer (option -n): one thread reads the commands, a second
+ * thread pushes the updates. Both are virtual threads on Java 21+.
+ *
+ * a client which does not read blocks only its own pusher thread, the
+ * updates are collected meanwhile (only the latest value per address is
+ * sent). A write which is blocked for longer than
+ * SXnetClient.SLOW_CLIENT_MSECS cannot be aborted: the watchdog of
+ * SXnetClient closes the connection, independent of disconnectSlowClients.
+ * A reply which has to wait that long for the blocked write is discarded
+ * (and the client resynced) or the client is disconnected.
+ *
+ * @author mblank
+ */
+class SXnetBlockingConnection implements SXnetClient.Connection {
+
+
+    private final SXnetServer server;
+    private final SocketChannel ch;
+    private final String remote;
+    // a lock instead of "synchronized", a virtual thread blocked in a
+    // synchronized write would pin its carrier thread
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private SXnetClient client;
+
+    private volatile Thread pusherThread;
+    private final AtomicBoolean pushPending = new AtomicBoolean(true);
+    private volatile boolean closed = false;
+    private volatile int writing = 0;  // bytes of the write in progress
+    private volatile long writeSince = 0;  // start of the write in progress
+    private boolean binary = false;  // binary protocol, see SXnetBinaryEncoder
+    private byte[] line = new byte[1024];  // grows up to MAX_LINE
+
+    /**
+     * @param ch blocking channel - written directly, on Java 8 the streams of
+     * its socket share one lock, a write would wait for the end of the read
+     */
+    SXnetBlockingConnection(SXnetServer server, SocketChannel ch) throws IOException {
+        this.server = server;
+        this.ch = ch;
+        this.remote = ch.getRemoteAddress().toString();
+        ch.socket().setTcpNoDelay(true);
+    }
+
+    void setClient(SXnetClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remote;
+    }
+
+    /**
+     * session thread: read commands until the connection is closed
+     */
+    void readLoop() {
+        client.start();
+        SXnetServer.startThread(this::pushLoop, "sxnet" + client.getSession() + "-pusher");
+        try {
+            // no Reader, the input switches from lines to binary frames
+            InputStream in = new BufferedInputStream(ch.socket().getInputStream());
+            while (running && !closed && (binary ? readFrame(in) : readLine(in))) {
+                // next command
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                info("sxnet" + client.getSession() + " connection lost: " + e.getMessage());
+            }
+        }
+        close();
+        server.removeClient(client);
+        client.stop();
+    }
+
+    // one line ('\n', a '\r' is ignored), false at end of stream
+    private boolean readLine(InputStream in) throws IOException {
+        int n = 0;
+        boolean tooLong = false;
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return false;
+            } else if (b != '\r') {
+                if (n == line.length) {
+                    grow(n + 1);
+                }
+                if (n < line.length) {
+                    line[n++] = (byte) b;
+                } else {
+                    tooLong = true;
+                }
+            }
+        }
+        if (!tooLong) {
+            client.handleLine(line, 0, n);
+        } else {
+            client.lineTooLong();
+        }
+        return true;
+    }
+
+    // one frame (2 bytes length + content), false at end of stream
+    private boolean readFrame(InputStream in) throws IOException {
+        int hi = in.read();
+        int lo = in.read();
+        if (lo < 0) {
+            return false;
+        }
+        int length = (hi << 8) | lo;
+        grow(length);
+        int n = 0;
+        while (n < length) {
+            int r = (n < line.length)
+                    ? in.read(line, n, Math.min(length, line.length) - n)
+                    : (int) in.skip(length - n);
+            if (r <= 0) {
+                if (in.read() < 0) {
+                    return false;
+                }
+                r = 1;  // skip() returned 0, one byte has been read
+            }
+            n += r;
+        }
+        if (length <= line.length) {
+            client.handleFrame(line, 0, length);
+        } else {
+            client.lineTooLong();
+        }
+        return true;
+    }
+
+    // the line buffer grows up to MAX_LINE
+    private void grow(int length) {
+        if ((length > line.length) && (line.length < SXnetClient.MAX_LINE)) {
+            int size = line.length;
+            while (size < length) {
+                size *= 2;
+            }
+            line = Arrays.copyOf(line, Math.min(size, SXnetClient.MAX_LINE));
+        }
+    }
+
+    /**
+     * called by the session thread (while handling the handshake line)
+     */
+    @Override
+    public void binaryMode() {
+        binary = true;
+    }
+
+    // pusher thread: sleeps until there are changes (or keepalive is due)
+    private void pushLoop() {
+        pusherThread = Thread.currentThread();
+        while (running && !closed) {
+            pushPending.set(false);  // reset BEFORE pushing, see wakeUp
+            long wait = client.pushUpdates();
+            if (!pushPending.get() && (wait > 0)) {
+                LockSupport.parkNanos(this, wait * 1000000L);
+            }
+        }
+    }
+
+    void wakeUp() {
+        pushPending.set(true);
+        Thread t = pusherThread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    @Override
+    public void send(byte[] b) {
+        try {
+            if (!writeLock.tryLock(SXnetClient.SLOW_CLIENT_MSECS, TimeUnit.MILLISECONDS)) {
+                slowClient();
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            if (closed) {
+                return;
+            }
+            writing = b.length;
+            writeSince = System.currentTimeMillis();
+            ByteBuffer buf = ByteBuffer.wrap(b);
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+        } catch (IOException ex) {
+            error("sxnet" + client.getSession() + " write error: " + ex.getMessage());
+            close();
+        } finally {
+            writing = 0;
+            writeSince = 0;
+            writeLock.unlock();
+        }
+        client.outputDrained();
+    }
+
+    private void slowClient() {
+        if (disconnectSlowClients) {
+            info("sxnet" + client.getSession() + " too slow, disconnecting");
+            close();  // also ends the blocked write
+        } else {
+            info("sxnet" + client.getSession() + " too slow, message discarded, resync");
+            client.resync();
+        }
+    }
+
+    @Override
+    public int getQueuedBytes() {
+        return writing;
+    }
+
+    @Override
+    public long getBlockedSince() {
+        return writeSince;
+    }
+
+    /**
+     * called by the watchdog: a blocked write cannot be aborted, the
+     * connection is closed (also if slow clients are resynced)
+     */
+    @Override
+    public void writeBlocked() {
+        info("sxnet" + client.getSession() + " does not read, disconnecting");
+        close();  // ends the blocked write
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            ch.close();  // ends the read loop
+        } catch (IOException ex) {
+            error("sxnet close error: " + ex.getMessage());
+        }
+        wakeUp();  // ends the pusher loop
+    }
+}
@@ -0,0 +1,247 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import static de.blankedv.sx4.Constants.*;
+import de.blankedv.sx4.timetable.PanelElement;
+import static de.blankedv.sx4.timetable.Vars.panelElements;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * encode once, send to all: the changes of the layout (SX channels, lanbahn
+ * data, train numbers) are collected ONCE for all SXnet clients into a chain
+ * of immutable batches. Every batch is encoded only once per protocol (ASCII
+ * or binary) into a byte array, which is sent unchanged to all clients
+ * without a subscription (= most clients) - the cost of an update does not
+ * grow with the number of clients.
+ *
+ * every client remembers the last batch it has sent and follows the "next"
+ * links up to the latest batch. Clients with a subscription (SUB) check their
+ * changes themselves, see SXnetClient.
+ *
+ * every batch has a global sequence number. The epochs of the last LOG_SIZE
+ * batches are kept, a reconnecting client can resume with the changes since
+ * the last sequence number it has received (RESUME command). The sequence
+ * numbers start with the start time of the program (msecs), i.e. numbers of
+ * an earlier run are always older than the log.
+ *
+ * @author mblank
+ */
+public class SXnetBroadcast {
+
+    /**
+     * the changes between two epochs, immutable (except for the lazily
+     * encoded bytes and the link to the next batch)
+     */
+    public static final class Batch {
+
+        final long seq;
+        final long sxEpoch;
+        final long lanbahnEpoch;
+        private final int[] sx;  // channel << 8 | data
+        private final int[] lanbahn;  // addr << 8 | data
+        private final int[] trains;  // addr, train, addr, train ...
+        private final byte[][] encoded = new byte[8][];  // [binary][withSX1][withSeq]
+        private volatile Batch next = null;
+
+        private Batch(long seq, long sxEpoch, long lanbahnEpoch, int[] sx, int[] lanbahn, int[] trains) {
+            this.seq = seq;
+            this.sxEpoch = sxEpoch;
+            this.lanbahnEpoch = lanbahnEpoch;
+            this.sx = sx;
+            this.lanbahn = lanbahn;
+            this.trains = trains;
+        }
+
+        public Batch getNext() {
+            return next;
+        }
+
+        /**
+         * @param binary protocol of the client
+         * @param withSX1 include the changes of the SX1 channels
+         * @param withSeq add the sequence number ("SEQ &lt;n&gt;")
+         * @return the encoded changes, must not be modified
+         */
+        public synchronized byte[] getBytes(boolean binary, boolean withSX1, boolean withSeq) {
+            int i = (binary ? 4 : 0) + (withSX1 ? 2 : 0) + (withSeq ? 1 : 0);
+            if (encoded[i] == null) {
+                SXnetEncoder e = binary ? new SXnetBinaryEncoder(null, true)
+                        : new SXnetAsciiEncoder(null, true);
+                for (int v : sx) {
+                    int ch = v >>> 8;
+                    if (withSX1 || (SXUtils.sxBus(ch) == 0)) {
+                        e.sx(ch, v & 0xFF);
+                    }
+                }
+                for (int v : lanbahn) {
+                    e.lanbahn(v >>> 8, v & 0xFF);
+                }
+                for (int k = 0; k < trains.length; k += 2) {
+                    e.train(trains[k], trains[k + 1]);
+                }
+                if (withSeq) {
+                    e.seq(seq);
+                }
+                encoded[i] = e.take();
+            }
+            return encoded[i];
+        }
+    }
+
+    private static final int LOG_SIZE = 4096;  // power of 2
+
+    // all guarded by the class lock
+    private static Batch latest = null;
+    private static long nextSeq = System.currentTimeMillis();
+    // epochs of the last LOG_SIZE batches, index = seq % LOG_SIZE
+    private static final long[] logSeq = new long[LOG_SIZE];
+    private static final long[] logSXEpoch = new long[LOG_SIZE];
+    private static final long[] logLanbahnEpoch = new long[LOG_SIZE];
+    private static long checkedVersion = -1;
+    private static final long[] changedChannels = new long[SXCHANNELS / 64 + 1];
+    private static final long[] changedLanbahn = new long[LBMAX / 64 + 1];
+    private static final HashMap<PanelElement, Integer> trainCopy = new HashMap<>(500);
+
+    /**
+     * @return the latest batch, a new one is created if the layout has been
+     * changed since the last call
+     */
+    public static synchronized Batch latest() {
+        long version = SXData.snapshot().getVersion();  // BEFORE the epochs
+        if (latest == null) {
+            // start of the chain, without changes
+            long sxEpoch = SXData.getEpoch();
+            long lbEpoch = LanbahnData.getEpoch();
+            collectTrains(SXData.snapshot(), null);
+            latest = log(new Batch(nextSeq++, sxEpoch, lbEpoch, new int[0], new int[0], new int[0]));
+            checkedVersion = version;
+            return latest;
+        }
+        if ((version == checkedVersion) && (SXData.getEpoch() == latest.sxEpoch)
+                && (LanbahnData.getEpoch() == latest.lanbahnEpoch)) {
+            return latest;  // nothing changed (the epochs are incremented AFTER the version)
+        }
+        long sxHead = SXData.getEpoch();
+        long lbHead = LanbahnData.getEpoch();
+        long sxEpoch = SXData.changedSince(latest.sxEpoch, changedChannels);
+        long lbEpoch = LanbahnData.changedSince(latest.lanbahnEpoch, changedLanbahn);
+        // a change which is just being stored is collected in the next call
+        checkedVersion = ((sxEpoch >= sxHead) && (lbEpoch >= lbHead)) ? version : -1;
+        // snapshot taken AFTER the epochs => contains all collected changes
+        LayoutState s = SXData.snapshot();
+
+        int n = 0;
+        int[] sx = new int[bitCount(changedChannels)];
+        for (int w = 0; w < changedChannels.length; w++) {
+            long bits = changedChannels[w];
+            while (bits != 0) {
+                int ch = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= (bits - 1);  // clear lowest bit
+                if (SXUtils.sxAddr(ch) <= SXMAX_USED) {
+                    sx[n++] = (ch << 8) | (s.get(ch) & 0xFF);
+                    Trace.notified(ch);
+                }
+            }
+            changedChannels[w] = 0L;
+        }
+        sx = Arrays.copyOf(sx, n);
+
+        n = 0;
+        int[] lb = new int[bitCount(changedLanbahn)];
+        for (int w = 0; w < changedLanbahn.length; w++) {
+            long bits = changedLanbahn[w];
+            while (bits != 0) {
+                int addr = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= (bits - 1);
+                lb[n++] = (addr << 8) | (s.getLanbahn(addr) & 0xFF);
+            }
+            changedLanbahn[w] = 0L;
+        }
+
+        int[] trains = collectTrains(s, new int[64]);
+
+        if ((sx.length == 0) && (lb.length == 0) && (trains.length == 0)
+                && (sxEpoch == latest.sxEpoch) && (lbEpoch == latest.lanbahnEpoch)) {
+            return latest;  // power only
+        }
+        Batch b = log(new Batch(nextSeq++, sxEpoch, lbEpoch, sx, lb, trains));
+        latest.next = b;
+        latest = b;
+        Flight.batch(b.seq, sx.length, lb.length, trains.length / 2, SXnetClient.getClients().size());
+        return b;
+    }
+
+    /**
+     * runs a bulk change of the layout (SXM / SETM): no batch is created
+     * while it is running, i.e. all its changes are sent to the clients with
+     * the same update
+     */
+    public static synchronized void atomically(Runnable change) {
+        change.run();
+    }
+
+    private static Batch log(Batch b) {
+        int i = (int) (b.seq & (LOG_SIZE - 1));
+        logSeq[i] = b.seq;
+        logSXEpoch[i] = b.sxEpoch;
+        logLanbahnEpoch[i] = b.lanbahnEpoch;
+        return b;
+    }
+
+    /**
+     * @return the SXData and LanbahnData epochs of the batch with sequence
+     * number seq, null if this batch is no longer (or not yet) in the log
+     */
+    public static synchronized long[] getEpochs(long seq) {
+        int i = (int) (seq & (LOG_SIZE - 1));
+        if ((latest == null) || (logSeq[i] != seq)) {
+            return null;
+        }
+        return new long[]{logSXEpoch[i], logLanbahnEpoch[i]};
+    }
+
+    private static int bitCount(long[] bits) {
+        int n = 0;
+        for (long w : bits) {
+            n += Long.bitCount(w);
+        }
+        return n;
+    }
+
+    // changed train numbers of the sensors (addr, train, ...), updates trainCopy
+    private static int[] collectTrains(LayoutState s, int[] out) {
+        int n = 0;
+        for (PanelElement pe : panelElements) {
+            if (!pe.isSensor()) {
+                continue;
+            }
+            Integer t = s.getTrain(pe);
+            Integer old = trainCopy.put(pe, t);
+            if ((out != null) && !t.equals(old)) {
+                if ((n + 2) > out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                out[n++] = pe.getAdr();
+                out[n++] = t;
+            }
+        }
+        return (out == null) ? null : Arrays.copyOf(out, n);
+    }
+}
@@ -20,133 +20,834 @@ package de.blankedv.sx4;
 import static com.esotericsoftware.minlog.Log.*;
 import static de.blankedv.sx4.Constants.*;
 import static de.blankedv.sx4.SX4.*;
+import static de.blankedv.sx4.SXnetTokenizer.*;
 import de.blankedv.sx4.timetable.CompRoute;
 import de.blankedv.sx4.timetable.Loco;
 import de.blankedv.sx4.timetable.PanelElement;
 import de.blankedv.sx4.timetable.Route;
 import static de.blankedv.sx4.timetable.Vars.allLocos;
 import static de.blankedv.sx4.timetable.Vars.panelElements;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
-import java.util.Scanner;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * hanles one session (=1 mobile device)
+ *
+ * independent of the network transport: the received lines are passed to
+ * handleLine() (binary frames to handleFrame()), all messages are encoded by
+ * an SXnetEncoder and sent via the Connection. The updates are pushed by the
+ * UpdatePusher, which is driven by the server (one pusher thread for all
+ * sessions).
+ *
+ * the client can switch to the binary protocol with the line "BINARY", see
+ * SXnetBinaryEncoder.
  */
-public class SXnetClient implements Runnable {
+public class SXnetClient {
 
-    private static int session_counter = 0;  // class variable !
-    private String lastRes = "";
-    private long lastSent = 0;
+    /**
+     * network connection of a session
+     */
+    public interface Connection {
+
+        /**
+         * send encoded message(s), must not block
+         */
+        void send(byte[] data);
+
+        /**
+         * the following input consists of binary frames instead of lines
+         */
+        void binaryMode();
+
+        /**
+         * @return number of bytes sent, but not yet written to the network
+         */
+        int getQueuedBytes();
+
+        /**
+         * @return time (System.currentTimeMillis) since which output is
+         * waiting to be written, 0 if all output has been written
+         */
+        long getBlockedSince();
+
+        /**
+         * the output has been waiting for more than SLOW_CLIENT_MSECS, the
+         * client does not read: apply the slow client policy
+         */
+        void writeBlocked();
+
+        void close();
+
+        String getRemoteAddress();
+    }
 
-    private int sn; // session number
-    private final Socket incoming;
-    private PrintWriter out;
+    private static final AtomicInteger session_counter = new AtomicInteger(0);  // class variable !
+    // all running sessions, for the metrics
+    private static final CopyOnWriteArrayList<SXnetClient> clients = new CopyOnWriteArrayList<>();
+
+    private final int sn; // session number
+    private final Connection conn;
+
+    // replies are encoded by the command thread, updates by the pusher
+    private SXnetEncoder reply;
+    private final SXnetEncoder asciiUpdates;
+    private SXnetEncoder binaryUpdates = null;
+    private volatile boolean binary = false;
+    // a lock instead of synchronized: a virtual thread blocked in a write
+    // does not pin its carrier thread
+    private final ReentrantLock pushLock = new ReentrantLock();
 
     // list of channels which are of interest for this device
-    private final int[] sxDataCopy = new int[SXMAX_USED + 1];
+    private final int[] sxDataCopy = new int[SXCHANNELS];
+    private final long[] changedChannels = new long[SXCHANNELS / 64 + 1];  // bitset of changed channels
+    // SX1 updates are only sent to clients which know about the second bus,
+    // i.e. have used a bus qualified address ("1:44") or an SX1 lanbahn address
+    private volatile boolean sx1Enabled = false;
+    private boolean sx1Sent = false;
+    private long sxEpoch = 0;  // SXData epoch of last update
     private int lastClientConnect = INVALID_INT;
-    private final ConcurrentHashMap<Integer, Integer> oldLanbahnData = new ConcurrentHashMap<>(500);
+    private final long[] changedLanbahn = new long[LBMAX / 64 + 1];  // bitset of changed lanbahn addresses
+    private long lanbahnEpoch = 0;  // LanbahnData epoch of last update
     private final ConcurrentHashMap<PanelElement, Integer> oldTrainNumberData = new ConcurrentHashMap<>(500);
 
+    // last batch of the broadcast sent to this client, null if the client
+    // checks the changes itself (after a SUB command)
+    private SXnetBroadcast.Batch lastBatch = null;
+    // RESUME: send sequence numbers, epochs to resume from
+    private volatile boolean seqEnabled = false;
+    private final AtomicReference<long[]> resumeFrom = new AtomicReference<>(null);
+    private long lastSeq = 0;
+    // the complete state is sent after the first command (or this delay),
+    // a reconnecting client can ask for the changes only (RESUME)
+    private static final long FIRST_PUSH_DELAY_MSECS = 300;
+    private final long startTime = System.currentTimeMillis();
+    private volatile boolean started = false;
+
+    // addresses this client is interested in, ALL until the first SUB command
+    private volatile Subscription subscription = Subscription.ALL;
+    private boolean subscribed = false;  // SUB command received
+
     private boolean powerCopy = false;
     private int lastRouting = INVALID_INT;
     private boolean sendSensorStatus = true;  // send once when client connection starts
 
-    private Thread worker;
+    private final UpdatePusher pusher;
+    private final SXnetTokenizer tokenizer = new SXnetTokenizer();
 
-    protected int tickCounter = 0;
+    private final AtomicLong commands = new AtomicLong(0);
+    private final AtomicLong messagesSent = new AtomicLong(0);
+
+    // power state is sent at least every 4 seconds as "connected" tick
+    static final long KEEPALIVE_MSECS = 4000;
+    // a client whose output is not written for this time is resynced or
+    // disconnected (see disconnectSlowClients)
+    static final long SLOW_CLIENT_MSECS = 5000;
+    private static final AtomicBoolean watchdogStarted = new AtomicBoolean(false);
+    // longer command lines (and binary frames) are discarded with ERROR -
+    // enough for an SXM of all channels of both busses or an SETM of about
+    // 2000 addresses
+    static final int MAX_LINE = 16384;
 
     /**
      * Constructs a handler.
      *
-     * @param sock the incoming socket
+     * @param conn the network connection
+     * @param wakeUp called when there are updates to push
+     */
+    public SXnetClient(Connection conn, Runnable wakeUp) {
+        this.conn = new MeteredConnection(conn);
+        reply = new SXnetAsciiEncoder(this.conn, false);
+        asciiUpdates = new SXnetAsciiEncoder(this.conn, true);
+        Arrays.fill(sxDataCopy, INVALID_INT);
+        Arrays.fill(changedChannels, -1L);  // send all channels once
+        sn = session_counter.getAndIncrement();
+        pusher = new UpdatePusher(wakeUp);
+    }
+
+    public int getSession() {
+        return sn;
+    }
+
+    /**
+     * @return all running sessions
+     */
+    public static List<SXnetClient> getClients() {
+        return clients;
+    }
+
+    /**
+     * @return labels of the per client metrics
+     */
+    String metricLabels() {
+        return "client=\"" + sn + "\",remote=\"" + conn.getRemoteAddress() + "\"";
+    }
+
+    public long getCommands() {
+        return commands.get();
+    }
+
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    /**
+     * @return bytes in the output queue of the connection
      */
-    public SXnetClient(Socket sock) {
-        incoming = sock;
-        for (int i = 0; i < SXMAX_USED + 1; i++) {
-            sxDataCopy[i] = INVALID_INT;
+    public int getQueuedBytes() {
+        return conn.getQueuedBytes();
+    }
+
+    /**
+     * session starts: send welcome string and start listening for changes
+     */
+    public void start() {
+        sendMessage("SXnetServer - client" + sn);  // welcome string
+        ChangeBus.subscribe(pusher);
+        clients.add(this);
+        Metrics.SXNET_CONNECTIONS.inc();
+        if (!watchdogStarted.getAndSet(true)) {
+            Timer watchdog = new Timer("sxnet-watchdog", true);
+            watchdog.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    checkSlowClients();
+                }
+            }, 1000, 1000);
         }
-        sn = session_counter++;
     }
 
+    // the updates are deferred while output is queued, a client which does
+    // not read any more would never reach the queue limit - its output is
+    // checked by the watchdog instead
+    private static void checkSlowClients() {
+        long now = System.currentTimeMillis();
+        for (SXnetClient c : clients) {
+            long since = c.conn.getBlockedSince();
+            if ((since != 0) && ((now - since) > SLOW_CLIENT_MSECS)) {
+                try {
+                    c.conn.writeBlocked();
+                } catch (RuntimeException e) {
+                    error("sxnet" + c.sn + " watchdog error: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * session has ended (connection closed)
+     */
     public void stop() {
-        worker.interrupt();
+        clients.remove(this);
+        ChangeBus.unsubscribe(pusher);
+        info("client" + sn + " disconnected " + conn.getRemoteAddress());
     }
 
     /**
-     * Thread receives messages from one mobile device
-     *
+     * close the connection (at shutdown)
      */
-    public void run() {
-        worker = Thread.currentThread();
+    public void close() {
+        conn.close();
+    }
+
+    /**
+     * handle one line received from the mobile device
+     */
+    public void handleLine(String line) {
+        String msg = line.trim().toUpperCase();
+        if (msg.length() == 0) {
+            return;
+        }
+        if (DEBUG) {
+            debug("sxnet" + sn + " read: " + msg);
+        }
+        long t0 = System.nanoTime();
+        int src = History.enter(History.sxnet(sn));  // all changes done by this client
+        long trace = Trace.begin(t0);
         try {
-            OutputStream outStream = incoming.getOutputStream();
-            out = new PrintWriter(outStream, true /* autoFlush */);
-            InputStream inStream = incoming.getInputStream();
-            Scanner in = new Scanner(inStream);
+            handleCommands(msg);
+        } finally {
+            Trace.end(trace);
+            History.exit(src);
+        }
+        firstCommandDone();
+        Metrics.SXNET_COMMAND_TIME.since(t0);
+    }
 
-            Timer sendUpdatesTimer = new Timer();
-            sendUpdatesTimer.schedule(new SendUpdatesTask(), 500, 200);  // every 200 msecs
+    /**
+     * handle one line directly from the receive buffer: the frequent commands
+     * are tokenized and dispatched without creating Strings (see
+     * SXnetTokenizer), all other commands - and all with invalid parameters,
+     * for the same reply and log - are handled by the String parser
+     */
+    public void handleLine(byte[] b, int off, int len) {
+        int end = off + len;
+        while ((off < end) && ((b[off] & 0xFF) <= ' ')) {
+            off++;
+        }
+        while ((end > off) && ((b[end - 1] & 0xFF) <= ' ')) {
+            end--;
+        }
+        if (off == end) {
+            return;
+        }
+        if (DEBUG) {
+            debug("sxnet" + sn + " read: " + new String(b, off, end - off, StandardCharsets.US_ASCII).toUpperCase());
+        }
+        int last = end;
+        while ((last > off) && (b[last - 1] == ';')) {
+            last--;  // like split(";"): no trailing empty commands
+        }
+        long t0 = System.nanoTime();
+        int src = History.enter(History.sxnet(sn));  // all changes done by this client
+        long trace = Trace.begin(t0);
+        try {
+            int i = off;
+            while (i < last) {
+                i = tokenizer.parse(b, i, last);
+                countCommand();
+                if (!dispatch(tokenizer)) {
+                    handleCommand(new String(b, tokenizer.start, tokenizer.end - tokenizer.start,
+                            StandardCharsets.US_ASCII).trim().toUpperCase());
+                }
+            }
+        } finally {
+            Trace.end(trace);
+            History.exit(src);
+        }
+        firstCommandDone();
+        Metrics.SXNET_COMMAND_TIME.since(t0);
+    }
 
-            sendMessage("SXnetServer - client" + sn);  // welcome string
+    /**
+     * a command line (or binary frame) longer than MAX_LINE has been
+     * discarded by the connection
+     */
+    public void lineTooLong() {
+        error("sxnet" + sn + " line too long, discarded");
+        countCommand();
+        reply.error();
+    }
 
-            while (running && in.hasNextLine()) {
-                String msg = in.nextLine().trim().toUpperCase();
-                if (msg.length() > 0) {
-                    debug("sxnet" + sn + " read: " + msg);
+    private void countCommand() {
+        commands.incrementAndGet();
+        Metrics.SXNET_COMMANDS.inc();
+    }
 
-                    String[] cmds = msg.split(";");  // multiple commands per line possible, separated by semicolon
-                    for (String cmd : cmds) {
-                        handleCommand(cmd.trim());
-                        // sends feedback message  XL 'addr' 'data' (or INVALID_INT) back to mobile device
-                    }
+    /**
+     * the tokenized command, checked like the String parser does
+     *
+     * @return false if the command has to be handled by the String parser
+     */
+    private boolean dispatch(SXnetTokenizer t) {
+        int n = t.nParams;
+        int a, d;
+        switch (t.op) {
+            case OP_READPOWER:
+                readPower();
+                return true;
+            case OP_DUMP:
+                dump();
+                return true;
+            case OP_SETPOWER:
+                if ((n < 1) || (d = byteParam(t, 0)) == INVALID_INT) {
+                    return false;
                 }
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    error("client" + sn + " Thread was interrupted");
+                setPower(d);
+                return true;
+            case OP_S:
+            case OP_SETLOCO:
+                if ((n < 2) || ((a = sxAddrParam(t, 0)) == INVALID_INT)
+                        || ((d = byteParam(t, 1)) == INVALID_INT)) {
+                    return false;
+                }
+                if (t.op == OP_S) {
+                    debug("setSXByteMessage");
+                    setSX(a, d);
+                } else {
+                    debug("setSXLocoMessage");
+                    setLoco(a, d);
+                }
+                return true;
+            case OP_R:
+            case OP_READLOCO:
+                if ((n < 1) || ((a = sxAddrParam(t, 0)) == INVALID_INT)) {
+                    return false;
+                }
+                if (t.op == OP_R) {
+                    readSX(a);
+                } else {
+                    readLoco(a);
+                }
+                return true;
+            case OP_REQ:
+                if ((n < 2) || ((a = lanbahnAddrParam(t, 0)) == INVALID_INT)
+                        || ((d = lanbahnDataParam(t, 1)) == INVALID_INT)) {
+                    return false;
+                }
+                if (DEBUG) {
+                    error("requestRouteMessage");
+                }
+                requestRoute(a, d);
+                return true;
+            case OP_SET:
+                if ((n < 2) || ((a = lanbahnAddrParam(t, 0)) == INVALID_INT)
+                        || ((d = lanbahnDataParam(t, 1)) == INVALID_INT)) {
+                    return false;
+                }
+                info("setLanbahnMessage");
+                setLanbahn(a, d);
+                return true;
+            case OP_READ:
+                if ((n < 1) || ((a = lanbahnAddrParam(t, 0)) == INVALID_INT)) {
+                    return false;
+                }
+                debug("createLanbahnFeedbackMessage");
+                readLanbahn(a);
+                return true;
+            case OP_SETTRAIN:
+                if ((n < 2) || ((a = numberParam(t, 0, LBMAX_SX1)) == INVALID_INT)
+                        || ((d = numberParam(t, 1, 9999)) == INVALID_INT)) {
+                    return false;
                 }
+                info("setLanbahnTrainMessage");
+                setTrain(a, d);
+                return true;
+            case OP_READTRAIN:
+                if ((n < 1) || ((a = numberParam(t, 0, LBMAX_SX1)) == INVALID_INT)) {
+                    return false;
+                }
+                debug("createLanbahnTrainMessage");
+                readTrain(a);
+                return true;
+            case OP_SXM:
+            case OP_SETM:
+                return multiParams(t);
+            default:
+                return false;
+        }
+    }
 
+    // SXM / SETM "<a1> <d1> <a2> <d2> ...", all pairs are checked before any is set
+    private boolean multiParams(SXnetTokenizer t) {
+        int n = t.nParams / 2;
+        if ((n == 0) || ((t.nParams % 2) != 0)) {
+            return false;
+        }
+        int[] addr = new int[n];
+        int[] data = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (t.op == OP_SXM) {
+                addr[i] = sxAddrParam(t, 2 * i);
+                data[i] = byteParam(t, 2 * i + 1);
+            } else {
+                addr[i] = lanbahnAddrParam(t, 2 * i);
+                data[i] = lanbahnDataParam(t, 2 * i + 1);
             }
-            info("client" + sn + " disconnected" + incoming.getRemoteSocketAddress().toString() + "\n");
-            sendUpdatesTimer.cancel();
+            if ((addr[i] == INVALID_INT) || (data[i] == INVALID_INT)) {
+                return false;
+            }
+        }
+        if (t.op == OP_SXM) {
+            setSXMulti(addr, data, n);
+        } else {
+            setLanbahnMulti(addr, data, n);
+        }
+        return true;
+    }
 
-        } catch (IOException e) {
-            error("SXnetServerHandler" + sn + " Error: " + e);
+    // like getByteFromString
+    private static int byteParam(SXnetTokenizer t, int i) {
+        return numberParam(t, i, 255);
+    }
+
+    // like getLanbahnDataFromString
+    private static int lanbahnDataParam(SXnetTokenizer t, int i) {
+        int d = t.value[i];
+        return ((t.bus[i] == NO_BUS) && (d >= LBDATAMIN) && (d <= LBDATAMAX)) ? d : INVALID_INT;
+    }
+
+    // like getNumberFromString and getDataFromString
+    private static int numberParam(SXnetTokenizer t, int i, int max) {
+        int d = t.value[i];
+        return ((t.bus[i] == NO_BUS) && (d >= 0) && (d <= max)) ? d : INVALID_INT;
+    }
+
+    // like getSXAddrFromString
+    private int sxAddrParam(SXnetTokenizer t, int i) {
+        int bus = t.bus[i];
+        int channel = t.value[i];
+        if (((bus != NO_BUS) && (bus >= SXBUSSES))
+                || (channel < SXMIN) || (channel > SXMAX_USED)) {
+            return INVALID_INT;
         }
-        try {
-            incoming.close();
-        } catch (IOException ex) {
-            error("SXnetServerHandler" + sn + " Error: " + ex);
+        if (bus == NO_BUS) {
+            return SXUtils.sxChannel(0, channel);
+        }
+        enableSX1();
+        return SXUtils.sxChannel(bus, channel);
+    }
+
+    // like getLanbahnAddrFromString
+    private int lanbahnAddrParam(SXnetTokenizer t, int i) {
+        int bus = t.bus[i];
+        int lbAddr = t.value[i];
+        if (bus != NO_BUS) {
+            if ((bus == 1) && (lbAddr >= LBMIN) && (lbAddr < LBPURE)) {
+                lbAddr += LBSX1;
+            } else if ((bus != 0) || (lbAddr >= LBPURE)) {
+                return INVALID_INT;
+            }
+        }
+        return checkLanbahnAddr(lbAddr);
+    }
+
+    // the complete state has not been sent, it is not needed to wait for a
+    // RESUME any longer
+    private void firstCommandDone() {
+        if (!started) {
+            started = true;
+            pusher.wake();
+        }
+    }
+
+    private void handleCommands(String msg) {
+        String[] cmds = msg.split(";");  // multiple commands per line possible, separated by semicolon
+        for (String cmd : cmds) {
+            countCommand();
+            handleCommand(cmd.trim());
+            // sends feedback message  XL 'addr' 'data' (or INVALID_INT) back to mobile device
+        }
+    }
+
+    /**
+     * send all pending updates (and the keepalive tick, if due)
+     *
+     * @return msecs until the next keepalive tick is due
+     */
+    public long pushUpdates() {
+        return pusher.push();
+    }
+
+    /**
+     * the output queue of the connection is empty again
+     */
+    public void outputDrained() {
+        pusher.drained();
+    }
+
+    /**
+     * the client is too slow, its output has been discarded: send the
+     * complete state again
+     */
+    public void resync() {
+        pusher.resend();
+    }
+
+    // counts the messages sent (per client and in total)
+    private class MeteredConnection implements Connection {
+
+        private final Connection c;
+
+        MeteredConnection(Connection c) {
+            this.c = c;
+        }
+
+        @Override
+        public void send(byte[] data) {
+            messagesSent.incrementAndGet();
+            Metrics.SXNET_MESSAGES.inc();
+            Metrics.SXNET_BYTES.add(data.length);
+            c.send(data);
+        }
+
+        @Override
+        public void binaryMode() {
+            c.binaryMode();
         }
 
-        info("Closing SXnetserverHandler" + sn + "\n");
+        @Override
+        public int getQueuedBytes() {
+            return c.getQueuedBytes();
+        }
+
+        @Override
+        public long getBlockedSince() {
+            return c.getBlockedSince();
+        }
+
+        @Override
+        public void writeBlocked() {
+            c.writeBlocked();
+        }
+
+        @Override
+        public void close() {
+            c.close();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return c.getRemoteAddress();
+        }
     }
 
     // handles feedback, if the sxData have been changed on the SX-Bus
     // feedback both for low (<256) addresses == SX-only (+ Lanbahn if mapping exists)
     // and for high "lanbahn" type addresses
-    class SendUpdatesTask extends TimerTask {
+    // the ChangeBus sets the pending flags and wakes up the pusher thread of
+    // the server - no polling
+    class UpdatePusher implements ChangeBus.Listener {
+
+        private final Runnable wakeUp;
+        private final AtomicBoolean sxPending = new AtomicBoolean(true);
+        private final AtomicBoolean lanbahnPending = new AtomicBoolean(true);
+        private final AtomicBoolean trainPending = new AtomicBoolean(true);
+        private final AtomicBoolean powerPending = new AtomicBoolean(true);
+        private final AtomicBoolean resendAll = new AtomicBoolean(false);
+        // updates have been deferred because of a full output queue
+        private volatile boolean deferred = false;
+        // epochs of the last batch sent before the deferral - the batch
+        // itself is released, a stalled client must not keep all following
+        // batches of the broadcast in memory
+        private long[] deferredFrom = null;
+        private long lastKeepalive = 0;
+
+        UpdatePusher(Runnable wakeUp) {
+            this.wakeUp = wakeUp;
+        }
+
+        @Override
+        public void sxChanged(int addr, int data) {
+            sxPending.set(true);
+            wakeUp.run();
+        }
+
+        @Override
+        public void lanbahnChanged(int addr, int data) {
+            lanbahnPending.set(true);
+            wakeUp.run();
+        }
+
+        @Override
+        public void trainChanged(int addr, int train) {
+            trainPending.set(true);
+            wakeUp.run();
+        }
+
+        @Override
+        public void powerChanged(boolean on) {
+            powerPending.set(true);
+            wakeUp.run();
+        }
+
+        // send all SX1 channels once
+        void enableSX1() {
+            sxPending.set(true);
+            wakeUp.run();
+        }
+
+        // subscription has changed (or resync), send the current state of
+        // all subscribed addresses
+        void resend() {
+            resendAll.set(true);
+            wakeUp.run();
+        }
+
+        void wake() {
+            wakeUp.run();
+        }
+
+        void drained() {
+            if (deferred) {
+                wakeUp.run();
+            }
+        }
+
+        long push() {
+            if (conn.getQueuedBytes() > 0) {
+                // the client cannot keep up: the changes remain pending and
+                // are sent when the queue is empty - only the latest value of
+                // every address (a client which does not read at all is
+                // handled by the watchdog, see checkSlowClients)
+                deferred = true;
+                if (conn.getQueuedBytes() > 0) {  // not drained in the meantime
+                    releaseBatch();
+                    return KEEPALIVE_MSECS;
+                }
+            }
+            pushLock.lock();
+            try {
+                if (binary && (binaryUpdates == null)) {
+                    binaryUpdates = new SXnetBinaryEncoder(conn, true);
+                }
+                SXnetEncoder out = binary ? binaryUpdates : asciiUpdates;
+                long wait = push(out);
+                out.flush();  // all updates with one write
+                return wait;
+            } finally {
+                pushLock.unlock();
+            }
+        }
+
+        // remember the epochs of the last batch instead of the batch
+        private void releaseBatch() {
+            pushLock.lock();
+            try {
+                if (lastBatch != null) {
+                    deferredFrom = new long[]{lastBatch.sxEpoch, lastBatch.lanbahnEpoch};
+                    lastBatch = null;
+                }
+            } finally {
+                pushLock.unlock();
+            }
+        }
+
+        private void resetState() {
+            Arrays.fill(sxDataCopy, INVALID_INT);
+            Arrays.fill(changedChannels, -1L);
+            lanbahnEpoch = 0;  // = all used addresses
+            oldTrainNumberData.clear();
+            sxPending.set(true);
+            lanbahnPending.set(true);
+            trainPending.set(true);
+        }
+
+        // only the changes since these epochs are sent (instead of all
+        // batches since then or the complete state)
+        private void catchUp(long fromSXEpoch, long fromLanbahnEpoch) {
+            Arrays.fill(sxDataCopy, INVALID_INT);
+            Arrays.fill(changedChannels, 0L);
+            sxEpoch = fromSXEpoch;
+            lanbahnEpoch = fromLanbahnEpoch;
+            oldTrainNumberData.clear();
+            sxPending.set(true);
+            lanbahnPending.set(true);
+            trainPending.set(true);
+        }
+
+        private long push(SXnetEncoder out) {
+            long now = System.currentTimeMillis();
+            if (!started) {
+                // wait for a RESUME command before sending the complete state
+                long wait = startTime + FIRST_PUSH_DELAY_MSECS - now;
+                if (wait > 0) {
+                    return wait;
+                }
+                started = true;
+            }
+            boolean keepalive = (now - lastKeepalive) >= KEEPALIVE_MSECS;
+            if (keepalive) {
+                lastKeepalive = now;
+            }
+            long[] from = null;  // epochs to catch up from
+            if (deferredFrom != null) {
+                from = deferredFrom;
+            } else if (deferred && (lastBatch != null)) {
+                from = new long[]{lastBatch.sxEpoch, lastBatch.lanbahnEpoch};
+            }
+            deferredFrom = null;
+            deferred = false;
+            long[] r = resumeFrom.getAndSet(null);
+            if (r != null) {
+                from = r;
+            }
+            if (resendAll.getAndSet(false)) {
+                resetState();
+                lastBatch = null;
+                from = null;
+            }
+            // the sequence number of the latest batch is sent after the
+            // changes, all changes up to this batch are contained
+            SXnetBroadcast.Batch mark = SXnetBroadcast.latest();
+            if (subscription != Subscription.ALL) {
+                lastBatch = null;  // the changes are filtered for this client
+                if (from != null) {
+                    catchUp(from[0], from[1]);
+                }
+            } else if (from != null) {
+                lastBatch = mark;
+                catchUp(from[0], from[1]);
+            } else if (lastBatch == null) {
+                // join the broadcast: the complete state is sent below, then
+                // all batches after this one
+                lastBatch = mark;
+                resetState();
+            } else {
+                return pushBroadcast(out, keepalive | powerPending.getAndSet(false));
+            }
+            // flags are reset BEFORE the data are checked, a change during
+            // the check will wake up the pusher again
+            checkForChangedSXDataAndSendUpdates(out, keepalive | powerPending.getAndSet(false),
+                    sxPending.getAndSet(false));
+            if (lanbahnPending.getAndSet(false)) {
+                checkForLanbahnChangesAndSendUpdates(out);
+            }
+            if (trainPending.getAndSet(false)) {
+                checkForTrainNumberChangesAndSendUpdates(out);
+            }
+            if (sendSensorStatus) {
+                sendSensorInRouteStatus(out);
+                sendSensorStatus = false;
+            }
+            if (seqEnabled && (mark.seq != lastSeq)) {
+                out.seq(mark.seq);
+                lastSeq = mark.seq;
+            }
+            return KEEPALIVE_MSECS - (System.currentTimeMillis() - lastKeepalive);
+        }
 
-        public void run() {
-            tickCounter++;
-            checkForChangedSXDataAndSendUpdates(tickCounter);
-            checkForLanbahnChangesAndSendUpdates();
-            checkForTrainNumberChangesAndSendUpdates();
+        // send the (already encoded) batches of the broadcast
+        private long pushBroadcast(SXnetEncoder out, boolean sendPower) {
+            sxPending.set(false);
+            lanbahnPending.set(false);
+            trainPending.set(false);
+            checkForChangedSXDataAndSendUpdates(out, sendPower, false);  // power etc. only
+            out.flush();
+            boolean withSX1 = sx1Enabled && sx1Sent;
+            boolean withSeq = seqEnabled;
+            SXnetBroadcast.Batch last = SXnetBroadcast.latest();
+            Flight.BroadcastEvent ev = (lastBatch != last) ? Flight.broadcastBegin() : null;
+            int batches = 0, bytes = 0;
+            for (SXnetBroadcast.Batch b = lastBatch; b != last;) {
+                b = b.getNext();
+                byte[] data = b.getBytes(binary, withSX1, withSeq);
+                if (data.length > 0) {
+                    conn.send(data);  // shared by all clients
+                }
+                batches++;
+                bytes += data.length;
+            }
+            Flight.broadcastEnd(ev, sn, batches, bytes, binary);
+            lastBatch = last;
+            if (withSeq) {
+                lastSeq = last.seq;
+            }
+            if (sx1Enabled && !sx1Sent) {
+                // client has just started to use SX1 => send all SX1 channels
+                LayoutState s = SXData.snapshot();
+                for (int ch = SXMAX + 1; ch < SXCHANNELS; ch++) {
+                    if (SXUtils.sxAddr(ch) <= SXMAX_USED) {
+                        out.sx(ch, s.get(ch));
+                    }
+                }
+                sx1Sent = true;
+            }
             if (sendSensorStatus) {
-                sendSensorInRouteStatus();
+                sendSensorInRouteStatus(out);
                 sendSensorStatus = false;
             }
+            return KEEPALIVE_MSECS - (System.currentTimeMillis() - lastKeepalive);
         }
     }
 
@@ -162,6 +863,9 @@ public class SXnetClient implements Runnable {
      *
      * for all channels 0 ... 104 (SXMAX_USED) and 127 all changes are
      * transmitted to all connected clients ,
+     *
+     * the commands are parsed here, the replies are sent by the command
+     * methods below via the (ASCII or binary) encoder
      */
     private void handleCommand(String m) {
         String[] param = m.split("\\s+");  // remove >1 whitespace
@@ -169,99 +873,352 @@ public class SXnetClient implements Runnable {
             error("irregular msg: " + m);
         }
         if (param[0].equals("READPOWER")) {
-            String res = readPower();  // no parameters
-            sendMessage(res);
+            readPower();  // no parameters
             return;
         } else if (param[0].equals("UNLOCK")) {
             // used in case of unfinished (i.e. not cleared) routes
             int n = PanelElement.unlockAll();
             sendMessage("XUNLOCKED " + n);
             return;
+        } else if (param[0].equals("BINARY")) {
+            switchToBinary();
+            return;
+        } else if (param[0].equals("DUMP")) {
+            dump();  // complete state in one message
+            return;
+        } else if (param[0].equals("STATS")) {
+            sendMessage(sendStats(param));
+            return;
         }
 
-        String result = "";
         switch (param[0]) {    // commands with 1 or more parameters
             case "SETPOWER":
-                result = setPower(param);
+                setPowerMessage(param);
                 break;
 
-            case "SETLOCO":   // complete byte set 
-                result = setSXLocoMessage(param);
+            case "SETLOCO":   // complete byte set
+                setSXLocoMessage(param);
                 break;
             case "S":    // SX Byte set, used by SX-Loconet Bridge and Andropanel
             case "SX":
-                result = setSXByteMessage(param);
+                setSXByteMessage(param);
+                break;
+            case "SXM":  // several SX Bytes at once (bridges)
+                setSXMultiMessage(param);
                 break;
 
             case "R":    // read sx value, used by SX-Loconet Bridge and Andropanel
-                result = readSXByteMessage(param);
+                readSXByteMessage(param);
                 break;
             case "READLOCO":
-                result = readLocoMessage(param);
+                readLocoMessage(param);
                 break;
             case "REQ":   // set or clear route
-                if (routingEnabled) {
-                    result = requestRouteMessage(param);
-                } else {
-                    result = "ERROR";
-                }
+                requestRouteMessage(param);
                 break;
             case "SET": // for addresses > 1200 (lanbahn sim./routes)
                 // will check for "locked" PanelElements
-                result = setLanbahnMessage(param);
+                setLanbahnMessage(param);
+                break;
+            case "SETM": // several lanbahn addresses at once
+                setLanbahnMultiMessage(param);
                 break;
             case "SETTRAIN": // for addresses > 1200 (lanbahn sim./routes)
-                result = setLanbahnTrainMessage(param);
+                setLanbahnTrainMessage(param);
                 break;
             case "READTRAIN": // for addresses > 1200 (lanbahn sim./routes)
-                result = createLanbahnTrainMessage(param);
+                createLanbahnTrainMessage(param);
                 break;
             case "READ": // for addresses > 1200 (lanbahn sim./routes)
-                result = createLanbahnFeedbackMessage(param);
+                createLanbahnFeedbackMessage(param);
+                break;
+            case "HIST": // recorded changes, see History
+                sendMessage(sendHistory(param));
+                break;
+            case "SUB": // send updates only for the subscribed addresses
+                sendMessage(subscribeMessage(param, true));
+                break;
+            case "UNSUB":
+                sendMessage(subscribeMessage(param, false));
+                break;
+            case "RESUME": // changes since the sequence number, after reconnect
+                resumeMessage(param);
                 break;
 
             default:
-                result = "ERROR";
+                reply.error();
         }
-        sendMessage(result);
 
     }
 
+    /**
+     * handshake "BINARY": the reply "OK BINARY" is the last ASCII message,
+     * then both directions use the binary frames of SXnetBinaryEncoder
+     */
+    private void switchToBinary() {
+        if (binary) {
+            reply.text("OK BINARY");
+            return;
+        }
+        pushLock.lock();  // no ASCII update after the reply
+        try {
+            reply.text("OK BINARY");
+            reply = new SXnetBinaryEncoder(conn, false);
+            binary = true;
+            conn.binaryMode();
+        } finally {
+            pushLock.unlock();
+        }
+        info("client" + sn + " uses the binary protocol");
+    }
+
+    /**
+     * handle one binary frame (opcode + payload, without the length)
+     */
+    public void handleFrame(byte[] b, int off, int n) {
+        if (n < 1) {
+            return;
+        }
+        int op = b[off] & 0xFF;
+        if (DEBUG) {
+            debug("sxnet" + sn + " read frame: op=" + op + " len=" + n);
+        }
+        if (op != SXnetBinaryEncoder.CMD_TEXT) {
+            countCommand();  // else counted per command of the text
+        }
+        long t0 = System.nanoTime();
+        int src = History.enter(History.sxnet(sn));
+        long trace = Trace.begin(t0);
+        try {
+            int a = (n >= 3) ? ((b[off + 1] & 0xFF) << 8) | (b[off + 2] & 0xFF) : INVALID_INT;
+            int d = (n >= 4) ? b[off + 3] & 0xFF : INVALID_INT;
+            switch (op) {
+                case SXnetBinaryEncoder.CMD_TEXT:
+                    handleCommands(new String(b, off + 1, n - 1, StandardCharsets.US_ASCII).trim().toUpperCase());
+                    break;
+                case SXnetBinaryEncoder.CMD_READPOWER:
+                    readPower();
+                    break;
+                case SXnetBinaryEncoder.CMD_SETPOWER:
+                    if (n < 2) {
+                        reply.error();
+                    } else {
+                        setPower(b[off + 1]);
+                    }
+                    break;
+                case SXnetBinaryEncoder.CMD_S:
+                    a = checkSXChannel(a);
+                    if ((a == INVALID_INT) || (d == INVALID_INT)) {
+                        reply.error();
+                    } else {
+                        setSX(a, d);
+                    }
+                    break;
+                case SXnetBinaryEncoder.CMD_R:
+                    a = checkSXChannel(a);
+                    if (a == INVALID_INT) {
+                        reply.error();
+                    } else {
+                        readSX(a);
+                    }
+                    break;
+                case SXnetBinaryEncoder.CMD_SETLOCO:
+                    a = checkSXChannel(a);
+                    if ((a == INVALID_INT) || (d == INVALID_INT)) {
+                        reply.error();
+                    } else {
+                        setLoco(a, d);
+                    }
+                    break;
+                case SXnetBinaryEncoder.CMD_READLOCO:
+                    a = checkSXChannel(a);
+                    if (a == INVALID_INT) {
+                        reply.error();
+                    } else {
+                        readLoco(a);
+                    }
+                    break;
+                case SXnetBinaryEncoder.CMD_SET:
+                    a = checkLanbahnAddr(a);
+                    if ((a == INVALID_INT) || (d == INVALID_INT) || (d > LBDATAMAX)) {
+                        reply.error();
+                    } else {
+                        setLanbahn(a, d);
+                    }
+                    break;
+                case SXnetBinaryEncoder.CMD_READ:
+                    a = checkLanbahnAddr(a);
+                    if (a == INVALID_INT) {
+                        reply.error();
+                    } else {
+                        readLanbahn(a);
+                    }
+                    break;
+                case SXnetBinaryEncoder.CMD_REQ:
+                    a = checkLanbahnAddr(a);
+                    if ((a == INVALID_INT) || (d == INVALID_INT)) {
+                        reply.error();
+                    } else {
+                        requestRoute(a, d);
+                    }
+                    break;
+                case SXnetBinaryEncoder.CMD_SETTRAIN:
+                    int train = (n >= 5) ? ((b[off + 3] & 0xFF) << 8) | (b[off + 4] & 0xFF) : INVALID_INT;
+                    if ((a == INVALID_INT) || (a > LBMAX_SX1) || (train == INVALID_INT) || (train > 9999)) {
+                        reply.error();
+                    } else {
+                        setTrain(a, train);
+                    }
+                    break;
+                case SXnetBinaryEncoder.CMD_RESUME:
+                    if (n < 9) {
+                        reply.error();
+                    } else {
+                        long seq = 0;
+                        for (int i = 1; i <= 8; i++) {
+                            seq = (seq << 8) | (b[off + i] & 0xFF);
+                        }
+                        resume(seq);
+                    }
+                    break;
+                case SXnetBinaryEncoder.CMD_SXM:
+                case SXnetBinaryEncoder.CMD_SETM:
+                    multiFrame(op, b, off + 1, n - 1);
+                    break;
+                case SXnetBinaryEncoder.CMD_DUMP:
+                    dump();
+                    break;
+                case SXnetBinaryEncoder.CMD_READTRAIN:
+                    if ((a == INVALID_INT) || (a > LBMAX_SX1)) {
+                        reply.error();
+                    } else {
+                        readTrain(a);
+                    }
+                    break;
+                default:
+                    error("sxnet" + sn + " unknown opcode " + op);
+                    reply.error();
+            }
+        } finally {
+            Trace.end(trace);
+            History.exit(src);
+        }
+        firstCommandDone();
+        Metrics.SXNET_COMMAND_TIME.since(t0);
+    }
+
+    // SXM / SETM frame: {addr(2) data(1)} ...
+    private void multiFrame(int op, byte[] b, int off, int n) {
+        int count = n / 3;
+        if ((count == 0) || ((n % 3) != 0)) {
+            reply.error();
+            return;
+        }
+        int[] addr = new int[count];
+        int[] data = new int[count];
+        for (int i = 0; i < count; i++) {
+            int p = off + 3 * i;
+            int a = ((b[p] & 0xFF) << 8) | (b[p + 1] & 0xFF);
+            data[i] = b[p + 2] & 0xFF;
+            if (op == SXnetBinaryEncoder.CMD_SXM) {
+                addr[i] = checkSXChannel(a);
+            } else {
+                addr[i] = checkLanbahnAddr(a);
+                if (data[i] > LBDATAMAX) {
+                    addr[i] = INVALID_INT;
+                }
+            }
+            if (addr[i] == INVALID_INT) {
+                reply.error();  // nothing is set
+                return;
+            }
+        }
+        if (op == SXnetBinaryEncoder.CMD_SXM) {
+            setSXMulti(addr, data, count);
+        } else {
+            setLanbahnMulti(addr, data, count);
+        }
+    }
+
+    private void resumeMessage(String[] par) {
+        if (par.length < 2) {
+            reply.error();
+            return;
+        }
+        try {
+            resume(Long.parseLong(par[1]));
+        } catch (NumberFormatException e) {
+            reply.error();
+        }
+    }
+
+    /**
+     * a reconnecting client wants all changes since the update with the
+     * sequence number seq ("SEQ &lt;seq&gt;") - from now on every update
+     * ends with its sequence number
+     *
+     * reply "XRESUME 1" = only the changes follow, "XRESUME 0" = seq is too
+     * old (or unknown), the complete state follows
+     */
+    private void resume(long seq) {
+        long[] epochs = SXnetBroadcast.getEpochs(seq);
+        seqEnabled = true;
+        if (epochs == null) {
+            reply.text("XRESUME 0");
+            pusher.resend();
+        } else {
+            reply.text("XRESUME 1");
+            resumeFrom.set(epochs);
+            pusher.wake();
+        }
+    }
+
     // still used by SX-Loconet Bridge and Andropanel !!
-    private String readSXByteMessage(String[] par) {
+    private void readSXByteMessage(String[] par) {
         if (par.length < 2) {
-            return "ERROR";
+            reply.error();
+            return;
         }
         int adr = getSXAddrFromString(par[1]);
         if (adr == INVALID_INT) {
             error("addr in msg invalid");
-            return "ERROR";
+            reply.error();
+            return;
         }
-        return "X " + adr + " " + SXData.get(adr);
+        readSX(adr);
     }
 
-    private String readLocoMessage(String[] par) {
+    private void readSX(int adr) {
+        reply.sx(adr, SXData.get(adr));
+    }
+
+    private void readLocoMessage(String[] par) {
         if (par.length < 2) {
-            return "ERROR";
+            reply.error();
+            return;
         }
         int adr = getSXAddrFromString(par[1]);
         if (adr == INVALID_INT) {
             error("addr in msg invalid");
-            return "ERROR";
+            reply.error();
+            return;
+        }
+        readLoco(adr);
+    }
+
+    private void readLoco(int adr) {
+        if (SXUtils.sxBus(adr) != 0) {
+            error("addr in msg invalid");  // locos only on SX0
+            reply.error();
+            return;
         }
         if (Loco.getByAddress(adr) == null) {
             allLocos.add(new Loco(adr));
         }
-        return "XLOCO " + adr + " " + SXData.get(adr);
+        reply.loco(adr, SXData.get(adr));
     }
 
-    /**
-     * setting (=1) or clearing (=0) routes
-     *
-     * @param par
-     * @return
-     */
-    private String requestRouteMessage(String[] par) {
+    private void requestRouteMessage(String[] par) {
         if (DEBUG) {
             error("requestRouteMessage");
         }
@@ -269,17 +1226,33 @@ public class SXnetClient implements Runnable {
             if (DEBUG) {
                 error("par.length <=2");
             }
-            return "ERROR";
+            reply.error();
+            return;
         }
 
         // parse string
         int lbAddr = getLanbahnAddrFromString(par[1]);
         int lbdata = getLanbahnDataFromString(par[2]);   // can only be 1= set and 0=clear
-        if ((lbAddr == INVALID_INT) || ((lbdata != 0) && (lbdata != 1))) {
+        if ((lbAddr == INVALID_INT) || (lbdata == INVALID_INT)) {
             if (DEBUG) {
                 error("LB-addr or -data invalid");
             }
-            return "ERROR";
+            reply.error();
+            return;
+        }
+        requestRoute(lbAddr, lbdata);
+    }
+
+    /**
+     * setting (=1) or clearing (=0) routes
+     *
+     * @param lbAddr
+     * @param lbdata
+     */
+    private void requestRoute(int lbAddr, int lbdata) {
+        if (!routingEnabled || ((lbdata != 0) && (lbdata != 1))) {
+            reply.error();
+            return;
         }
 
         // check whether there is a route with this address(=adr)
@@ -292,20 +1265,22 @@ public class SXnetClient implements Runnable {
                     if (DEBUG) {
                         error("route locked");
                     }
-                    return "ROUTE_LOCKED";
+                    reply.text("ROUTE_LOCKED");
+                    return;
                 }
                 res = r.set();  // manual route setting, do not check occupancy
             } else {
-                r.clear();  // manual route setting, do not check occupancy 
+                r.clear();  // manual route setting, do not check occupancy
             }
             if (res) {
-                return "XL " + lbAddr + " " + r.getState();  // success
+                reply.lanbahn(lbAddr, r.getState());  // success
             } else {
                 if (DEBUG) {
                     error("route invalid");
                 }
-                return "ROUTE_INVALID";
+                reply.text("ROUTE_INVALID");
             }
+            return;
         }
 
         // check whether there is a compound route with this address(=adr)
@@ -318,32 +1293,35 @@ public class SXnetClient implements Runnable {
                     if (DEBUG) {
                         error("comproute locked");
                     }
-                    return "ROUTE_LOCKED";
+                    reply.text("ROUTE_LOCKED");
+                    return;
                 }
                 res = cr.set();  // manual route setting, do not check occupancy
             } else {
                 cr.clear();
             }
             if (res) {
-                return "XL " + lbAddr + " " + cr.getState();  // success
+                reply.lanbahn(lbAddr, cr.getState());  // success
             } else {
                 if (DEBUG) {
                     error("comp route invalid");
                 }
-                return "ROUTE_INVALID";
+                reply.text("ROUTE_INVALID");
             }
+            return;
         }
         if (DEBUG) {
             error("no route or compound found");
         }
-        return "ERROR";
+        reply.error();
 
     }
 
     // used by SX-Loconet Bridge and Andropanel
-    private String setSXByteMessage(String[] par) {
+    private void setSXByteMessage(String[] par) {
         if (par.length < 3) {
-            return "ERROR";
+            reply.error();
+            return;
         }
         debug("setSXByteMessage");
 
@@ -351,19 +1329,55 @@ public class SXnetClient implements Runnable {
         int data = getByteFromString(par[2]);
 
         if ((adr == INVALID_INT) || (data == INVALID_INT)) {
-            return "ERROR";
+            reply.error();
+            return;
         }
+        setSX(adr, data);
+    }
 
-        int dNew = SXData.update(adr, data, true);  // synchronized 
+    private void setSX(int adr, int data) {
+        int dNew = SXData.update(adr, data, true);  // synchronized
         // TODO ?? sxDataCopy[adr] = dNew;  // + store locally (to not duplicate the feedback message)
 
-        return "OK";
+        reply.ok();
+    }
+
+    // "SXM <c1> <d1> <c2> <d2> ...", all channels are checked before any is set
+    private void setSXMultiMessage(String[] par) {
+        int n = (par.length - 1) / 2;
+        if ((n == 0) || ((par.length % 2) == 0)) {
+            reply.error();
+            return;
+        }
+        int[] adr = new int[n];
+        int[] data = new int[n];
+        for (int i = 0; i < n; i++) {
+            adr[i] = getSXAddrFromString(par[1 + 2 * i]);
+            data[i] = getByteFromString(par[2 + 2 * i]);
+            if ((adr[i] == INVALID_INT) || (data[i] == INVALID_INT)) {
+                reply.error();
+                return;
+            }
+        }
+        setSXMulti(adr, data, n);
+    }
+
+    /**
+     * SXM: sets all channels at once - one update for the SXnet clients and
+     * one serial write per channel (the last value wins)
+     */
+    private void setSXMulti(int[] adr, int[] data, int n) {
+        int[] masks = new int[n];
+        Arrays.fill(masks, 0xFF);
+        SXnetBroadcast.atomically(() -> SXData.updateAll(adr, masks, data, n, true));
+        reply.ok();
     }
 
     // used by SX-Loconet Bridge and Andropanel
-    private String setSXLocoMessage(String[] par) {
+    private void setSXLocoMessage(String[] par) {
         if (par.length < 3) {
-            return "ERROR";
+            reply.error();
+            return;
         }
         debug("setSXLocoMessage");
 
@@ -371,208 +1385,534 @@ public class SXnetClient implements Runnable {
         int data = getByteFromString(par[2]);
 
         if ((adr == INVALID_INT) || (data == INVALID_INT)) {
-            return "ERROR";
+            reply.error();
+            return;
+        }
+        setLoco(adr, data);
+    }
+
+    private void setLoco(int adr, int data) {
+        if (SXUtils.sxBus(adr) != 0) {
+            reply.error();  // locos only on SX0
+            return;
         }
 
         if (Loco.getByAddress(adr) == null) {
             allLocos.add(new Loco(adr));
         }
 
-        int dNew = SXData.update(adr, data, true);  // synchronized 
+        int dNew = SXData.update(adr, data, true);  // synchronized
         // TODO ?? sxDataCopy[adr] = dNew;  // + store locally (to not duplicate the feedback message)
 
-        return "OK";
+        reply.ok();
+    }
+
+    private void setPowerMessage(String[] par) {
+        if (par.length < 2) {
+            reply.error();
+            return;
+        }
+        setPower(getByteFromString(par[1]));
     }
 
-    private String setPower(String[] par) {
+    private void setPower(int value) {
 
         info("setPowerMessage");
 
-        if (par.length < 2) {
-            return "ERROR";
-        }
-        int value = getByteFromString(par[1]);
         if (value == 0) {
             SXData.setPowerToBe(false);
         } else {
             SXData.setPowerToBe(true);
         }
 
-        return "OK";
+        reply.ok();
 
     }
 
-    private String readPower() {
+    private void readPower() {
         powerCopy = SXData.getActualPower();
-        if (powerCopy) {
-            return ("XPOWER 1");
-        } else {
-            return ("XPOWER 0");
-        }
+        reply.power(powerCopy);
     }
 
-    /**
-     * when setting the data for a lanbahn address, there are 3 possible
-     * scenarios: A) it is within the SX address range and only has a single bit
-     * of data B) it is within the SX address range, but has 2 bits. The first
-     * bit will be a pure SX-bit, the second bit can either be an SX-bit or a
-     * virtual lanbahn address C) it is outside the SX address range => it is a
-     * virtual lanbahn address
-     *
-     * @param par
-     * @return
-     */
-    private String setLanbahnMessage(String[] par) {
+    private void setLanbahnMessage(String[] par) {
 
         info("setLanbahnMessage");
 
         if (par.length < 3) {
-            return "ERROR";
+            reply.error();
+            return;
         }
         int lbaddr = getLanbahnAddrFromString(par[1]);
         int lbdata = getLanbahnDataFromString(par[2]);
 
         if ((lbaddr == INVALID_INT) || (lbdata == INVALID_INT)) {
-            return "ERROR";
+            reply.error();
+            return;
         }
+        setLanbahn(lbaddr, lbdata);
+    }
+
+    /**
+     * when setting the data for a lanbahn address, there are 3 possible
+     * scenarios: A) it is within the SX address range and only has a single bit
+     * of data B) it is within the SX address range, but has 2 bits. The first
+     * bit will be a pure SX-bit, the second bit can either be an SX-bit or a
+     * virtual lanbahn address C) it is outside the SX address range => it is a
+     * virtual lanbahn address
+     *
+     * @param lbaddr
+     * @param lbdata
+     */
+    private void setLanbahn(int lbaddr, int lbdata) {
 
         if (PanelElement.isAddressLocked(lbaddr)) {
-            // cannot set because panel element locked, return current state 
+            // cannot set because panel element locked, return current state
             debug("address " + lbaddr + " is locked.");
-            int d;
-            if (lbaddr >= LBPURE) {
-                d = LanbahnData.get(lbaddr);
-            } else {
-                d = SXData.get((lbaddr / 10), lbaddr % 10);
-            }
-            if (d != INVALID_INT) {
-                return "XL " + lbaddr + " " + d;
-            }
+            readLanbahn(lbaddr);
+            return;
         }
 
         // not locked, we can set the corresponding data/bit
-        if (lbaddr >= LBPURE) {
+        int sxch = SXUtils.lbAddr2SXChannel(lbaddr);
+        if (sxch == INVALID_INT) {
             // pure lanbahn virtual address
             int res = LanbahnData.update(lbaddr, lbdata);
             if (res != INVALID_INT) {
-                return "OK";
+                reply.ok();
+                return;
             }
         } else {
             // SX data range (=real data)
+            int mb = setSXElement(lbaddr, lbdata);
+            SXData.updateBits(sxch, mb >> 8, mb & 0xFF, true);
+            reply.ok();
+            return;
+        }
+        reply.error();
+    }
 
-            // check if there is a matching PanelElement
-            // this is important for multi aspect signals !
-            boolean found = false;
-            for (PanelElement pe : panelElements) {
-                if (pe.getAdr() == lbaddr) {
-                    pe.setStateAndUpdateSXData(lbdata);
+    /**
+     * SET and SETM of a lanbahn address in the SX range: the state of a
+     * matching panel element is set (this is important for multi aspect
+     * signals, they use the bits of adr and adr + 1)
+     *
+     * @return mask (bits 8..15) and data (bits 0..7) of the SX channel bits
+     * to set
+     */
+    private static int setSXElement(int lbaddr, int lbdata) {
+        PanelElement pe = PanelElement.getByAddress(lbaddr);
+        if (pe != null) {
+            pe.setState(lbdata);
+            return (pe.getSXMask() << 8) | pe.getSXBits();
+        }
+        int mask = 1 << (lbaddr % 10 - 1);
+        return (mask << 8) | ((lbdata != 0) ? mask : 0);
+    }
+
+    // "SETM <a1> <d1> <a2> <d2> ...", all addresses are checked before any is set
+    private void setLanbahnMultiMessage(String[] par) {
+        int n = (par.length - 1) / 2;
+        if ((n == 0) || ((par.length % 2) == 0)) {
+            reply.error();
+            return;
+        }
+        int[] lbaddr = new int[n];
+        int[] lbdata = new int[n];
+        for (int i = 0; i < n; i++) {
+            lbaddr[i] = getLanbahnAddrFromString(par[1 + 2 * i]);
+            lbdata[i] = getLanbahnDataFromString(par[2 + 2 * i]);
+            if ((lbaddr[i] == INVALID_INT) || (lbdata[i] == INVALID_INT)) {
+                reply.error();
+                return;
+            }
+        }
+        setLanbahnMulti(lbaddr, lbdata, n);
+    }
+
+    /**
+     * SETM: like SET for several addresses, but all changes are applied at
+     * once - the bits of the same SX channel are combined into one write.
+     * Locked addresses are not changed, their current state is sent (like
+     * SET) before the "OK".
+     */
+    private void setLanbahnMulti(int[] lbaddr, int[] lbdata, int n) {
+        int[] ch = new int[n];
+        int[] masks = new int[n];
+        int[] bits = new int[n];
+        int[] locked = new int[n];
+        int nSX = 0, nLocked = 0;
+        for (int i = 0; i < n; i++) {
+            if ((SXUtils.lbAddr2SXChannel(lbaddr[i]) == INVALID_INT) && (lbaddr[i] < LBPURE)) {
+                reply.error();  // neither SX bit nor pure lanbahn, nothing is set
+                return;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            int a = lbaddr[i];
+            if (PanelElement.isAddressLocked(a)) {
+                locked[nLocked++] = a;
+                lbaddr[i] = INVALID_INT;
+                continue;
+            }
+            int sxch = SXUtils.lbAddr2SXChannel(a);
+            if (sxch != INVALID_INT) {
+                int mb = setSXElement(a, lbdata[i]);
+                ch[nSX] = sxch;
+                masks[nSX] = mb >> 8;
+                bits[nSX] = mb & 0xFF;
+                nSX++;
+                lbaddr[i] = INVALID_INT;  // done
+            }
+        }
+        final int nBits = nSX;
+        SXnetBroadcast.atomically(() -> {
+            SXData.updateAll(ch, masks, bits, nBits, true);
+            for (int i = 0; i < n; i++) {
+                if (lbaddr[i] != INVALID_INT) {
+                    LanbahnData.update(lbaddr[i], lbdata[i]);  // pure lanbahn
                 }
             }
+        });
+        for (int i = 0; i < nLocked; i++) {
+            debug("address " + locked[i] + " is locked.");
+            readLanbahn(locked[i]);
+        }
+        reply.ok();
+    }
 
-            if (found) {
-                return "OK";
-            } else {
-                // do only if no matching panel element was found
-                int sxaddr = lbaddr / 10;
-                int sxbit = lbaddr % 10;
-                if (SXUtils.isValidSXAddress(sxaddr) && SXUtils.isValidSXBit(sxbit)) {
-                    if (lbdata != 0) {
-                        SXData.setBit(sxaddr, sxbit, true);
-                    } else {
-                        SXData.clearBit(sxaddr, sxbit, true);
-                    }
-                    return "OK";
+    /**
+     * DUMP: the complete state of one snapshot in one message - power, all
+     * SX channels (both busses, if the client uses SX1) and all used lanbahn
+     * addresses
+     */
+    private void dump() {
+        LayoutState s = SXData.snapshot();
+        int nSX = sx1Enabled ? SXCHANNELS : (SXMAX + 1);
+        int[] sx = new int[nSX];
+        for (int ch = 0; ch < nSX; ch++) {
+            sx[ch] = s.get(ch) & 0xFF;
+        }
+        long[] used = new long[LBMAX / 64 + 1];
+        LanbahnData.changedSince(0, used);  // all used addresses
+        int nLb = 0;
+        for (long w : used) {
+            nLb += Long.bitCount(w);
+        }
+        int[] lbAddr = new int[nLb];
+        int[] lbData = new int[nLb];
+        nLb = 0;
+        for (int w = 0; w < used.length; w++) {
+            long v = used[w];
+            while (v != 0) {
+                int addr = (w << 6) + Long.numberOfTrailingZeros(v);
+                v &= (v - 1);
+                int d = s.getLanbahn(addr);
+                if (d != INVALID_INT) {
+                    lbAddr[nLb] = addr;
+                    lbData[nLb++] = d;
                 }
             }
         }
-        return "ERROR";
+        reply.dump(s.getPower(), sx, nSX, lbAddr, lbData, nLb);
     }
 
-    private String setLanbahnTrainMessage(String[] par) {
+    private void setLanbahnTrainMessage(String[] par) {
 
         info("setLanbahnTrainMessage");
 
         if (par.length < 3) {
-            return "ERROR";
+            reply.error();
+            return;
         }
         int addr = getNumberFromString(par[1]);
         int data = getDataFromString(par[2]);
         if ((addr == INVALID_INT) || (data == INVALID_INT)) {
-            return "ERROR";
+            reply.error();
+            return;
         }
+        setTrain(addr, data);
+    }
+
+    private void setTrain(int addr, int data) {
         // update train number info
         if (PanelElement.setTrain(addr, data)) {
-            return "OK";
+            reply.ok();
+        } else {
+            reply.error();
         }
-
-        return "ERROR";
     }
 
-    private String createLanbahnFeedbackMessage(String[] par) {
+    private void createLanbahnFeedbackMessage(String[] par) {
 
         debug("createLanbahnFeedbackMessage");
 
         if (par.length < 2) {
-            return "ERROR";
+            reply.error();
+            return;
         }
         int lbAddr = getLanbahnAddrFromString(par[1]);
         if (lbAddr == INVALID_INT) {
-            return "ERROR";
+            reply.error();
+            return;
         }
-        if (lbAddr >= LBPURE) {
+        readLanbahn(lbAddr);
+    }
+
+    private void readLanbahn(int lbAddr) {
+        int sxch = SXUtils.lbAddr2SXChannel(lbAddr);
+        if (sxch == INVALID_INT) {
             int d = LanbahnData.get(lbAddr);
             if (d != INVALID_INT) {
-                return "XL " + lbAddr + " " + d;
+                reply.lanbahn(lbAddr, d);
+                return;
             }
         } else {
             // SX data range (=real data)
 
             // check if there is a matching PanelElement
             // this is important for multi aspect signals !
-            boolean found = false;
-            int lbdata = INVALID_INT;
-            for (PanelElement pe : panelElements) {
-                if (pe.getAdr() == lbAddr) {
-                    lbdata = pe.getState();
-                }
-            }
-
-            if (found) {
-                return "XL " + lbAddr + " " + lbdata;
+            PanelElement pe = PanelElement.getByAddress(lbAddr);
+            if (pe != null) {
+                reply.lanbahn(lbAddr, pe.getState());
+            } else if (SXUtils.isSet(SXData.get(sxch), lbAddr % 10)) {
+                reply.lanbahn(lbAddr, 1);
             } else {
-                int sxaddr = lbAddr / 10;
-                int sxbit = lbAddr % 10;
-                if (SXUtils.isValidSXAddress(sxaddr) && SXUtils.isValidSXBit(sxbit)) {
-                    if (SXUtils.isSet(SXData.get(sxaddr), sxbit)) {
-                        return "XL " + lbAddr + " 1";
-                    } else {
-                        return "XL " + lbAddr + " 0";
-                    }
-                }
+                reply.lanbahn(lbAddr, 0);
             }
+            return;
         }
-        return "ERROR";
+        reply.error();
 
     }
 
-    private String createLanbahnTrainMessage(String[] par) {
+    private void createLanbahnTrainMessage(String[] par) {
 
         debug("createLanbahnTrainMessage");
 
         if (par.length < 2) {
-            return "ERROR";
+            reply.error();
+            return;
         }
         int addr = getNumberFromString(par[1]);
         if (addr == INVALID_INT) {
-            return "ERROR";
+            reply.error();
+            return;
         }
+        readTrain(addr);
+    }
+
+    private void readTrain(int addr) {
         int d = PanelElement.getTrain(addr);
         if (d != INVALID_INT) {
-            return "XTRAIN " + addr + " " + d;
+            reply.train(addr, d);
+        } else {
+            reply.error();
+        }
+    }
+
+    /**
+     * STATS [&lt;prefix&gt;]: the current metrics (see Metrics), one
+     * "XSTAT &lt;name&gt; &lt;value&gt;" per sample, e.g. "XSTAT
+     * sx4_sxnet_commands_total 17", optionally only those with names starting
+     * with (sx4_)&lt;prefix&gt;, ends with "XSTATEND &lt;number of samples&gt;"
+     */
+    private String sendStats(String[] par) {
+        final String prefix = (par.length > 1) ? par[1].toLowerCase() : "";
+        final StringBuilder msg = new StringBuilder();
+        final int[] n = {0};
+        Metrics.write(new Metrics.Writer() {
+            @Override
+            public void family(String name, String type, String help) {
+            }
+
+            @Override
+            public void sample(String name, String value) {
+                if (!name.startsWith(prefix) && !name.startsWith("sx4_" + prefix)) {
+                    return;
+                }
+                if (msg.length() != 0) {
+                    msg.append(";");
+                }
+                msg.append("XSTAT ").append(name).append(" ").append(value);
+                n[0]++;
+                if (msg.length() > 60) {
+                    sendMessage(msg.toString());
+                    msg.setLength(0);  // =delete content
+                }
+            }
+        });
+        if (msg.length() > 0) {
+            sendMessage(msg.toString());
+        }
+        return "XSTATEND " + n[0];
+    }
+
+    /**
+     * send all recorded changes of an address since a point in time (msecs
+     * since program start), one "XH &lt;msecs&gt; &lt;source&gt; &lt;feedback msg&gt;"
+     * per change
+     *
+     * HIST &lt;lbaddr&gt; [&lt;since&gt;] lanbahn address (like READ), SX mapped
+     * addresses return the changes of the complete SX channel
+     *
+     * HIST X &lt;c&gt; [&lt;since&gt;] SX channel (like R)
+     *
+     * HIST POWER [&lt;since&gt;] and HIST * [&lt;since&gt;] (=all changes)
+     *
+     * @return "XHEND &lt;now&gt;", "now" can be used as "since" in the next
+     * request
+     */
+    private String sendHistory(String[] par) {
+        if (par.length < 2) {
+            return "ERROR";
+        }
+        boolean all = false, power = false;
+        int sxch = INVALID_INT;
+        int lbAddr = INVALID_INT;
+        int i = 2;
+        switch (par[1]) {
+            case "*":
+                all = true;
+                break;
+            case "POWER":
+                power = true;
+                break;
+            case "X":
+                if (par.length < 3) {
+                    return "ERROR";
+                }
+                sxch = getSXAddrFromString(par[2]);
+                if (sxch == INVALID_INT) {
+                    return "ERROR";
+                }
+                i = 3;
+                break;
+            default:
+                lbAddr = getLanbahnAddrFromString(par[1]);
+                if (lbAddr == INVALID_INT) {
+                    return "ERROR";
+                }
+                sxch = SXUtils.lbAddr2SXChannel(lbAddr);
+        }
+        long since = 0;
+        if (par.length > i) {
+            try {
+                since = Long.parseLong(par[i]);
+            } catch (NumberFormatException e) {
+                return "ERROR";
+            }
         }
 
-        return "ERROR";
+        final boolean fAll = all, fPower = power;
+        final int fSxch = sxch, fLbAddr = lbAddr;
+        final StringBuilder msg = new StringBuilder();
+        long now = History.now();
+        History.query(since, (t, ty, a, val, src) -> {
+            boolean match;
+            if (ty == History.SX) {
+                match = fAll || (a == fSxch);
+            } else if (ty == History.POWER) {
+                match = fAll || fPower;
+            } else {
+                match = fAll || (a == fLbAddr);  // lanbahn data and train numbers
+            }
+            if (!match) {
+                return;
+            }
+            if (msg.length() != 0) {
+                msg.append(";");
+            }
+            msg.append("XH ").append(t).append(" ").append(History.sourceToString(src)).append(" ");
+            switch (ty) {
+                case History.SX:
+                    msg.append("X ").append(SXUtils.sxChannelToString(a));
+                    break;
+                case History.LANBAHN:
+                    msg.append("XL ").append(a);
+                    break;
+                case History.TRAIN:
+                    msg.append("XTRAIN ").append(a);
+                    break;
+                default:
+                    msg.append("XPOWER");
+            }
+            msg.append(" ").append(val);
+            if (msg.length() > 60) {
+                sendMessage(msg.toString());
+                msg.setLength(0);  // =delete content
+            }
+        });
+        if (msg.length() > 0) {
+            sendMessage(msg.toString());
+        }
+        return "XHEND " + now;
+    }
 
+    /**
+     * change the subscription of this client, initially a client is
+     * subscribed to all addresses - the first SUB command limits the updates
+     * to the subscribed addresses
+     *
+     * SUB X &lt;c&gt;[-&lt;c2&gt;] [&lt;mask&gt;] SX channel(s) ("44", "1:40-50"),
+     * optional with bit mask (default 255)
+     *
+     * SUB L &lt;a&gt;[-&lt;a2&gt;] lanbahn address(es) (incl. train numbers),
+     * for SX mapped addresses only the corresponding bits
+     *
+     * SUB * (=all) / UNSUB * (=nothing), UNSUB has the same parameters as SUB
+     */
+    private String subscribeMessage(String[] par, boolean add) {
+        if (par.length < 2) {
+            return "ERROR";
+        }
+        Subscription s = subscription;
+        if (add && !subscribed) {
+            s = Subscription.NONE;  // first SUB, start with an empty subscription
+        }
+        if (par[1].equals("*")) {
+            s = add ? Subscription.ALL : Subscription.NONE;
+        } else if (par.length < 3) {
+            return "ERROR";
+        } else {
+            String from = par[2], to = par[2];
+            int dash = par[2].indexOf('-');
+            if (dash > 0) {
+                from = par[2].substring(0, dash);
+                to = par[2].substring(dash + 1);
+            }
+            if (par[1].equals("X")) {
+                int ch1 = getSXAddrFromString(from);
+                if ((to.indexOf(':') < 0) && (from.indexOf(':') >= 0)) {
+                    to = from.substring(0, from.indexOf(':') + 1) + to;  // "1:40-50" => same bus
+                }
+                int ch2 = getSXAddrFromString(to);
+                int mask = 0xFF;
+                if (par.length > 3) {
+                    try {
+                        mask = Integer.decode(par[3]) & 0xFF;  // decimal or 0x..
+                    } catch (NumberFormatException e) {
+                        return "ERROR";
+                    }
+                }
+                if ((ch1 == INVALID_INT) || (ch2 == INVALID_INT) || (ch2 < ch1)) {
+                    return "ERROR";
+                }
+                s = s.withSX(ch1, ch2, mask, add);
+            } else if (par[1].equals("L")) {
+                int a1 = getLanbahnAddrFromString(from);
+                int a2 = getLanbahnAddrFromString(to);
+                if ((a1 == INVALID_INT) || (a2 == INVALID_INT) || (a2 < a1)) {
+                    return "ERROR";
+                }
+                s = s.withLanbahn(a1, a2, add);
+            } else {
+                return "ERROR";
+            }
+        }
+        subscribed = true;
+        subscription = s;
+        pusher.resend();
+        return "OK";
     }
 
     private int getByteFromString(String s) {
@@ -620,18 +1960,31 @@ public class SXnetClient implements Runnable {
     }
 
     /**
-     * extract the selectrix address from a string, only valid addresses 0...111
-     * are allowed, else "INVALID_INT" is returned
+     * extract the selectrix address from a string, either "44" (=SX0) or bus
+     * qualified "0:44" or "1:44", only valid addresses 0...106 are allowed,
+     * else "INVALID_INT" is returned
      *
      * @param s
-     * @return addr (or INVALID_INT)
+     * @return channel index in SXData (or INVALID_INT)
      */
     int getSXAddrFromString(String s) {
 
         try {
+            int bus = 0;
+            int colon = s.indexOf(':');
+            if (colon >= 0) {
+                bus = Integer.parseInt(s.substring(0, colon));
+                s = s.substring(colon + 1);
+                if ((bus < 0) || (bus >= SXBUSSES)) {
+                    return INVALID_INT;
+                }
+            }
             int channel = Integer.parseInt(s);
             if ((channel >= SXMIN) && (channel <= SXMAX_USED)) {
-                return channel;
+                if (colon >= 0) {
+                    enableSX1();
+                }
+                return SXUtils.sxChannel(bus, channel);
             } else {
                 return INVALID_INT;
             }
@@ -642,6 +1995,47 @@ public class SXnetClient implements Runnable {
         }
     }
 
+    // client knows about the SX1 bus
+    private void enableSX1() {
+        if (!sx1Enabled) {
+            sx1Enabled = true;
+            pusher.enableSX1();
+        }
+    }
+
+    /**
+     * check a (binary) SX channel index
+     *
+     * @param ch
+     * @return ch (or INVALID_INT)
+     */
+    private int checkSXChannel(int ch) {
+        if ((ch < 0) || (ch >= SXCHANNELS)
+                || (SXUtils.sxAddr(ch) < SXMIN) || (SXUtils.sxAddr(ch) > SXMAX_USED)) {
+            return INVALID_INT;
+        }
+        if (SXUtils.sxBus(ch) != 0) {
+            enableSX1();
+        }
+        return ch;
+    }
+
+    /**
+     * check a lanbahn address, either SX-mapped or PURE lanbahn
+     *
+     * @param lbAddr
+     * @return lbAddr (or INVALID_INT)
+     */
+    private int checkLanbahnAddr(int lbAddr) {
+        if ((lbAddr >= LBMIN) && (lbAddr <= LBMAX)) {
+            return lbAddr;
+        } else if (SXUtils.lbAddr2SXChannel(lbAddr) != INVALID_INT) {
+            enableSX1();
+            return lbAddr;   // SX1 address
+        }
+        return INVALID_INT;
+    }
+
     /**
      * parse String to extract a lanbahn address
      *
@@ -652,14 +2046,25 @@ public class SXnetClient implements Runnable {
 
         Integer lbAddr;
         try {
-            lbAddr = Integer.parseInt(s);
-            if ((lbAddr >= LBMIN) && (lbAddr <= LBMAX)) {
-                return lbAddr;
-                // OK, valid lanbahn channel - either SX-mapped or PURE lanbahn
+            int colon = s.indexOf(':');
+            if (colon >= 0) {
+                // bus qualified SX address "1:443" = SX1 address 44 bit 3
+                int bus = Integer.parseInt(s.substring(0, colon));
+                lbAddr = Integer.parseInt(s.substring(colon + 1));
+                if ((bus == 1) && (lbAddr >= LBMIN) && (lbAddr < LBPURE)) {
+                    lbAddr += LBSX1;
+                } else if ((bus != 0) || (lbAddr >= LBPURE)) {
+                    error("lbAddr=" + s + " not valid");
+                    return INVALID_INT;
+                }
             } else {
+                lbAddr = Integer.parseInt(s);
+            }
+            int a = checkLanbahnAddr(lbAddr);  // OK, valid lanbahn channel - either SX-mapped or PURE lanbahn
+            if (a == INVALID_INT) {
                 error("lbAddr=" + lbAddr + " not valid");
-                return INVALID_INT;
             }
+            return a;
         } catch (Exception e) {
             error("number conversion error input=" + s);
             return INVALID_INT;
@@ -667,7 +2072,7 @@ public class SXnetClient implements Runnable {
     }
 
     /**
-     * parse String to extract a number between 0 and LBMAX
+     * parse String to extract a number between 0 and LBMAX_SX1
      *
      * @param s
      * @return lbaddr (or INVALID_INT)
@@ -677,7 +2082,7 @@ public class SXnetClient implements Runnable {
         Integer addr;
         try {
             addr = Integer.parseInt(s);
-            if ((addr >= 0) && (addr <= LBMAX)) {
+            if ((addr >= 0) && (addr <= LBMAX_SX1)) {
                 return addr;
                 // OK, valid lanbahn channel - either SX-mapped or PURE lanbahn
             } else {
@@ -692,50 +2097,39 @@ public class SXnetClient implements Runnable {
 
     public void sendMessage(String res) {
 
-        // don't send empty messages and don't send duplicate messages within 200 ms
-        if (res.isEmpty() || (res.equals(lastRes) && (System.currentTimeMillis() - lastSent < 200))) {
+        // don't send empty messages
+        if (res.isEmpty()) {
             return;
         }
 
-        // store for later use
-        lastRes = res;
-        lastSent = System.currentTimeMillis();
+        reply.text(res);
 
-        out.println(res);
-        //out.flush(); autoflush is set to true
-
-        debug("sxnet" + sn + " send: " + res);
+        if (DEBUG) {
+            debug("sxnet" + sn + " send: " + res);
+        }
 
     }
 
     /**
      * check for changed sxData and send update in case of change
+     *
+     * @param out encoder of the updates
+     * @param sendPower send power state (keepalive tick or power changed)
+     * @param sxChanged check the sx channels
      */
-    private void checkForChangedSXDataAndSendUpdates(int tick) {
-        StringBuilder msg = new StringBuilder();
-        boolean first = true;
+    private void checkForChangedSXDataAndSendUpdates(SXnetEncoder out, boolean sendPower, boolean sxChanged) {
 
         // report change in power channel (but only if "stable")
         // send also as "connected" tick
-        if (((tick % 20) == 0) || (SXData.getActualPower() != powerCopy)) {
+        if (sendPower || (SXData.getActualPower() != powerCopy)) {
             powerCopy = SXData.getActualPower();
-            if (powerCopy) {
-                msg.append("XPOWER 1");
-            } else {
-                msg.append("XPOWER 0");
-            }
-            first = false;
+            out.power(powerCopy);
         }
 
         // report change in connect status
         if ((lastClientConnect == INVALID_INT) || (sxi.connState() != lastClientConnect)) {
             lastClientConnect = sxi.connState();
-            if (!first) {
-                msg.append(";");
-            }
-            msg.append("XCONN ");
-            msg.append(lastClientConnect); // 1 or 0
-            first = false;
+            out.connState(lastClientConnect); // 1 or 0
         }
 
         // report routing status (only ONCE ! at startup)
@@ -745,40 +2139,43 @@ public class SXnetClient implements Runnable {
             } else {
                 lastRouting = 0;
             }
-            if (!first) {
-                msg.append(";");
-            }
-            msg.append("ROUTING ");
-            msg.append(lastRouting); // 1 or 0
-            first = false;
+            out.routing(lastRouting); // 1 or 0
         }
 
-        // report changes in other channels
-        for (int ch = 0; ch <= SXMAX_USED; ch++) {
-            if (SXData.get(ch) != sxDataCopy[ch]) {
-                sxDataCopy[ch] = SXData.get(ch);
-                // channel data changed, send update to mobile device 
-                if (!first) {
-                    msg.append(";");
-                }
-
-                // if (locoAddresses.contains(ch)) {
-                //     msg.append("XLOCO ");
-                // } else {
-                msg.append("X ");
-                // }
-                msg.append(ch).append(" ").append(sxDataCopy[ch]);  // SX Feedback Message
-                first = false;
+        if (!sxChanged) {
+            return;
+        }
 
-                if (msg.length() > 60) {
-                    sendMessage(msg.toString());
-                    msg.setLength(0);  // =delete content
-                    first = true;
-                }
+        // report changes in other channels (only those changed since last epoch)
+        sxEpoch = SXData.changedSince(sxEpoch, changedChannels);
+        boolean withSX1 = sx1Enabled;
+        if (withSX1 && !sx1Sent) {
+            // client has just started to use SX1 => send all SX1 channels
+            for (int ch = SXMAX + 1; ch < SXCHANNELS; ch++) {
+                changedChannels[ch >> 6] |= (1L << (ch & 63));
+            }
+            sx1Sent = true;
+        }
+        // snapshot taken AFTER the epoch => contains all collected changes,
+        // all values are sent from one consistent state
+        LayoutState s = SXData.snapshot();
+        Subscription sub = subscription;
+        for (int ch = 0; ch < SXCHANNELS; ch++) {
+            if ((SXUtils.sxAddr(ch) > SXMAX_USED)
+                    || ((changedChannels[ch >> 6] & (1L << (ch & 63))) == 0)
+                    || (!withSX1 && (SXUtils.sxBus(ch) != 0))) {
+                continue;
+            }
+            int mask = sub.sxMask(ch);  // only changes of the subscribed bits are sent
+            if ((mask != 0) && ((sxDataCopy[ch] == INVALID_INT)
+                    || (((s.get(ch) ^ sxDataCopy[ch]) & mask) != 0))) {
+                sxDataCopy[ch] = s.get(ch);
+                // channel data changed, send update to mobile device
+                out.sx(ch, sxDataCopy[ch]);  // SX Feedback Message
             }
 
         }
-        sendMessage(msg.toString());  // send all messages, separated with ";"
+        Arrays.fill(changedChannels, 0L);
     }
 
     /**
@@ -786,107 +2183,54 @@ public class SXnetClient implements Runnable {
      * change
      *
      */
-    private void checkForLanbahnChangesAndSendUpdates() {
-        StringBuilder msg = new StringBuilder();
-        for (Map.Entry e : LanbahnData.getAll().entrySet()) {
-            Integer key = (Integer) e.getKey();
-            Integer value = (Integer) e.getValue();
-            if (oldLanbahnData.containsKey(key)) {
-                // key (channel) is known, but data have changed
-                if (!Objects.equals(oldLanbahnData.get(key), value)) {
-                    // value has changed
-                    oldLanbahnData.put(key, value);
-                    if (msg.length() != 0) {
-                        msg.append(";");
-                    }
-                    msg.append("XL ").append(key).append(" ").append(value);
-                    if (msg.length() > 60) {
-                        sendMessage(msg.toString());
-                        msg.setLength(0);  // =delete content
-                    }
-                }
-            } else {
-                // new key
-                oldLanbahnData.put(key, value);
-                if (msg.length() != 0) {
-                    msg.append(";");
+    private void checkForLanbahnChangesAndSendUpdates(SXnetEncoder out) {
+        // first call (epoch 0) reports all used addresses
+        lanbahnEpoch = LanbahnData.changedSince(lanbahnEpoch, changedLanbahn);
+        LayoutState s = SXData.snapshot();  // after the epoch, see above
+        Subscription sub = subscription;
+        for (int w = 0; w < changedLanbahn.length; w++) {
+            long bits = changedLanbahn[w];
+            while (bits != 0) {
+                int addr = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= (bits - 1);  // clear lowest bit
+                if (sub.lanbahn(addr)) {
+                    out.lanbahn(addr, s.getLanbahn(addr));
                 }
-                msg.append("XL ").append(key).append(" ").append(value);
-                if (msg.length() > 60) {
-                    sendMessage(msg.toString());
-                    msg.setLength(0);  // =delete content
-                }
-
             }
         }
-        if (msg.length() > 0) {
-            sendMessage(msg.toString());
-        }
+        Arrays.fill(changedLanbahn, 0L);
     }
 
-     private void sendSensorInRouteStatus() {
-        StringBuilder msg = new StringBuilder();
+    private void sendSensorInRouteStatus(SXnetEncoder out) {
+        Subscription sub = subscription;
         for (PanelElement pe : panelElements) {
-            if (pe.isSensor() && (pe.getSecondaryAdr() != INVALID_INT)) {
-                    int value = LanbahnData.get(pe.getSecondaryAdr());
-                    if (msg.length() != 0) {
-                        msg.append(";");
-                    }
-                    msg.append("XL ").append(pe.getSecondaryAdr()).append(" ").append(value);
-                    if (msg.length() > 60) {
-                        sendMessage(msg.toString());
-                        msg.setLength(0);  // =delete content
-                    }
+            if (pe.isSensor() && (pe.getSecondaryAdr() != INVALID_INT)
+                    && sub.lanbahn(pe.getSecondaryAdr())) {
+                out.lanbahn(pe.getSecondaryAdr(), LanbahnData.get(pe.getSecondaryAdr()));
             }
         }
-         if (msg.length() > 0) {
-            sendMessage(msg.toString());
-        }
-     }
+    }
+
     /**
      * check for changed train number data and send update in case of change
      * this is only done for sensors - because these are the only panel elements
      * which can have valid train numbers
      *
      */
-    private void checkForTrainNumberChangesAndSendUpdates() {
-        StringBuilder msg = new StringBuilder();
+    private void checkForTrainNumberChangesAndSendUpdates(SXnetEncoder out) {
+        Subscription sub = subscription;
         for (PanelElement pe : panelElements) {
-            if (pe.isSensor()) {
+            if (pe.isSensor() && sub.lanbahn(pe.getAdr())) {
                 Integer data = (Integer) pe.getTrain();
 
-                if (oldTrainNumberData.containsKey(pe)) {
-                    // key (channel) is known, but data have changed
-                    if (!Objects.equals(oldTrainNumberData.get(pe), data)) {
-                        // value has changed
-                        oldTrainNumberData.put(pe, data);
-                        if (msg.length() != 0) {
-                            msg.append(";");
-                        }
-                        msg.append("XTRAIN ").append(pe.getAdr()).append(" ").append(data);
-                        if (msg.length() > 60) {
-                            sendMessage(msg.toString());
-                            msg.setLength(0);  // =delete content
-                        }
-                    }
-                } else {
-                    // new key
+                // new key or key (channel) is known, but data have changed
+                if (!oldTrainNumberData.containsKey(pe)
+                        || !Objects.equals(oldTrainNumberData.get(pe), data)) {
                     oldTrainNumberData.put(pe, data);
-                    if (msg.length() != 0) {
-                        msg.append(";");
-                    }
-                    msg.append("XTRAIN ").append(pe.getAdr()).append(" ").append(data);
-                    if (msg.length() > 60) {
-                        sendMessage(msg.toString());
-                        msg.setLength(0);  // =delete content
-                    }
-
+                    out.train(pe.getAdr(), data);
                 }
             }
         }
-        if (msg.length() > 0) {
-            sendMessage(msg.toString());
-        }
     }
 
 }
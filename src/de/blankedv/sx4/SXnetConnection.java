@@ -0,0 +1,338 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import static com.esotericsoftware.minlog.Log.*;
+import static de.blankedv.sx4.SX4.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * non-blocking connection of one SXnet client, used by the selector loop of
+ * the SXnetServer
+ *
+ * reading: the received bytes are split into lines ('\n', a '\r' is
+ * ignored), every line is passed to the SXnetClient. After the handshake for
+ * the binary protocol the bytes are split into frames (2 bytes length +
+ * content) instead.
+ *
+ * writing: send() can be called from any thread, it writes directly to the
+ * socket if possible, the rest is queued and written by the selector thread
+ * when the socket becomes writable again. The queue is limited to
+ * sxnetQueueLimit bytes, a client which cannot keep up is either resynced
+ * (queue is discarded, complete state is sent again) or disconnected. The
+ * same is done if the queue has not been written for
+ * SXnetClient.SLOW_CLIENT_MSECS (the client does not read at all). If only
+ * the message which is being written is left, the client is disconnected.
+ *
+ * @author mblank
+ */
+class SXnetConnection implements SXnetClient.Connection {
+
+    private final SXnetServer server;
+    private final SocketChannel channel;
+    private final String remote;
+    private SelectionKey key;
+    private SXnetClient client;
+
+    private final ByteBuffer readBuf = ByteBuffer.allocate(2048);
+    private byte[] line = new byte[1024];  // grows up to MAX_LINE
+    private int lineLength = 0;
+    private boolean lineTooLong = false;
+    private boolean binary = false;  // binary protocol
+    private int headerBytes = 0;  // number of length bytes received
+    private int frameLength = 0;
+
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();  // guarded by "this"
+    private int queuedBytes = 0;  // guarded by "this"
+    private long blockedSince = 0;  // guarded by "this", queue not empty since
+    private boolean closed = false;  // guarded by "this"
+
+    SXnetConnection(SXnetServer server, SocketChannel channel) {
+        this.server = server;
+        this.channel = channel;
+        String r;
+        try {
+            r = channel.getRemoteAddress().toString();
+        } catch (IOException ex) {
+            r = "?";
+        }
+        remote = r;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    void setClient(SXnetClient client) {
+        this.client = client;
+    }
+
+    SXnetClient getClient() {
+        return client;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remote;
+    }
+
+    /**
+     * called by the selector thread when data are available
+     *
+     * @return false if the connection has been closed by the client
+     */
+    boolean read() throws IOException {
+        int n = channel.read(readBuf);
+        if (n < 0) {
+            return false;
+        }
+        readBuf.flip();
+        while (readBuf.hasRemaining()) {
+            byte b = readBuf.get();
+            if (binary) {
+                readFrameByte(b);
+            } else if (b == '\n') {
+                if (!lineTooLong) {
+                    client.handleLine(line, 0, lineLength);
+                } else {
+                    client.lineTooLong();
+                }
+                lineLength = 0;
+                lineTooLong = false;
+            } else if (b != '\r') {
+                if (append(b)) {
+                    lineLength++;
+                }
+            }
+        }
+        readBuf.clear();
+        return true;
+    }
+
+    private void readFrameByte(byte b) {
+        if (headerBytes < 2) {
+            frameLength = (frameLength << 8) | (b & 0xFF);  // big endian
+            if ((++headerBytes == 2) && (frameLength == 0)) {
+                headerBytes = 0;  // empty frame
+            }
+            return;
+        }
+        append(b);
+        if (++lineLength == frameLength) {
+            if (!lineTooLong) {
+                client.handleFrame(line, 0, lineLength);
+            } else {
+                client.lineTooLong();
+            }
+            lineLength = 0;
+            lineTooLong = false;
+            headerBytes = 0;
+            frameLength = 0;
+        }
+    }
+
+    // store b at lineLength, the buffer grows up to MAX_LINE
+    // @return false if the line is too long
+    private boolean append(byte b) {
+        if (lineLength >= line.length) {
+            if (line.length >= SXnetClient.MAX_LINE) {
+                lineTooLong = true;
+                return false;
+            }
+            line = Arrays.copyOf(line, Math.min(line.length * 2, SXnetClient.MAX_LINE));
+        }
+        line[lineLength] = b;
+        return true;
+    }
+
+    /**
+     * called by the selector thread (while handling the handshake line)
+     */
+    @Override
+    public void binaryMode() {
+        binary = true;
+        lineLength = 0;
+        lineTooLong = false;
+    }
+
+    @Override
+    public void send(byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data);  // data may be shared, see SXnetBroadcast
+        boolean register = false;
+        boolean overflow = false;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (writeQueue.isEmpty()) {
+                try {
+                    channel.write(buf);
+                } catch (IOException ex) {
+                    error("sxnet" + client.getSession() + " write error: " + ex.getMessage());
+                    server.closeLater(this);
+                    return;
+                }
+                if (!buf.hasRemaining()) {
+                    return;  // everything written
+                }
+                register = true;
+            }
+            if (writeQueue.isEmpty()) {
+                blockedSince = System.currentTimeMillis();
+            }
+            writeQueue.add(buf);
+            queuedBytes += buf.remaining();
+            if (queuedBytes > sxnetQueueLimit) {
+                overflow = true;
+                if (!disconnectSlowClients) {
+                    discardQueue();
+                }
+            }
+        }
+        if (overflow) {
+            if (disconnectSlowClients) {
+                info("sxnet" + client.getSession() + " too slow, disconnecting");
+                server.closeLater(this);
+                return;
+            }
+            info("sxnet" + client.getSession() + " too slow, output discarded, resync");
+            client.resync();
+        }
+        if (register) {
+            server.writePending(this);  // selector thread will write the rest
+        }
+    }
+
+    // keep only the message which is being written, guarded by "this"
+    // @return false if there was nothing else to discard
+    private boolean discardQueue() {
+        int n = writeQueue.size();
+        ByteBuffer head = writeQueue.poll();
+        writeQueue.clear();
+        queuedBytes = 0;
+        blockedSince = 0;
+        if ((head != null) && (head.position() > 0)) {
+            writeQueue.add(head);
+            queuedBytes = head.remaining();
+            blockedSince = System.currentTimeMillis();
+            return n > 1;
+        }
+        return n > 0;
+    }
+
+    @Override
+    public synchronized int getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    @Override
+    public synchronized long getBlockedSince() {
+        return blockedSince;
+    }
+
+    /**
+     * called by the watchdog, the queue has not been written for
+     * SLOW_CLIENT_MSECS
+     */
+    @Override
+    public void writeBlocked() {
+        boolean disconnect = disconnectSlowClients;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (!disconnect && !discardQueue()) {
+                disconnect = true;  // not even the last message is read
+            }
+        }
+        if (disconnect) {
+            info("sxnet" + client.getSession() + " does not read, disconnecting");
+            server.closeLater(this);
+            return;
+        }
+        info("sxnet" + client.getSession() + " does not read, output discarded, resync");
+        client.resync();
+    }
+
+    /**
+     * called by the selector thread when the socket is writable
+     */
+    void flush() throws IOException {
+        synchronized (this) {
+            while (!writeQueue.isEmpty()) {
+                ByteBuffer buf = writeQueue.peek();
+                queuedBytes -= channel.write(buf);
+                if (buf.hasRemaining()) {
+                    return;  // socket buffer full, wait for next OP_WRITE
+                }
+                writeQueue.poll();
+            }
+            queuedBytes = 0;
+            blockedSince = 0;
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+        client.outputDrained();  // send the updates collected in the meantime
+    }
+
+    /**
+     * called by the selector thread after writePending()
+     */
+    synchronized void enableWrite() {
+        if (!writeQueue.isEmpty() && key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.closeLater(this);
+    }
+
+    /**
+     * called by the selector thread only
+     */
+    void doClose() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            writeQueue.clear();
+            queuedBytes = 0;
+            blockedSince = 0;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            error("sxnet close error: " + ex.getMessage());
+        }
+        if (client != null) {
+            client.stop();
+        }
+    }
+}
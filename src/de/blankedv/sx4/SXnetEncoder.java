@@ -0,0 +1,142 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import java.util.Arrays;
+
+/**
+ * encodes the SXnet messages (feedback and replies) of one session directly
+ * into bytes, either as ASCII text (SXnetAsciiEncoder) or as binary frames
+ * (SXnetBinaryEncoder)
+ *
+ * "batch" encoders collect several messages and send them with flush(), else
+ * every message is sent immediately. Not thread safe, every thread uses its
+ * own encoder. Without a connection (conn == null) the encoded bytes are
+ * fetched with take(), see SXnetBroadcast.
+ *
+ * @author mblank
+ */
+public abstract class SXnetEncoder {
+
+    protected final SXnetClient.Connection conn;
+    protected final boolean batch;
+    protected byte[] buf = new byte[256];
+    protected int len = 0;
+
+    protected SXnetEncoder(SXnetClient.Connection conn, boolean batch) {
+        this.conn = conn;
+        this.batch = batch;
+    }
+
+    /**
+     * SX channel data ("X &lt;c&gt; &lt;d&gt;")
+     */
+    public abstract void sx(int ch, int data);
+
+    public abstract void loco(int ch, int data);
+
+    /**
+     * lanbahn data ("XL &lt;a&gt; &lt;d&gt;")
+     */
+    public abstract void lanbahn(int addr, int data);
+
+    public abstract void train(int addr, int train);
+
+    public abstract void power(boolean on);
+
+    public abstract void connState(int state);
+
+    public abstract void routing(int state);
+
+    /**
+     * sequence number of the last update (after RESUME)
+     */
+    public abstract void seq(long seq);
+
+    /**
+     * complete state in ONE message (DUMP): power, the data of the channels
+     * 0 ... nSX-1 (channel index, i.e. SX0 and then SX1) and the lanbahn
+     * addresses lbAddr[i] with data lbData[i]
+     */
+    public abstract void dump(boolean power, int[] sx, int nSX, int[] lbAddr, int[] lbData, int nLb);
+
+    public abstract void ok();
+
+    public abstract void error();
+
+    /**
+     * any other message (only used for rare messages)
+     */
+    public abstract void text(String msg);
+
+    /**
+     * send all collected messages
+     */
+    public void flush() {
+        if (len > 0) {
+            conn.send(take());
+        }
+    }
+
+    /**
+     * @return all collected messages (without sending them), the encoder is
+     * empty afterwards
+     */
+    public byte[] take() {
+        byte[] b = Arrays.copyOf(buf, len);
+        len = 0;
+        return b;
+    }
+
+    protected void ensure(int n) {
+        if ((len + n) > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+        }
+    }
+
+    protected void put(int b) {
+        ensure(1);
+        buf[len++] = (byte) b;
+    }
+
+    protected void putAscii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buf[len++] = (byte) s.charAt(i);
+        }
+    }
+
+    // decimal number without creating a String
+    protected void putDecimal(int n) {
+        if (n < 0) {
+            put('-');
+            n = -n;
+        }
+        ensure(10);
+        int start = len;
+        do {
+            buf[len++] = (byte) ('0' + (n % 10));
+            n /= 10;
+        } while (n != 0);
+        for (int i = start, j = len - 1; i < j; i++, j--) {  // reverse
+            byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import static com.esotericsoftware.minlog.Log.*;
+import static de.blankedv.sx4.SX4.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * read-only stream of the layout changes as "Server-Sent Events"
+ * (text/event-stream) of the ConfigWebserver, for dashboards and monitors
+ *
+ * it is an SXnet session without commands: the address filter is set with
+ * SUB, the resume after a reconnect (Last-Event-ID) is done with RESUME. Every
+ * update is one event, its lines are the SXnet lines ("X 44 5;XL 853 1") and
+ * its id is the sequence number of the update:
+ *
+ * data: X 44 5;XL 853 1
+ * id: 1792334428745
+ *
+ * @author mblank
+ */
+class SXnetEventStream implements SXnetClient.Connection {
+
+    private static final byte[] DATA = "data: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ID = "id: ".getBytes(StandardCharsets.US_ASCII);
+
+    private final SocketChannel ch;
+    private final InputStream in;
+    private final String remote;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private SXnetClient client;
+
+    private volatile Thread pusherThread;
+    private final AtomicBoolean pushPending = new AtomicBoolean(true);
+    private volatile boolean closed = false;
+    private volatile boolean streaming = false;  // replies of the setup are not sent
+    private volatile int writing = 0;  // bytes of the write in progress
+    private volatile long writeSince = 0;  // start of the write in progress
+
+    /**
+     * @param ch blocking channel, the HTTP request has been read
+     * @param in input of the channel
+     */
+    SXnetEventStream(SocketChannel ch, InputStream in) throws IOException {
+        this.ch = ch;
+        this.in = in;
+        this.remote = ch.getRemoteAddress().toString();
+        ch.socket().setTcpNoDelay(true);
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remote;
+    }
+
+    /**
+     * connection thread: streams the events until the connection is closed
+     *
+     * @param setup SXnet commands for filter and resume, ';' separated, must
+     * end with a RESUME command
+     * @param sessions the client is added while the stream is running
+     */
+    void run(String setup, Collection<SXnetClient> sessions) {
+        String header = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: text/event-stream\r\n"
+                + "Cache-Control: no-cache\r\n"
+                + "Access-Control-Allow-Origin: *\r\n"
+                + "Connection: keep-alive\r\n\r\n";
+        try {
+            write(header.getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        client = new SXnetClient(this, this::wakeUp);
+        info("new event stream " + remote + " (client" + client.getSession() + ") " + setup);
+        sessions.add(client);
+        client.start();
+        client.handleLine(setup);  // all commands BEFORE the first update
+        streaming = true;
+        SXnetServer.startThread(this::pushLoop, "sxnet" + client.getSession() + "-events");
+        try {
+            // nothing is expected from the client, wait for the end of the connection
+            while (running && !closed && (in.read() >= 0)) {
+                // ignore
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                info("sxnet" + client.getSession() + " event stream lost: " + e.getMessage());
+            }
+        }
+        close();
+        sessions.remove(client);
+        client.stop();
+    }
+
+    @Override
+    public void binaryMode() {
+        // no commands, "BINARY" cannot be received
+    }
+
+    // pusher thread: sleeps until there are changes (or keepalive is due)
+    private void pushLoop() {
+        pusherThread = Thread.currentThread();
+        while (running && !closed) {
+            pushPending.set(false);  // reset BEFORE pushing, see wakeUp
+            long wait = client.pushUpdates();
+            if (!pushPending.get() && (wait > 0)) {
+                LockSupport.parkNanos(this, wait * 1000000L);
+            }
+        }
+    }
+
+    void wakeUp() {
+        pushPending.set(true);
+        Thread t = pusherThread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * one update (or message) = one event, a trailing "SEQ &lt;n&gt;" becomes
+     * the id of the event
+     */
+    @Override
+    public void send(byte[] b) {
+        if (!streaming) {
+            return;
+        }
+        byte[] event = toEvent(b);
+        try {
+            if (!writeLock.tryLock(SXnetClient.SLOW_CLIENT_MSECS, TimeUnit.MILLISECONDS)) {
+                slowClient();
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            if (closed) {
+                return;
+            }
+            writing = event.length;
+            writeSince = System.currentTimeMillis();
+            write(event);
+        } catch (IOException ex) {
+            info("sxnet" + client.getSession() + " event stream closed: " + ex.getMessage());
+            close();
+        } finally {
+            writing = 0;
+            writeSince = 0;
+            writeLock.unlock();
+        }
+        client.outputDrained();
+    }
+
+    // with the channel, not with the stream of its socket: on Java 8 the
+    // streams of a blocking channel share one lock, a write would wait for
+    // the end of the read in the connection thread
+    private void write(byte[] b) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(b);
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+    }
+
+    // "X 44 5;SEQ 17\n" => "data: X 44 5\nid: 17\n\n"
+    private static byte[] toEvent(byte[] b) {
+        byte[] e = new byte[b.length + 16 * DATA.length];
+        int n = 0;
+        int seqStart = -1, seqEnd = -1;
+        int start = 0;
+        while (start < b.length) {
+            int end = start;
+            while ((end < b.length) && (b[end] != '\n')) {
+                end++;
+            }
+            int last = end;  // the sequence number is always the last item
+            int item = lastItem(b, start, end);
+            if (startsWith(b, item, end, "SEQ ")) {
+                seqStart = item + 4;
+                seqEnd = end;
+                last = (item > start) ? item - 1 : start;  // without the ';'
+            }
+            if (last > start) {
+                if ((n + DATA.length + (last - start) + 1) > e.length) {
+                    e = Arrays.copyOf(e, e.length * 2 + DATA.length + (last - start));
+                }
+                System.arraycopy(DATA, 0, e, n, DATA.length);
+                n += DATA.length;
+                System.arraycopy(b, start, e, n, last - start);
+                n += last - start;
+                e[n++] = '\n';
+            }
+            start = end + 1;
+        }
+        int rest = ((seqStart >= 0) ? ID.length + (seqEnd - seqStart) + 1 : 0) + 1;
+        if ((n + rest) > e.length) {
+            e = Arrays.copyOf(e, n + rest);
+        }
+        if (seqStart >= 0) {
+            System.arraycopy(ID, 0, e, n, ID.length);
+            n += ID.length;
+            System.arraycopy(b, seqStart, e, n, seqEnd - seqStart);
+            n += seqEnd - seqStart;
+            e[n++] = '\n';
+        }
+        e[n++] = '\n';  // end of event
+        return Arrays.copyOf(e, n);
+    }
+
+    private static int lastItem(byte[] b, int start, int end) {
+        for (int i = end - 1; i >= start; i--) {
+            if (b[i] == ';') {
+                return i + 1;
+            }
+        }
+        return start;
+    }
+
+    private static boolean startsWith(byte[] b, int start, int end, String s) {
+        if ((end - start) < s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (b[start + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void slowClient() {
+        if (disconnectSlowClients) {
+            info("sxnet" + client.getSession() + " too slow, disconnecting");
+            close();  // also ends the blocked write
+        } else {
+            info("sxnet" + client.getSession() + " too slow, message discarded, resync");
+            client.resync();
+        }
+    }
+
+    @Override
+    public int getQueuedBytes() {
+        return writing;
+    }
+
+    @Override
+    public long getBlockedSince() {
+        return writeSince;
+    }
+
+    /**
+     * called by the watchdog: a blocked write cannot be aborted, the
+     * connection is closed (also if slow clients are resynced)
+     */
+    @Override
+    public void writeBlocked() {
+        info("sxnet" + client.getSession() + " event stream does not read, disconnecting");
+        close();  // ends the blocked write
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            ch.close();  // ends the read loop
+        } catch (IOException ex) {
+            error("event stream close error: " + ex.getMessage());
+        }
+        wakeUp();  // ends the pusher loop
+    }
+}
@@ -19,27 +19,52 @@ package de.blankedv.sx4;
 
 import static de.blankedv.sx4.SX4.*;
 import java.io.IOException;
-import java.io.InterruptedIOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.ArrayList;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 import static com.esotericsoftware.minlog.Log.*;
 
 /**
+ * SXnet server with a fixed number of threads, independent of the number of
+ * clients:
+ *
+ * "sxnet-selector" - accepts connections, reads the commands (non-blocking),
+ * executes them and writes the queued output of all connections
+ *
+ * "sxnet-pusher" - sends the updates to all clients, sleeps until the
+ * ChangeBus reports a change (or a keepalive tick is due)
+ *
+ * alternatively (option -n) every session runs on its own threads with
+ * blocking I/O, see SXnetBlockingConnection. On Java 21+ these are virtual
+ * threads, i.e. the number of connections is not limited by the platform
+ * threads and their stacks.
  *
  * @author mblank
  */
 public class SXnetServer {
 
     private static final int SXNET_PORT = 4104;
-    static SXnetServerThread server;
+    // Thread.startVirtualThread (Java 21+), null if not available
+    private static final Method START_VIRTUAL_THREAD = findStartVirtualThread();
 
-    // Preferences
-    //Preferences prefs = Preferences.userNodeForPackage(this.getClass());
-    protected Thread t;
-    private ServerSocket s;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private Thread pusherThread;
 
-    private ArrayList<SXnetClient> clients = new ArrayList<>();
+    private final CopyOnWriteArrayList<SXnetClient> clients = new CopyOnWriteArrayList<>();
+    // connections with pending output or to be closed, handled by the selector thread
+    private final ConcurrentLinkedQueue<SXnetConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<SXnetConnection> pendingCloses = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean pushPending = new AtomicBoolean(true);
 
     /**
      * Creates new form SRCPServerUI
@@ -51,9 +76,14 @@ public class SXnetServer {
             System.exit(1);
         }
         try {
-            s = new ServerSocket(SXNET_PORT, 0, myips.get(0));
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(myips.get(0), SXNET_PORT));
+            if (!sessionThreads) {
+                selector = Selector.open();
+                serverChannel.configureBlocking(false);
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            }
             info("new sxnet server listening at " + myips.get(0) + ":" + SXNET_PORT);
-            //title.s
 
         } catch (IOException ex) {
             error("could not open server socket on port=" + SXNET_PORT);
@@ -65,74 +95,202 @@ public class SXnetServer {
     }
 
     private void startSXnetServer() {
-        if (server == null) {
-            server = new SXnetServerThread();
-            t = new Thread(server);
-            t.start();
+        if (sessionThreads) {
+            if (START_VIRTUAL_THREAD != null) {
+                info("sxnet sessions run on virtual threads");
+            } else {
+                error("virtual threads need Java 21+, sxnet sessions run on platform threads");
+            }
+            Thread acceptThread = new Thread(this::acceptLoop, "sxnet-accept");
+            acceptThread.start();
+            return;
         }
-
+        selectorThread = new Thread(this::selectLoop, "sxnet-selector");
+        selectorThread.start();
+        pusherThread = new Thread(this::pushLoop, "sxnet-pusher");
+        pusherThread.setDaemon(true);
+        pusherThread.start();
     }
 
     public void stopClients() {
         for (SXnetClient c : clients) {
-            c.stop();
+            c.close();
         }
         running = false;
-    }
-
-
-    /*The finalize() method is called by the Java virtual machine (JVM)* before 
-    the program exits to give the program a chance to clean up and release resources.
-    Multi-threaded programs should close all Files and Sockets they use before 
-    exiting so they do not face resource starvation. The call to s.close() 
-    in the finalize() method closes the Socket connection used by each thread 
-    in this program.
-     */
-    @Override
-    protected void finalize() throws Throwable {
-        super.finalize();
-        close();
+        if (selector != null) {
+            selector.wakeup();
+        } else {
+            close();  // ends the accept loop
+        }
     }
 
     public void close() {
         try {
-            s.close();
+            serverChannel.close();
         } catch (IOException e) {
             error("Could not close socket");
-            System.exit(-1);
         }
     }
 
-    class SXnetServerThread implements Runnable {
-
-        public void run() {
-            try {
-                while (running) {
-                    Socket incoming = s.accept();  // wait for client to connect
+    /**
+     * output of the connection could not be written completely, the selector
+     * thread has to wait until the socket is writable
+     */
+    void writePending(SXnetConnection c) {
+        pendingWrites.add(c);
+        selector.wakeup();
+    }
 
-                    info("new client connected " + incoming.getRemoteSocketAddress().toString() + "\n");
+    void closeLater(SXnetConnection c) {
+        pendingCloses.add(c);
+        selector.wakeup();
+    }
 
-                    // after new client has connected start new thread to handle this client
-                    SXnetClient r = new SXnetClient(incoming);
-                    clients.add(r);
-                    Thread t = new Thread(r);
-                    t.start();
+    private void selectLoop() {
+        try {
+            while (running) {
+                selector.select();
 
+                SXnetConnection c;
+                while ((c = pendingWrites.poll()) != null) {
+                    c.enableWrite();
                 }
-                info("SXnetServerThread closing.");
-                s.close();
-            } catch (InterruptedIOException e1) {
-                try {
-                    info("SXnetServerThread interrupted, closing socket");
-                    s.close();
-                } catch (IOException ex) {
-                    error("closing error " + ex);
+                while ((c = pendingCloses.poll()) != null) {
+                    closeConnection(c);
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    c = (SXnetConnection) key.attachment();
+                    try {
+                        if (key.isReadable() && !c.read()) {
+                            closeConnection(c);
+                            continue;
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            c.flush();
+                        }
+                    } catch (IOException ex) {
+                        info("sxnet" + c.getClient().getSession() + " connection lost: " + ex.getMessage());
+                        closeConnection(c);
+                    }
                 }
-            } catch (IOException ex) {
+            }
+            info("SXnetServerThread closing.");
+        } catch (IOException ex) {
+            error("SXnetServer error:" + ex);
+        }
+        for (SXnetClient cl : clients) {
+            cl.close();
+        }
+        SXnetConnection c;
+        while ((c = pendingCloses.poll()) != null) {
+            closeConnection(c);
+        }
+        close();
+    }
+
+    private static Method findStartVirtualThread() {
+        try {
+            return Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * start a thread for a session, a virtual thread if available
+     */
+    static void startThread(Runnable r, String name) {
+        if (START_VIRTUAL_THREAD != null) {
+            try {
+                Thread t = (Thread) START_VIRTUAL_THREAD.invoke(null, r);
+                t.setName(name);
+                return;
+            } catch (ReflectiveOperationException e) {
+                error("could not start virtual thread: " + e);
+            }
+        }
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    void removeClient(SXnetClient c) {
+        clients.remove(c);
+    }
+
+    // thread per session mode, the server channel is blocking
+    private void acceptLoop() {
+        try {
+            while (running) {
+                SocketChannel incoming = serverChannel.accept();
+                info("new client connected " + incoming.getRemoteAddress().toString());
+                SXnetBlockingConnection c = new SXnetBlockingConnection(this, incoming);
+                SXnetClient client = new SXnetClient(c, c::wakeUp);
+                c.setClient(client);
+                clients.add(client);
+                startThread(c::readLoop, "sxnet" + client.getSession());
+            }
+        } catch (IOException ex) {
+            if (running) {
                 error("SXnetServer error:" + ex);
             }
+        }
+        info("SXnetServerThread closing.");
+    }
 
+    private void accept() throws IOException {
+        SocketChannel ch = serverChannel.accept();
+        if (ch == null) {
+            return;
         }
+        info("new client connected " + ch.getRemoteAddress().toString());
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+        SXnetConnection c = new SXnetConnection(this, ch);
+        SXnetClient client = new SXnetClient(c, this::wakeUpPusher);
+        c.setClient(client);
+        c.setKey(ch.register(selector, SelectionKey.OP_READ, c));
+        clients.add(client);
+        client.start();
+        wakeUpPusher();  // send initial state
+    }
+
+    private void closeConnection(SXnetConnection c) {
+        clients.remove(c.getClient());
+        c.doClose();
     }
 
+    private void wakeUpPusher() {
+        pushPending.set(true);
+        LockSupport.unpark(pusherThread);
+    }
+
+    // one thread pushes the updates to all clients
+    private void pushLoop() {
+        while (running) {
+            pushPending.set(false);  // reset BEFORE pushing, see wakeUpPusher
+            long wait = SXnetClient.KEEPALIVE_MSECS;
+            for (SXnetClient c : clients) {
+                try {
+                    wait = Math.min(wait, c.pushUpdates());
+                } catch (RuntimeException e) {
+                    error("sxnet" + c.getSession() + " push error: " + e);
+                }
+            }
+            if (!pushPending.get() && (wait > 0)) {
+                LockSupport.parkNanos(this, wait * 1000000L);
+            }
+        }
+    }
 }
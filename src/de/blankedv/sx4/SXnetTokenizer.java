@@ -0,0 +1,199 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * byte level tokenizer of the ASCII SXnet commands: a command (up to the
+ * next ';') is parsed directly from the receive buffer into the opcode and
+ * its numeric parameters - no Strings, no regex, no exceptions, no objects.
+ * The keyword is looked up in a table indexed by its first letter.
+ *
+ * a parameter is a decimal number, optionally bus qualified ("1:44"). Only
+ * the frequent commands are parsed here: for all other commands (and every
+ * parameter which is not a plain number) op is OP_OTHER and the command is
+ * handled by the String parser of SXnetClient.
+ *
+ * not thread safe, one tokenizer per session
+ *
+ * @author mblank
+ */
+final class SXnetTokenizer {
+
+    static final int OP_EMPTY = 0;  // blank command
+    static final int OP_OTHER = 1;  // use the String parser
+    static final int OP_S = 2;
+    static final int OP_R = 3;
+    static final int OP_SET = 4;
+    static final int OP_READ = 5;
+    static final int OP_SETLOCO = 6;
+    static final int OP_READLOCO = 7;
+    static final int OP_REQ = 8;
+    static final int OP_SETPOWER = 9;
+    static final int OP_READPOWER = 10;
+    static final int OP_SETTRAIN = 11;
+    static final int OP_READTRAIN = 12;
+    static final int OP_SXM = 13;
+    static final int OP_SETM = 14;
+    static final int OP_DUMP = 15;
+
+    static final int MAX_PARAMS = 64;  // longer commands use the String parser
+    static final int NO_BUS = -1;
+
+    private static final String[] KEYWORDS = {"S", "SX", "R", "SET", "READ", "SETLOCO", "READLOCO",
+        "REQ", "SETPOWER", "READPOWER", "SETTRAIN", "READTRAIN", "SXM", "SETM", "DUMP"};
+    private static final int[] KEYWORD_OPS = {OP_S, OP_S, OP_R, OP_SET, OP_READ, OP_SETLOCO, OP_READLOCO,
+        OP_REQ, OP_SETPOWER, OP_READPOWER, OP_SETTRAIN, OP_READTRAIN, OP_SXM, OP_SETM, OP_DUMP};
+    // keywords and their opcodes by first letter
+    private static final byte[][][] TABLE = new byte[26][][];
+    private static final int[][] TABLE_OPS = new int[26][];
+
+    static {
+        for (int c = 0; c < 26; c++) {
+            int n = 0;
+            for (String k : KEYWORDS) {
+                n += (k.charAt(0) == 'A' + c) ? 1 : 0;
+            }
+            TABLE[c] = new byte[n][];
+            TABLE_OPS[c] = new int[n];
+            n = 0;
+            for (int i = 0; i < KEYWORDS.length; i++) {
+                if (KEYWORDS[i].charAt(0) == 'A' + c) {
+                    TABLE[c][n] = KEYWORDS[i].getBytes(StandardCharsets.US_ASCII);
+                    TABLE_OPS[c][n++] = KEYWORD_OPS[i];
+                }
+            }
+        }
+    }
+
+    int op;
+    int nParams;
+    final int[] bus = new int[MAX_PARAMS];  // NO_BUS if not bus qualified
+    final int[] value = new int[MAX_PARAMS];
+    int start;  // the command is b[start] ... b[end-1], for the String parser
+    int end;
+
+    /**
+     * parse the command starting at b[off] up to the next ';' (or up to
+     * "limit")
+     *
+     * @return index after the command and its ';'
+     */
+    int parse(byte[] b, int off, int limit) {
+        int cmdEnd = off;
+        while ((cmdEnd < limit) && (b[cmdEnd] != ';')) {
+            cmdEnd++;
+        }
+        start = off;
+        end = cmdEnd;
+        nParams = 0;
+        op = tokenize(b, off, cmdEnd);
+        return (cmdEnd < limit) ? cmdEnd + 1 : limit;
+    }
+
+    private int tokenize(byte[] b, int i, int end) {
+        i = skipBlanks(b, i, end);
+        if (i == end) {
+            return OP_EMPTY;
+        }
+        int k = i;
+        while ((k < end) && !isBlank(b[k])) {
+            k++;
+        }
+        int op = lookup(b, i, k);
+        if (op == OP_OTHER) {
+            return OP_OTHER;
+        }
+        i = skipBlanks(b, k, end);
+        while (i < end) {
+            if (nParams == MAX_PARAMS) {
+                return OP_OTHER;
+            }
+            int v = 0, digits = 0;
+            int p = nParams;
+            bus[p] = NO_BUS;
+            boolean negative = false;
+            if ((b[i] == '+') || (b[i] == '-')) {
+                negative = (b[i] == '-');
+                i++;
+            }
+            while ((i < end) && !isBlank(b[i])) {
+                int c = b[i++];
+                if ((c >= '0') && (c <= '9')) {
+                    if (++digits > 9) {
+                        return OP_OTHER;  // no overflow check needed below 10^9
+                    }
+                    v = v * 10 + (c - '0');
+                } else if ((c == ':') && (bus[p] == NO_BUS) && (digits > 0) && !negative) {
+                    bus[p] = v;
+                    v = 0;
+                    digits = 0;
+                } else {
+                    return OP_OTHER;
+                }
+            }
+            if (digits == 0) {
+                return OP_OTHER;
+            }
+            value[p] = negative ? -v : v;
+            nParams++;
+            i = skipBlanks(b, i, end);
+        }
+        return op;
+    }
+
+    // keyword b[from] ... b[to-1], case insensitive
+    private static int lookup(byte[] b, int from, int to) {
+        int c = upper(b[from]) - 'A';
+        if ((c < 0) || (c >= 26)) {
+            return OP_OTHER;
+        }
+        byte[][] keys = TABLE[c];
+        for (int k = 0; k < keys.length; k++) {
+            byte[] key = keys[k];
+            if (key.length != (to - from)) {
+                continue;
+            }
+            int j = 1;
+            while ((j < key.length) && (upper(b[from + j]) == key[j])) {
+                j++;
+            }
+            if (j == key.length) {
+                return TABLE_OPS[c][k];
+            }
+        }
+        return OP_OTHER;
+    }
+
+    private static int upper(byte c) {
+        return ((c >= 'a') && (c <= 'z')) ? c - ('a' - 'A') : c;
+    }
+
+    // same whitespace as the regex "\\s" of the String parser
+    private static boolean isBlank(byte c) {
+        return (c == ' ') || (c == '\t') || (c == 0x0B) || (c == '\f') || (c == '\r') || (c == '\n');
+    }
+
+    private static int skipBlanks(byte[] b, int i, int end) {
+        while ((i < end) && isBlank(b[i])) {
+            i++;
+        }
+        return i;
+    }
+}
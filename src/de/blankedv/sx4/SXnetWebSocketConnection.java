@@ -0,0 +1,366 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import static com.esotericsoftware.minlog.Log.*;
+import static de.blankedv.sx4.SX4.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SXnet session of a browser panel over a WebSocket (RFC 6455) of the
+ * ConfigWebserver (ws://&lt;sx4&gt;:8000/sxnet), same commands and updates as
+ * on port 4104:
+ *
+ * every text message contains one or more command lines, every message sent
+ * by SX4 contains one or more complete lines. After "BINARY" both directions
+ * use binary messages which contain SXnet binary frames (see
+ * SXnetBinaryEncoder).
+ *
+ * like SXnetBlockingConnection one thread reads the messages and one thread
+ * pushes the updates. The updates are the byte arrays shared by all clients
+ * (see SXnetBroadcast), only the small WebSocket header is created per
+ * client - header and payload are written with one gathering write.
+ *
+ * @author mblank
+ */
+class SXnetWebSocketConnection implements SXnetClient.Connection {
+
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int MAX_MESSAGE = 65536;  // longer messages close the connection
+
+    private static final int OP_CONT = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_BINARY = 0x2;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    private final SocketChannel ch;
+    private final InputStream in;
+    private final String remote;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ByteBuffer header = ByteBuffer.allocate(10);  // guarded by writeLock
+    private SXnetClient client;
+
+    private volatile Thread pusherThread;
+    private final AtomicBoolean pushPending = new AtomicBoolean(true);
+    private volatile boolean closed = false;
+    private volatile int writing = 0;  // bytes of the write in progress
+    private volatile long writeSince = 0;  // start of the write in progress
+    private volatile boolean binary = false;
+    private byte[] message = new byte[1024];
+
+    /**
+     * @param ch blocking channel, the HTTP upgrade request has been read
+     * @param in input of the channel (with the data following the request)
+     */
+    SXnetWebSocketConnection(SocketChannel ch, InputStream in) throws IOException {
+        this.ch = ch;
+        this.in = in;
+        this.remote = ch.getRemoteAddress().toString();
+        ch.socket().setTcpNoDelay(true);
+    }
+
+    /**
+     * @return value of the "Sec-WebSocket-Accept" header for the key sent by
+     * the client
+     */
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] d = sha1.digest((key.trim() + GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(d);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);  // SHA-1 is always available
+        }
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remote;
+    }
+
+    /**
+     * connection thread: runs the SXnet session until the connection is
+     * closed
+     *
+     * @param sessions the client is added while the session is running
+     */
+    void run(Collection<SXnetClient> sessions) {
+        client = new SXnetClient(this, this::wakeUp);
+        info("new websocket client " + remote + " (client" + client.getSession() + ")");
+        sessions.add(client);
+        client.start();
+        SXnetServer.startThread(this::pushLoop, "sxnet" + client.getSession() + "-ws-pusher");
+        try {
+            while (running && !closed && readMessage()) {
+                // next message
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                info("sxnet" + client.getSession() + " websocket lost: " + e.getMessage());
+            }
+        }
+        close();
+        sessions.remove(client);
+        client.stop();
+    }
+
+    // one complete (maybe fragmented) message, false at end of stream
+    private boolean readMessage() throws IOException {
+        int op = -1;
+        int n = 0;
+        while (true) {
+            int b0 = in.read();
+            int b1 = in.read();
+            if (b1 < 0) {
+                return false;
+            }
+            boolean fin = (b0 & 0x80) != 0;
+            int frameOp = b0 & 0x0F;
+            long length = b1 & 0x7F;
+            if (length == 126) {
+                length = (readByte() << 8) | readByte();
+            } else if (length == 127) {
+                length = 0;
+                for (int i = 0; i < 8; i++) {
+                    length = (length << 8) | readByte();
+                }
+            }
+            byte[] mask = new byte[4];
+            if ((b1 & 0x80) != 0) {
+                readFully(mask, 0, 4);
+            }
+            if ((frameOp & 0x08) != 0) {
+                // control frame, may be sent between fragments
+                if (length > 125) {
+                    return false;
+                }
+                byte[] payload = new byte[(int) length];
+                readFully(payload, 0, payload.length);
+                unmask(payload, 0, payload.length, mask);
+                if (frameOp == OP_CLOSE) {
+                    sendFrame(OP_CLOSE, payload);  // echo, then close
+                    return false;
+                } else if (frameOp == OP_PING) {
+                    sendFrame(OP_PONG, payload);
+                }
+                continue;
+            }
+            if ((length < 0) || ((n + length) > MAX_MESSAGE)) {
+                error("sxnet" + client.getSession() + " websocket message too long, closing");
+                sendFrame(OP_CLOSE, new byte[]{0x03, (byte) 0xF1});  // 1009 = message too big
+                return false;
+            }
+            if (frameOp != OP_CONT) {
+                op = frameOp;
+                n = 0;
+            }
+            if ((n + length) > message.length) {
+                message = Arrays.copyOf(message, Math.max(message.length * 2, n + (int) length));
+            }
+            readFully(message, n, (int) length);
+            unmask(message, n, (int) length, mask);
+            n += length;
+            if (fin) {
+                break;
+            }
+        }
+        if (op == OP_TEXT) {
+            int start = 0;
+            for (int i = 0; i <= n; i++) {
+                if ((i == n) || (message[i] == '\n')) {
+                    client.handleLine(message, start, i - start);
+                    start = i + 1;
+                }
+            }
+        } else if (op == OP_BINARY) {
+            // SXnet binary frames: length (2 bytes) + opcode + payload
+            int i = 0;
+            while ((i + 2) <= n) {
+                int length = ((message[i] & 0xFF) << 8) | (message[i + 1] & 0xFF);
+                if ((i + 2 + length) > n) {
+                    error("sxnet" + client.getSession() + " incomplete binary frame, discarded");
+                    break;
+                }
+                client.handleFrame(message, i + 2, length);
+                i += 2 + length;
+            }
+        }
+        return true;
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new IOException("end of stream");
+        }
+        return b;
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int r = in.read(b, off, len);
+            if (r < 0) {
+                throw new IOException("end of stream");
+            }
+            off += r;
+            len -= r;
+        }
+    }
+
+    private static void unmask(byte[] b, int off, int len, byte[] mask) {
+        for (int i = 0; i < len; i++) {
+            b[off + i] ^= mask[i & 3];
+        }
+    }
+
+    /**
+     * called by the connection thread (while handling the handshake line)
+     */
+    @Override
+    public void binaryMode() {
+        binary = true;
+    }
+
+    // pusher thread: sleeps until there are changes (or keepalive is due)
+    private void pushLoop() {
+        pusherThread = Thread.currentThread();
+        while (running && !closed) {
+            pushPending.set(false);  // reset BEFORE pushing, see wakeUp
+            long wait = client.pushUpdates();
+            if (!pushPending.get() && (wait > 0)) {
+                LockSupport.parkNanos(this, wait * 1000000L);
+            }
+        }
+    }
+
+    void wakeUp() {
+        pushPending.set(true);
+        Thread t = pusherThread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    @Override
+    public void send(byte[] b) {
+        sendFrame(binary ? OP_BINARY : OP_TEXT, b);
+        client.outputDrained();
+    }
+
+    // one unfragmented, unmasked frame - b is not copied
+    private void sendFrame(int op, byte[] b) {
+        try {
+            if (!writeLock.tryLock(SXnetClient.SLOW_CLIENT_MSECS, TimeUnit.MILLISECONDS)) {
+                slowClient();
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            if (closed) {
+                return;
+            }
+            writing = b.length;
+            writeSince = System.currentTimeMillis();
+            header.clear();
+            header.put((byte) (0x80 | op));
+            if (b.length < 126) {
+                header.put((byte) b.length);
+            } else if (b.length <= 0xFFFF) {
+                header.put((byte) 126);
+                header.putShort((short) b.length);
+            } else {
+                header.put((byte) 127);
+                header.putLong(b.length);
+            }
+            header.flip();
+            ByteBuffer[] bufs = {header, ByteBuffer.wrap(b)};
+            while (bufs[1].hasRemaining()) {
+                ch.write(bufs);
+            }
+        } catch (IOException ex) {
+            error("sxnet" + client.getSession() + " websocket write error: " + ex.getMessage());
+            close();
+        } finally {
+            writing = 0;
+            writeSince = 0;
+            writeLock.unlock();
+        }
+    }
+
+    private void slowClient() {
+        if (disconnectSlowClients) {
+            info("sxnet" + client.getSession() + " too slow, disconnecting");
+            close();  // also ends the blocked write
+        } else {
+            info("sxnet" + client.getSession() + " too slow, message discarded, resync");
+            client.resync();
+        }
+    }
+
+    @Override
+    public int getQueuedBytes() {
+        return writing;
+    }
+
+    @Override
+    public long getBlockedSince() {
+        return writeSince;
+    }
+
+    /**
+     * called by the watchdog: a blocked write cannot be aborted, the
+     * connection is closed (also if slow clients are resynced)
+     */
+    @Override
+    public void writeBlocked() {
+        info("sxnet" + client.getSession() + " websocket does not read, disconnecting");
+        close();  // ends the blocked write
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            ch.close();  // ends the read loop
+        } catch (IOException ex) {
+            error("websocket close error: " + ex.getMessage());
+        }
+        wakeUp();  // ends the pusher loop
+    }
+}
@@ -18,6 +18,7 @@ along with this program. If not, see <http://www.gnu.org/licenses/>.
 
 package de.blankedv.sx4;
 
+import static de.blankedv.sx4.Constants.*;
 import static de.blankedv.sx4.SX4.*;
 
 /**
@@ -62,11 +63,16 @@ public class SimulationInterface extends GenericSXInterface {
     
     @Override
     public String doUpdate() {
+        // the simulated interface "writes" all channels at once and reports
+        // the new value with the same poll
+        int addr;
+        while ((addr = dataToSend.pollWrite()) != INVALID_INT) {
+            Trace.writing(addr);
+            Trace.written(addr, dataToSend.getValue(addr));
+            Trace.polled(addr, SXData.get(addr));
+        }
         // empty send queue
-       while (!dataToSend.isEmpty()) {
-                IntegerPair sxd = dataToSend.poll();
-               
-       }
+       dataToSend.clear();
        return "OK";
     }
 
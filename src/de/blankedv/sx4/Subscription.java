@@ -0,0 +1,107 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import static de.blankedv.sx4.Constants.*;
+import de.blankedv.sx4.timetable.PanelElement;
+import java.util.Arrays;
+
+/**
+ * the addresses an SXnet client is interested in (SUB/UNSUB commands):
+ * a bit mask per SX channel (updates are only sent if one of these bits has
+ * changed) and a bitset of lanbahn addresses (lanbahn data and train numbers).
+ * SX mapped lanbahn addresses are stored as bits of the SX channel masks.
+ *
+ * immutable, a change creates a new Subscription - the pusher thread can use
+ * it without locking.
+ *
+ * @author mblank
+ */
+public final class Subscription {
+
+    private static final int LB_WORDS = LBMAX_SX1 / 64 + 1;
+
+    public static final Subscription ALL = createAll();
+    public static final Subscription NONE = new Subscription(new int[SXCHANNELS], new long[LB_WORDS]);
+
+    private final int[] sxMask;
+    private final long[] lanbahn;  // bit n = address n
+
+    private Subscription(int[] sxMask, long[] lanbahn) {
+        this.sxMask = sxMask;
+        this.lanbahn = lanbahn;
+    }
+
+    private static Subscription createAll() {
+        int[] m = new int[SXCHANNELS];
+        Arrays.fill(m, 0xFF);
+        long[] lb = new long[LB_WORDS];
+        Arrays.fill(lb, -1L);
+        return new Subscription(m, lb);
+    }
+
+    /**
+     * @return the bits of channel ch the client is interested in (0 = none)
+     */
+    public int sxMask(int ch) {
+        return sxMask[ch];
+    }
+
+    /**
+     * @return true if the client is interested in (lanbahn or train number)
+     * address addr
+     */
+    public boolean lanbahn(int addr) {
+        if ((addr < 0) || (addr > LBMAX_SX1)) {
+            return false;
+        }
+        return (lanbahn[addr >> 6] & (1L << (addr & 63))) != 0;
+    }
+
+    /**
+     * add (or remove) the bits "mask" of the SX channels from ... to
+     */
+    public Subscription withSX(int from, int to, int mask, boolean add) {
+        int[] m = sxMask.clone();
+        for (int ch = from; ch <= to; ch++) {
+            m[ch] = add ? (m[ch] | mask) : (m[ch] & ~mask);
+        }
+        return new Subscription(m, lanbahn);
+    }
+
+    /**
+     * add (or remove) the lanbahn addresses from ... to, for SX mapped
+     * addresses the corresponding bit(s) of the SX channel are added, too
+     */
+    public Subscription withLanbahn(int from, int to, boolean add) {
+        int[] m = sxMask.clone();
+        long[] lb = lanbahn.clone();
+        for (int a = from; a <= to; a++) {
+            long bit = 1L << (a & 63);
+            lb[a >> 6] = add ? (lb[a >> 6] | bit) : (lb[a >> 6] & ~bit);
+            int ch = SXUtils.lbAddr2SXChannel(a);
+            if (ch != INVALID_INT) {
+                PanelElement pe = PanelElement.getByAddress(a);
+                int b = ((pe != null) && (pe.getSXChannel() == ch))
+                        ? pe.getSXMask() : 1 << ((a % 10) - 1);  // 2 bit elements
+                m[ch] = add ? (m[ch] | b) : (m[ch] & ~b);
+            }
+        }
+        return new Subscription(m, lb);
+    }
+}
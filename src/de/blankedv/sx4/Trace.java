@@ -0,0 +1,186 @@
+/*
+SX4
+Copyright (C) 2019 Michael Blank
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.blankedv.sx4;
+
+import static com.esotericsoftware.minlog.Log.*;
+import static de.blankedv.sx4.Constants.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * latency tracing of the SX commands of the SXnet clients, e.g. "SET 853 1",
+ * from the received line to the SX interface reporting the new value. The
+ * durations of the stages are recorded as "sx4_trace_seconds{stage=...}"
+ * (see Metrics):
+ *
+ * apply - line received until the channel is changed and the write scheduled
+ * notify - channel changed until the update for the clients is created
+ * queue - write scheduled until the interface starts writing (dataToSend)
+ * serial - serial write incl. acknowledge
+ * confirm - write acknowledged until the interface reports the new value
+ * (next poll)
+ * total - line received until confirm
+ *
+ * a trace is carried per SX channel, like the writes in dataToSend: several
+ * commands for the same channel before the write are one trace (the oldest
+ * one counts). With DEBUG every completed trace is logged with its source
+ * (the SXnet client). Recording does not allocate and never blocks.
+ *
+ * @author mblank
+ */
+final class Trace {
+
+    private static final Metrics.Histogram APPLY = stage("apply",
+            "latency of the SX commands of the SXnet clients per stage, see Trace");
+    private static final Metrics.Histogram NOTIFY = stage("notify", "");
+    private static final Metrics.Histogram QUEUE = stage("queue", "");
+    private static final Metrics.Histogram SERIAL = stage("serial", "");
+    private static final Metrics.Histogram CONFIRM = stage("confirm", "");
+    private static final Metrics.Histogram TOTAL = stage("total", "");
+
+    // start of the command handled by the current thread, 0 = not traced
+    private static final ThreadLocal<long[]> start = ThreadLocal.withInitial(() -> new long[]{0});
+
+    // per channel, 0 = no trace
+    private static final AtomicLongArray received = new AtomicLongArray(SXCHANNELS);
+    private static final AtomicIntegerArray sources = new AtomicIntegerArray(SXCHANNELS);
+    private static final AtomicLongArray changed = new AtomicLongArray(SXCHANNELS);
+    private static final AtomicLongArray scheduled = new AtomicLongArray(SXCHANNELS);
+    private static final AtomicLongArray writing = new AtomicLongArray(SXCHANNELS);
+    private static final AtomicLongArray origin = new AtomicLongArray(SXCHANNELS);  // received of the write
+    private static final AtomicLongArray acked = new AtomicLongArray(SXCHANNELS);
+    private static final AtomicIntegerArray expected = new AtomicIntegerArray(SXCHANNELS);
+    private static final AtomicLongArray queueNanos = new AtomicLongArray(SXCHANNELS);  // for the log
+    private static final AtomicLongArray serialNanos = new AtomicLongArray(SXCHANNELS);
+
+    private Trace() {
+    }
+
+    private static Metrics.Histogram stage(String name, String help) {
+        return Metrics.histogram("sx4_trace_seconds", "stage=\"" + name + "\"", help);
+    }
+
+    /**
+     * the changes done by the current thread until end() belong to a command
+     * received at startNanos (System.nanoTime())
+     *
+     * @return previous start, to be passed to end()
+     */
+    static long begin(long startNanos) {
+        long[] s = start.get();
+        long prev = s[0];
+        s[0] = startNanos;
+        return prev;
+    }
+
+    static void end(long prev) {
+        start.get()[0] = prev;
+    }
+
+    /**
+     * channel ch has been changed (SXData)
+     */
+    static void changed(int ch) {
+        if (start.get()[0] != 0) {
+            changed.compareAndSet(ch, 0, System.nanoTime());
+        }
+    }
+
+    /**
+     * the update of channel ch is sent to the clients (SXnetBroadcast)
+     */
+    static void notified(int ch) {
+        long t = changed.getAndSet(ch, 0);
+        if (t != 0) {
+            NOTIFY.since(t);
+        }
+    }
+
+    /**
+     * a write of channel ch has been scheduled (dataToSend)
+     */
+    static void scheduled(int ch) {
+        long t = start.get()[0];
+        if (t == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        APPLY.record(now - t);
+        if (scheduled.compareAndSet(ch, 0, now)) {
+            received.set(ch, t);  // no write pending, a new trace starts
+            sources.set(ch, History.source());
+        }
+    }
+
+    /**
+     * the interface starts writing channel ch
+     */
+    static void writing(int ch) {
+        long t = scheduled.getAndSet(ch, 0);
+        if (t == 0) {
+            return;  // not traced
+        }
+        long now = System.nanoTime();
+        QUEUE.record(now - t);
+        queueNanos.set(ch, now - t);
+        origin.set(ch, received.get(ch));
+        writing.set(ch, now);
+    }
+
+    /**
+     * the interface has written "value" to channel ch (and it has been
+     * acknowledged)
+     */
+    static void written(int ch, int value) {
+        long t = writing.getAndSet(ch, 0);
+        if (t == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        SERIAL.record(now - t);
+        serialNanos.set(ch, now - t);
+        expected.set(ch, value);
+        acked.set(ch, now);
+    }
+
+    /**
+     * the interface reports "value" for channel ch (poll or feedback)
+     */
+    static void polled(int ch, int value) {
+        long t = acked.get(ch);
+        if ((t == 0) || (value != expected.get(ch)) || !acked.compareAndSet(ch, t, 0)) {
+            return;
+        }
+        long now = System.nanoTime();
+        CONFIRM.record(now - t);
+        long r = origin.getAndSet(ch, 0);
+        if (r != 0) {
+            TOTAL.record(now - r);
+            if (DEBUG) {
+                debug("trace " + History.sourceToString(sources.get(ch)) + " X " + SXUtils.sxChannelToString(ch)
+                        + " " + value + ": queue=" + millis(queueNanos.get(ch))
+                        + " serial=" + millis(serialNanos.get(ch)) + " confirm=" + millis(now - t)
+                        + " total=" + millis(now - r) + " ms");
+            }
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1f", nanos / 1e6);
+    }
+}
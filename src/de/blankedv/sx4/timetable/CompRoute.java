@@ -19,10 +19,15 @@ package de.blankedv.sx4.timetable;
 
 import static com.esotericsoftware.minlog.Log.debug;
 import static com.esotericsoftware.minlog.Log.error;
+import static de.blankedv.sx4.Constants.INVALID_INT;
+import de.blankedv.sx4.ChangeBus;
+import de.blankedv.sx4.Flight;
 import de.blankedv.sx4.LanbahnData;
+import de.blankedv.sx4.Metrics;
 import static de.blankedv.sx4.timetable.Vars.*;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
@@ -45,6 +50,24 @@ public class CompRoute extends PanelElement {
 
     private long clearRouteTime = Long.MAX_VALUE;  // i.e. => never, if not set
 
+    // set via ChangeBus (which is fired after the PanelElements are updated),
+    // the end sensors are only checked after a change
+    private static final AtomicBoolean sensorsChanged = new AtomicBoolean(true);
+
+    static {
+        ChangeBus.subscribe(new ChangeBus.Listener() {
+            @Override
+            public void sxChanged(int addr, int data) {
+                sensorsChanged.set(true);
+            }
+
+            @Override
+            public void lanbahnChanged(int addr, int data) {
+                sensorsChanged.set(true);
+            }
+        });
+    }
+
     /**
      * constructs a composite route
      *
@@ -87,10 +110,13 @@ public class CompRoute extends PanelElement {
     }
 
     public void clear() {
+        Flight.RouteEvent ev = Flight.routeBegin();
         for (Route rt : myroutes) {
             rt.clear();
         }
         setState(RT_INACTIVE);
+        Metrics.COMPROUTE_CLEAR.inc();
+        Flight.routeEnd(ev, getAdr(), true, "clear", automaticFlag, INVALID_INT, true);
     }
 
     @Override
@@ -122,6 +148,19 @@ public class CompRoute extends PanelElement {
     }
     
     public boolean set(boolean automatic, int tripTrainNumber) {
+        Flight.RouteEvent ev = Flight.routeBegin();
+        boolean res = setCompRoute(automatic, tripTrainNumber);
+        if (res) {
+            sensorsChanged.set(true);  // end sensor might be occupied already
+            Metrics.COMPROUTE_SET.inc();
+        } else {
+            Metrics.COMPROUTE_SET_FAILED.inc();
+        }
+        Flight.routeEnd(ev, getAdr(), true, "set", automatic, tripTrainNumber, res);
+        return res;
+    }
+
+    private boolean setCompRoute(boolean automatic, int tripTrainNumber) {
 
         automaticFlag = automatic;
         clearRouteTime = Long.MAX_VALUE;   // set only if route could be set successfully
@@ -217,11 +256,12 @@ public class CompRoute extends PanelElement {
         // check for auto reset of allCompRoutes
         // this function is only needed for the lanbahn-value display, because the individual single routes,
         // which are set by a compound route, are autocleared by the "Route.auto()" function
+        boolean checkEndSensors = sensorsChanged.getAndSet(false);
         for (CompRoute comp : allCompRoutes) {
             if (comp.getState() == RT_ACTIVE) {
                 //debug("comp auto id=" + comp.getAdr());
 
-                if (comp.automaticFlag) {
+                if (comp.automaticFlag && checkEndSensors) {
                     // check for route end sensor - if it gets occupied (train reached end of route), rt will be cleared
                     if ((comp.endSensor != null) && (comp.endSensor.getState() == STATE_OCCUPIED)) {
                         debug("end sensor " + comp.endSensor.getAdr() + " occupied => comp,route#" + comp.getAdr() + " cleared");
@@ -17,11 +17,18 @@ along with this program. If not, see <http://www.gnu.org/licenses/>.
  */
 package de.blankedv.sx4.timetable;
 
+import static com.esotericsoftware.minlog.Log.DEBUG;
 import static com.esotericsoftware.minlog.Log.debug;
 import static de.blankedv.sx4.Constants.*;
+import de.blankedv.sx4.ChangeBus;
+import de.blankedv.sx4.History;
+import de.blankedv.sx4.LayoutState;
+import de.blankedv.sx4.SXData;
 import de.blankedv.sx4.SXUtils;
 import static de.blankedv.sx4.timetable.Vars.panelElements;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
 
 /**
  * all active panel elements, like turnouts, signals, trackindicators (=sensors)
@@ -46,7 +53,8 @@ public class PanelElement implements Comparator<PanelElement>, Comparable<PanelE
     private String typeString = "AC";
     // with 2 addresses (adr1=occ/free, 2=in-route)
     protected String rIntegeoute = "";
-    private int train = INVALID_INT;   // train number, if train is occupying this panel element
+    private volatile int train = INVALID_INT;   // train number, if train is occupying this panel element
+    private volatile int sensorSlot = INVALID_INT;  // index of train number in LayoutState
 
     // these constants are defined just for easier understanding of the
     // methods of the classes derived from this class
@@ -132,6 +140,56 @@ public class PanelElement implements Comparator<PanelElement>, Comparable<PanelE
         return state;
     }
 
+    /**
+     * state of this element in the layout snapshot s - for SX elements it
+     * is taken from the SX channel data of the snapshot, for pure lanbahn
+     * elements from the lanbahn data of the snapshot, all other elements
+     * return their current state
+     */
+    public int getState(LayoutState s) {
+        int sxadr = getSXChannel();
+        if (sxadr != INVALID_INT) {
+            int st = stateFromSXData(s.get(sxadr));
+            if (st != INVALID_INT) {
+                return st;
+            }
+        } else if (isLanbahnAddress()) {
+            int st = s.getLanbahn(adr);
+            if (st != INVALID_INT) {
+                return st;
+            }
+        }
+        return state;
+    }
+
+    public int getTrain(LayoutState s) {
+        return s.getTrain(this);
+    }
+
+    public int getSensorSlot() {
+        return sensorSlot;
+    }
+
+    // state encoded in the data d of the SX channel of this element (or
+    // INVALID_INT if it cannot be decoded)
+    private int stateFromSXData(int d) {
+        int bit = adr % 10;
+        switch (nbit) {
+            case 1:
+                // a single bit
+                return (d >> (bit - 1)) & (0x01);
+            case 2:
+                // two state bits, adr = low bit, adr + 1 = high bit (like
+                // getSXBits)
+                if (bit <= 7) {
+                    return (d >> (bit - 1)) & (0x03);
+                }
+                break;
+            // TODO for nbit>2
+        }
+        return INVALID_INT;
+    }
+
     public int setState(int val) {
         state = val;
         return state;
@@ -157,7 +215,14 @@ public class PanelElement implements Comparator<PanelElement>, Comparable<PanelE
 
     public void setTrain(int train) {
         //info("settrain ="+train);
-        this.train = train;
+        if (this.train != train) {
+            this.train = train;
+            if (isSensor()) {
+                LayoutState.trainChanged(this);
+                History.record(History.TRAIN, adr, train);
+                ChangeBus.fireTrainChanged(adr, train);
+            }
+        }
     }
 
     public void setAdr(int adr) {
@@ -224,33 +289,46 @@ public class PanelElement implements Comparator<PanelElement>, Comparable<PanelE
 
     // TODO move sx address calculations to constructor
     public void updateSXData() {
+        int sxadr = getSXChannel();
+        if (sxadr == INVALID_INT) {
+            return;  // no SX Element, must be virtual
+        }
+        if (DEBUG) {
+            debug("adr=" + adr + " st=" + state + " nbit=" + nbit);
+        }
+        // only the bits of this element are changed (atomically)
+        SXData.updateBits(sxadr, getSXMask(), getSXBits(), true); // true => write to SXInterface
+    }
+
+    /**
+     * @return the SX channel of this element or INVALID_INT if it is not an
+     * SX element
+     */
+    public int getSXChannel() {
         if (adr == INVALID_INT) {
-            return;
+            return INVALID_INT;
         }
-        debug("adr=" + adr + " st=" + state);
+        return SXUtils.lbAddr2SXChannel(adr);  // SX0 or SX1
+    }
 
-        int sxadr = adr / 10;
+    /**
+     * @return the bits of its SX channel used by this element (2 bits for a 4
+     * aspect signal, else 1 bit)
+     */
+    public int getSXMask() {
         int sxbit = adr % 10;
-        if (!SXUtils.isValidSXAddress(sxadr) || !SXUtils.isValidSXBit(sxbit)) {
-            return;  // no SX Element, must be virtual
-        }
+        return ((nbit == 2) ? 3 : 1) << (sxbit - 1);
+    }
 
-        // set high bit (if there is any)
-        int secSxadr = secondaryAdr / 10;   // NOT USED CURRENTLY FOR SX ADDRESSES
-        int secSxbit = secondaryAdr % 10;   // NOT USED CURRENTLY FOR SX ADDRESSES
+    /**
+     * @return the SX channel bits representing the current state
+     */
+    public int getSXBits() {
+        int sxbit = adr % 10;
         if (nbit == 2) {
-            // must be 4 aspect signal       
-            debug("secAdr=" + secondaryAdr + " st=" + state);
-            SXUtils.update2BitSxData(sxadr, sxbit, state, true); // true => write to SXInterface         
+            return (state & 0x03) << (sxbit - 1);
         } else {
-            debug("single bit");
-            // single bit address
-            // use only low bit         
-            if (state == 0) {
-                SXUtils.clearBitSxData(sxadr, sxbit, true);  // true => write to SXInterface
-            } else {
-                SXUtils.setBitSxData(sxadr, sxbit, true);  // true => write to SXInterface
-            }
+            return (state == 0) ? 0 : (1 << (sxbit - 1));  // use only low bit
         }
     }
 
@@ -262,86 +340,142 @@ public class PanelElement implements Comparator<PanelElement>, Comparable<PanelE
          }
      } */
     public boolean isLanbahnAddress() {
-        return (adr >= LBPURE);
+        return ((adr >= LBPURE) && (adr <= LBMAX));
     }
 
     public boolean isSecondaryLanbahnAddress() {
-        return (secondaryAdr >= LBPURE);
+        return ((secondaryAdr >= LBPURE) && (secondaryAdr <= LBMAX));
     }
 
     // STATIC METHODS ---------------------------------------------------------------------------
-    public static int getSecondaryAddressByAddress(int address) {
-        for (PanelElement pe : panelElements) {
-            if (pe.getAdr() == address) {
-                return pe.secondaryAdr;
+    /**
+     * address index of all panel elements, is built from the panelElements
+     * list with rebuildIndex() (after reading the config) and then replaced
+     * atomically - lookups never walk the list
+     */
+    private static class AddressIndex {
+
+        // first panel element for each SX channel/bit, index = channel*8 + (bit-1)
+        final PanelElement[] sxBits = new PanelElement[SXCHANNELS * 8];
+        // first panel element and first sensor for each (lanbahn) address
+        // 0..LBMAX_SX1 (including the SX1 addresses)
+        final PanelElement[] byAddress = new PanelElement[LBMAX_SX1 + 1];
+        final PanelElement[] sensors = new PanelElement[LBMAX_SX1 + 1];
+
+        AddressIndex(List<PanelElement> pes) {
+            for (PanelElement pe : pes) {
+                int a = pe.getAdr();
+                if ((a < 0) || (a > LBMAX_SX1)) {
+                    continue;
+                }
+                if (byAddress[a] == null) {
+                    byAddress[a] = pe;
+                }
+                if (pe.isSensor() && (sensors[a] == null)) {
+                    sensors[a] = pe;
+                }
+                int i = sxBitIndex(a);
+                if ((i != INVALID_INT) && (sxBits[i] == null)) {
+                    sxBits[i] = pe;
+                }
             }
         }
+    }
+
+    private static volatile AddressIndex index = new AddressIndex(new ArrayList<>());
+
+    /**
+     * rebuild the address index from the (complete) panelElements list, must
+     * be called after the panelElements have been changed
+     */
+    public static void rebuildIndex() {
+        List<PanelElement> pes = new ArrayList<>(panelElements);
+        index = new AddressIndex(pes);
+        // every sensor gets a slot for its train number in LayoutState
+        List<PanelElement> sensors = new ArrayList<>();
+        for (PanelElement pe : pes) {
+            if (pe.isSensor()) {
+                pe.sensorSlot = sensors.size();
+                sensors.add(pe);
+            }
+        }
+        LayoutState.setSensors(sensors.toArray(new PanelElement[0]));
+    }
+
+    // index into AddressIndex.sxBits for a lanbahn address (or INVALID_INT if
+    // the address has no SX mapping)
+    private static int sxBitIndex(int address) {
+        int ch = SXUtils.lbAddr2SXChannel(address);
+        if (ch == INVALID_INT) {
+            return INVALID_INT;
+        }
+        return ch * 8 + (address % 10 - 1);
+    }
+
+    public static PanelElement getSensorByAddress(int address) {
+        if ((address < 0) || (address > LBMAX_SX1)) {
+            return null;
+        }
+        return index.sensors[address];
+    }
+
+    public static int getSecondaryAddressByAddress(int address) {
+        PanelElement pe = getByAddress(address);
+        if (pe != null) {
+            return pe.secondaryAdr;
+        }
         return INVALID_INT;
     }
 
     public static PanelElement getByAddress(int address) {
-        for (PanelElement pe : panelElements) {
-            if (pe.getAdr() == address) {
-                return pe;
-            }
+        if ((address < 0) || (address > LBMAX_SX1)) {
+            return null;
         }
-        return null;
+        return index.byAddress[address];
     }
 
-    // set "train" for all panel elements with a given address
+    // set "train" for the sensor with a given address
     public static boolean setTrain(int address, int trainNumber) {
         //info("PE.setTrain("+address+","+trainNumber);
-        boolean result = false;
-        for (PanelElement pe : panelElements) {
-            if (pe.isSensor() && (pe.getAdr() == address)) {
-                pe.setTrain(trainNumber);
-                // info("PE found");
-                result = true;
-            }
+        PanelElement pe = getSensorByAddress(address);
+        if (pe != null) {
+            pe.setTrain(trainNumber);
+            return true;
         }
-        return result;
+        return false;
     }
 
     // get "train" for panel element with a given address
     public static int getTrain(int address) {
-        for (PanelElement pe : panelElements) {
-            if (pe.isSensor() && (pe.getAdr() == address)) {
-                return pe.getTrain();
-            }
+        PanelElement pe = getSensorByAddress(address);
+        if (pe != null) {
+            return pe.getTrain();
         }
         return INVALID_INT;  // sensor not found
     }
     
      // occupation for SENSOR panel element with a given address
     public static boolean isSensorOccupied(int address) {
-        for (PanelElement pe : panelElements) {
-            if (pe.isSensor() && (pe.getAdr() == address)) {
-                return (pe.getState() == STATE_OCCUPIED);
-            }
-        } 
+        PanelElement pe = getSensorByAddress(address);
+        if (pe != null) {
+            return (pe.getState() == STATE_OCCUPIED);
+        }
         return false;  // sensor not found
     }
 
     public static void updateFromSXData(int sxAddr, int d) {
         // check for all of the 8 SX-bits if we have a matching panel element
         // which needs to be updated
-
+        if (!SXUtils.isValidSXChannel(sxAddr)) {
+            return;
+        }
+        PanelElement[] sxBits = index.sxBits;
         for (int bit = 1; bit <= 8; bit++) {
-            int addr = sxAddr * 10 + bit;
-            PanelElement pe = PanelElement.getByAddress(addr);
+            PanelElement pe = sxBits[sxAddr * 8 + (bit - 1)];
             if (pe != null) {
-                switch (pe.nbit) {
-                    case 1:
-                        // set a single bit
-                        pe.setState((d >> (bit - 1)) & (0x01));
-                        break;
-                    case 2:
-                        // set two state bits
-                        if (bit >= 2) {
-                            pe.setState((d >> (bit - 2)) & (0x03));
-                        }
-                        break;
-                    // TODO for nbit>2
+                int st = pe.stateFromSXData(d);
+                if (st != INVALID_INT) {
+                    pe.setState(st);
                 }
             }
         }
@@ -380,11 +514,9 @@ public class PanelElement implements Comparator<PanelElement>, Comparable<PanelE
     }
     
     public static int getTrainFromSensor(int addr) {
-        int tr = 0;
-        for (PanelElement pe : panelElements) {
-            if ((pe.getAdr() == addr) && (pe.isSensor())) {
-                return pe.getTrain();
-            }
+        PanelElement pe = getSensorByAddress(addr);
+        if (pe != null) {
+            return pe.getTrain();
         }
         return 0;
     }
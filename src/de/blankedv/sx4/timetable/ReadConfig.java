@@ -26,6 +26,7 @@ import static de.blankedv.sx4.timetable.Vars.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -44,6 +45,9 @@ import org.w3c.dom.NodeList;
  */
 public class ReadConfig {
 
+    // addresses of the panel elements read so far (to avoid duplicates)
+    private static final HashSet<Integer> peAddresses = new HashSet<>();
+
     public static String readPanelName(String fname) {
         DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
         DocumentBuilder builder;
@@ -88,10 +92,12 @@ public class ReadConfig {
             doc = builder.parse(new File(fname));
             parseLocos(doc);
             parsePanelElements(doc);
+            PanelElement.rebuildIndex();  // routes look up their elements by address
             parseRoutes(doc); // can be done only after all turnouts, signals etc have been read
             // elements have been read
             Route.calcOffendingRoutes(); // calculate offending routes
             parseCompRoutes(doc); // can be done only after all routes have been read
+            PanelElement.rebuildIndex();
 
         } catch (SAXException e) {
             error("SAX Exception - " + e.getMessage());
@@ -139,6 +145,7 @@ public class ReadConfig {
     private static void parsePanelElements(Document doc) {
 
         panelElements.clear();
+        peAddresses.clear();
 
         NodeList items;
         Element root = doc.getDocumentElement();
@@ -237,9 +244,10 @@ public class ReadConfig {
             // calculate lbaddress from sxaddr, sxbit, nbit
             if ((SXUtils.isValidSXAddress(sx.sxAddr) && SXUtils.isValidSXBit(sx.sxBit))) {
                 ArrayList<Integer> iArr = new ArrayList<>();
-                iArr.add(sx.sxAddr * 10 + sx.sxBit);
+                int lbAddr = SXUtils.sxChannel2LbAddr(SXUtils.sxChannel(sx.bus, sx.sxAddr), sx.sxBit);
+                iArr.add(lbAddr);
                 if (sx.nBit == 2) {
-                    iArr.add(sx.sxAddr * 10 + sx.sxBit + 1);
+                    iArr.add(lbAddr + 1);
                 }
                 return iArr;
             }
@@ -272,6 +280,9 @@ public class ReadConfig {
             // if (CFG_DEBUG_PARSING) Log.d(TAG,theAttribute.getNodeName() + "=" +
             // theAttribute.getNodeValue());
             switch (theAttribute.getNodeName()) {
+                case "sxbus":
+                    sxmap.bus = (getPositionNode(theAttribute) == 1) ? 1 : 0;
+                    break;
                 case "sxadr":
                     sxmap.sxAddr = getPositionNode(theAttribute);
                     break;
@@ -455,7 +466,7 @@ public class ReadConfig {
         if (addressArr != null) {
             // do not add panel elements with duplicate addresses
             int lba = addressArr.get(0);
-            if (PanelElement.getByAddress(lba) == null) {
+            if (peAddresses.add(lba)) {
                 switch (addressArr.size()) {
                     case 1:
                         panelElements.add(new PanelElement(type, lba));
@@ -19,13 +19,18 @@ package de.blankedv.sx4.timetable;
 
 import static com.esotericsoftware.minlog.Log.*;
 import static de.blankedv.sx4.Constants.*;
+import de.blankedv.sx4.ChangeBus;
+import de.blankedv.sx4.Flight;
+import de.blankedv.sx4.History;
 import de.blankedv.sx4.LanbahnData;
+import de.blankedv.sx4.LayoutState;
+import de.blankedv.sx4.Metrics;
 import de.blankedv.sx4.SXData;
-import de.blankedv.sx4.SXUtils;
 import static de.blankedv.sx4.timetable.Vars.*;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Class Route stores a complete route, which contains sensors, signals and
@@ -63,6 +68,24 @@ public class Route extends PanelElement {
     private long clearRouteTime = Long.MAX_VALUE;  // i.e. => never, if not set
     private boolean automaticFlag = false;
 
+    // set via ChangeBus (which is fired after the PanelElements are updated),
+    // the end sensors are only checked after a change
+    private static final AtomicBoolean sensorsChanged = new AtomicBoolean(true);
+
+    static {
+        ChangeBus.subscribe(new ChangeBus.Listener() {
+            @Override
+            public void sxChanged(int addr, int data) {
+                sensorsChanged.set(true);
+            }
+
+            @Override
+            public void lanbahnChanged(int addr, int data) {
+                sensorsChanged.set(true);
+            }
+        });
+    }
+
     /**
      * constructs a route
      *
@@ -112,14 +135,11 @@ public class Route extends PanelElement {
         String[] sensorAddresses = allSensors.split(",");
         for (String sensorAddress : sensorAddresses) {
             // add the matching elements turnout sensors list
-            for (PanelElement pe : panelElements) {
-                if (pe.isSensor()) {
-                    if (pe.getAdr() == Integer.parseInt(sensorAddress)) {
-                        rtSensors.add(pe);
-                        if (CFG_DEBUG) {
-                            debug("RT, add sensor " + pe.getAdr());
-                        }
-                    }
+            PanelElement pe = PanelElement.getSensorByAddress(Integer.parseInt(sensorAddress));
+            if (pe != null) {
+                rtSensors.add(pe);
+                if (CFG_DEBUG) {
+                    debug("RT, add sensor " + pe.getAdr());
                 }
             }
         }
@@ -144,7 +164,40 @@ public class Route extends PanelElement {
         //		Log.d(TAG, rtOffending.size() + " offending allRoutes in config");
     }
 
+    /**
+     * merge the sx bits of the element pe into the map sxaddr =&gt; {mask, value}
+     */
+    private static void addSXBits(Map<Integer, int[]> sxBits, PanelElement pe) {
+        int sxadr = pe.getSXChannel();
+        if (sxadr == INVALID_INT) {
+            return;  // virtual element
+        }
+        int[] mv = sxBits.computeIfAbsent(sxadr, k -> new int[2]);
+        int mask = pe.getSXMask();
+        mv[0] |= mask;
+        mv[1] = (mv[1] & ~mask) | pe.getSXBits();
+    }
+
+    private static void writeSXBits(Map<Integer, int[]> sxBits) {
+        for (Map.Entry<Integer, int[]> e : sxBits.entrySet()) {
+            int[] mv = e.getValue();
+            SXData.updateBits(e.getKey(), mv[0], mv[1], true);  // true => write to Interface
+        }
+    }
+
     public void clear() {
+        Flight.RouteEvent ev = Flight.routeBegin();
+        int src = History.enter(History.route(getAdr()));  // all changes done by this route
+        try {
+            clearRoute();
+        } finally {
+            History.exit(src);
+        }
+        Metrics.ROUTE_CLEAR.inc();
+        Flight.routeEnd(ev, getAdr(), false, "clear", automaticFlag, INVALID_INT, true);
+    }
+
+    private void clearRoute() {
         clearRouteTime = Long.MAX_VALUE;
         // i.e. => never, if not set automatically
         debug("clearing route id=" + this.getAdr());
@@ -160,13 +213,13 @@ public class Route extends PanelElement {
             LanbahnData.update(se.getSecondaryAdr(), 0);
         }
 
-        Set<Integer> sxAddressesToUpdate = new HashSet<>();
+        Map<Integer, int[]> sxBitsToUpdate = new HashMap<>();
         // set signals turnout red
         for (RouteSignal rs : rtSignals) {
-            rs.signal.setStateAndUpdateSXData(STATE_RED);
+            rs.signal.setState(STATE_RED);
             rs.signal.setLocked(false);
             debug("unlocking signal=" + rs.signal.getAdr());
-            sxAddressesToUpdate.add(rs.signal.getAdr() / 10);
+            addSXBits(sxBitsToUpdate, rs.signal);
         }
 
         // unlock turnouts
@@ -175,11 +228,7 @@ public class Route extends PanelElement {
             debug("unlocking turnout=" + rtt.turnout.getAdr());
         }
 
-        for (int sxaddr : sxAddressesToUpdate) {
-            if (SXUtils.isValidSXAddress(sxaddr)) {
-                SXData.update(sxaddr, SXData.get(sxaddr), true);  // true => write to Interface
-            }
-        }
+        writeSXBits(sxBitsToUpdate);
         // TODO unlock turnouts
         /*
 		 * for (RouteTurnout to : rtTurnouts) { 
@@ -257,12 +306,33 @@ public class Route extends PanelElement {
      * @return
      */
     public boolean set(boolean automatic, int trainNumber) {
+        Flight.RouteEvent ev = Flight.routeBegin();
+        int src = History.enter(History.route(getAdr()));
+        try {
+            boolean res = setRoute(automatic, trainNumber);
+            if (res) {
+                sensorsChanged.set(true);  // end sensor might be occupied already
+                Metrics.ROUTE_SET.inc();
+            } else {
+                Metrics.ROUTE_SET_FAILED.inc();
+            }
+            Flight.routeEnd(ev, getAdr(), false, "set", automatic, trainNumber, res);
+            return res;
+        } finally {
+            History.exit(src);
+        }
+    }
+
+    private boolean setRoute(boolean automatic, int trainNumber) {
         automaticFlag = automatic;
         clearRouteTime = Long.MAX_VALUE;   // set only if route could be set successfully
 
+        // all sensor checks are done on the same (consistent) layout state
+        LayoutState s = SXData.snapshot();
+
         // if not given from compound route, get from occupation of first sensor
         if (trainNumber == 0) {
-            trainNumber = getStartTrainNumber();
+            trainNumber = rtSensors.get(0).getTrain(s);
         }
 
         if (automatic) {
@@ -278,7 +348,7 @@ public class Route extends PanelElement {
                 return false;
             }
 
-            if (!isFreeExceptStart()) {
+            if (!isFreeExceptStart(s)) {
                 error("cannot set route id=" + getAdr() + " because there is a train on route!");
                 return false;
             }
@@ -300,7 +370,7 @@ public class Route extends PanelElement {
         // in secondary address of the sensor
         for (PanelElement se : rtSensors) {
             se.setInRoute(true);
-            if (se.getState() == STATE_FREE) {
+            if (se.getState(s) == STATE_FREE) {
                 // do not override if not free !              
                 se.setTrain(trainNumber);
             }
@@ -308,29 +378,26 @@ public class Route extends PanelElement {
             // only virtual, no matching real SX address
         }
 
-        // add sxadr values to a set, then update all these via RS232 only once
-        Set<Integer> sxAddressesToUpdate = new HashSet<>();
+        // collect the sx bits per channel, then update every channel 
+        // atomically and send it via RS232 only once
+        Map<Integer, int[]> sxBitsToUpdate = new HashMap<>();
         // set signals
         for (RouteSignal rs : rtSignals) {
             int d = rs.dynamicValueToSetForRoute();
-            rs.signal.setStateAndUpdateSXData(d);
+            rs.signal.setState(d);
             rs.signal.setLocked(true);
-            sxAddressesToUpdate.add(rs.signal.getAdr() / 10);
+            addSXBits(sxBitsToUpdate, rs.signal);
         }
         // set and lock turnouts
         for (RouteTurnout rtt : rtTurnouts) {
             int d = rtt.valueToSetForRoute;   // can be only 1 or 0
-            rtt.turnout.setStateAndUpdateSXData(d);
+            rtt.turnout.setState(d);
             rtt.turnout.setLocked(true);
             // debug("RT, set turn= " + rtt.turnout.getAdr() + " state=" + d);
-            sxAddressesToUpdate.add(rtt.turnout.getAdr() / 10);
+            addSXBits(sxBitsToUpdate, rtt.turnout);
 
         }
-        for (int sxaddr : sxAddressesToUpdate) {
-            if (SXUtils.isValidSXAddress(sxaddr)) {
-                SXData.update(sxaddr, SXData.get(sxaddr), true);  // true => write to Interface
-            }
-        }
+        writeSXBits(sxBitsToUpdate);
 
         if (!automaticFlag) {
             // only autoclear when route manual set
@@ -386,9 +453,13 @@ public class Route extends PanelElement {
     }
 
     public boolean isFreeExceptStart() {
+        return isFreeExceptStart(SXData.snapshot());
+    }
+
+    public boolean isFreeExceptStart(LayoutState s) {
         // check if route is FREE (except for startSensor)
         for (int i = 1; i < rtSensors.size(); i++) {
-            if (rtSensors.get(i).getState() != STATE_FREE) {
+            if (rtSensors.get(i).getState(s) != STATE_FREE) {
                 debug("route id=" + getAdr() + " is not free");
                 return false;
             }
@@ -399,8 +470,9 @@ public class Route extends PanelElement {
 
     public boolean isFree() {
         //check if route is FREE
+        LayoutState s = SXData.snapshot();
         for (int i = 0; i < rtSensors.size(); i++) {
-            if (rtSensors.get(i).getState() != STATE_FREE) {
+            if (rtSensors.get(i).getState(s) != STATE_FREE) {
                 debug("route id=" + getAdr() + " is not free");
                 return false;
             }
@@ -478,10 +550,11 @@ public class Route extends PanelElement {
     public static void auto() {
 
         // debug("checking route auto clear");
+        boolean checkEndSensors = sensorsChanged.getAndSet(false);
         for (Route rt : allRoutes) {
             if (rt.getState() == RT_ACTIVE) {  // check only active routes
 
-                if (rt.automaticFlag) {  // only for automatic driven traines
+                if (rt.automaticFlag && checkEndSensors) {  // only for automatic driven traines
                     // check for route end sensor - if it gets occupied (train reached end of route), rt will be cleared immediately
                     if ((rt.endSensor != null) && (rt.endSensor.getState() == STATE_OCCUPIED)) {
                         debug("end sensor" + rt.endSensor.getAdr() + " occupied =>  route#" + rt.getAdr() + " cleared");
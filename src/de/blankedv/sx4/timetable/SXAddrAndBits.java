@@ -25,6 +25,7 @@ import static de.blankedv.sx4.Constants.INVALID_INT;
  * @author mblank
  */
 public class SXAddrAndBits {
+    public int bus = 0;   // 0 = SX0, 1 = SX1
     public int sxAddr = INVALID_INT;
     public int sxBit = INVALID_INT;
     public int nBit = 1;
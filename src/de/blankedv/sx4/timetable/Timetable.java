@@ -23,6 +23,8 @@ import static de.blankedv.sx4.Constants.*;
 import static de.blankedv.sx4.Constants.TT_State.*;
 import static de.blankedv.sx4.timetable.PanelElement.STATE_FREE;
 import static de.blankedv.sx4.timetable.PanelElement.STATE_OCCUPIED;
+import de.blankedv.sx4.LayoutState;
+import de.blankedv.sx4.SXData;
 import de.blankedv.sx4.timetable.Trip.TripState;
 import java.util.ArrayList;
 import javafx.animation.KeyFrame;
@@ -90,12 +92,14 @@ public class Timetable {
         // iterate over tripsList
 
         ArrayList<Integer> ttLocos = new ArrayList<>();
+        LayoutState s = SXData.snapshot();
 
         for (Trip tr : tripsList) {
             int loco = tr.getLocoAddr();
             if (!ttLocos.contains(loco)) {
                 // so far we did not check this train/loco
-                if (PanelElement.isSensorOccupied(tr.sens1) && (PanelElement.getTrain(tr.sens1) == loco)) {
+                PanelElement se = PanelElement.getSensorByAddress(tr.sens1);
+                if ((se != null) && (se.getState(s) == STATE_OCCUPIED) && (se.getTrain(s) == loco)) {
                     // position o.k.
                     ttLocos.add(loco);
                 } else {
@@ -177,8 +181,9 @@ public class Timetable {
         debug("try starting new trip with adr=" + t.adr + " from sens1=" + t.sens1 + " to sens2=" + t.sens2);
 
         // set route(s)
-        int start = PanelElement.getByAddress(t.sens1).getState();
-        int end = PanelElement.getByAddress(t.sens2).getState();
+        LayoutState s = SXData.snapshot();
+        int start = PanelElement.getByAddress(t.sens1).getState(s);
+        int end = PanelElement.getByAddress(t.sens2).getState(s);
 
         if ((start == STATE_OCCUPIED) && (end == STATE_FREE)) {
             debug("start sensor (" + t.sens1 + ") occupied and end sensor(" + t.sens2 + ") free, we can start the trip");
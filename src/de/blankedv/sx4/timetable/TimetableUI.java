@@ -20,6 +20,7 @@ package de.blankedv.sx4.timetable;
 import static com.esotericsoftware.minlog.Log.debug;
 import static de.blankedv.sx4.Constants.INVALID_INT;
 import static de.blankedv.sx4.Constants.SXMAX_USED;
+import de.blankedv.sx4.ChangeBus;
 import de.blankedv.sx4.SXData;
 import static de.blankedv.sx4.timetable.Vars.MAX_START_STOP_DELAY;
 import static de.blankedv.sx4.timetable.VarsFX.allTrips;
@@ -32,6 +33,7 @@ import javafx.scene.layout.BorderPane;
 import javafx.stage.Stage;
 import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
+import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -84,6 +86,13 @@ public class TimetableUI {
     private final Image imgHelp = new Image("/de/blankedv/sx4/res/help2.png");
     private final Image imgRefresh = new Image("/de/blankedv/sx4/res/refresh.png");
     private final ImageView ivPowerState = new ImageView();
+
+    private final ChangeBus.Listener powerListener = new ChangeBus.Listener() {
+        @Override
+        public void powerChanged(boolean on) {
+            Platform.runLater(() -> updatePowerIcon(on));
+        }
+    };
     private final ImageView ivStart = new ImageView(imgStart);
     private final ImageView ivStop = new ImageView(imgStop);
     private final ImageView ivHelp = new ImageView(imgHelp);
@@ -174,15 +183,12 @@ public class TimetableUI {
             System.out.println("TimetableUI closing");
         });
 
+        // update power control icon when the power state changes
+        updatePowerIcon(SXData.getActualPower());
+        ChangeBus.subscribe(powerListener);
+
         // timeline for updating display
         final Timeline second = new Timeline(new KeyFrame(Duration.seconds(1), (ActionEvent event) -> {
-            // update power control icon
-            if (SXData.getActualPower() == true) {
-                ivPowerState.setImage(green);
-            } else {
-                ivPowerState.setImage(red);
-            }
-
             if (ttSelected.isActive() == true) {
                 status.setText(ttSelected.toString());
                 status.setStyle("-fx-background-color: yellow;");
@@ -213,6 +219,7 @@ public class TimetableUI {
             }
             ttSelected.stop();
             unlockTrips();
+            ChangeBus.unsubscribe(powerListener);
         });
 
     }
@@ -472,6 +479,14 @@ public class TimetableUI {
 
     }
 
+    private void updatePowerIcon(boolean on) {
+        if (on) {
+            ivPowerState.setImage(green);
+        } else {
+            ivPowerState.setImage(red);
+        }
+    }
+
     private boolean globalPowerCheck() {
         if (SXData.getActualPower() == true) {
             return true;
@@ -21,6 +21,10 @@ import static com.esotericsoftware.minlog.Log.debug;
 import static com.esotericsoftware.minlog.Log.error;
 import static com.esotericsoftware.minlog.Log.info;
 import static de.blankedv.sx4.Constants.*;
+import de.blankedv.sx4.Flight;
+import de.blankedv.sx4.History;
+import de.blankedv.sx4.LayoutState;
+import de.blankedv.sx4.Metrics;
 import de.blankedv.sx4.SXData;
 import static de.blankedv.sx4.timetable.PanelElement.STATE_FREE;
 import static de.blankedv.sx4.timetable.PanelElement.STATE_OCCUPIED;
@@ -61,6 +65,7 @@ public class Trip implements Comparable<Trip> {
     Loco loco = null;
     final ArrayList<Timeline> myTimelines = new ArrayList<>();   // need references to all running timelines to be able to stop them
     int currSpeedPercent = 0;
+    long startedAt = 0;  // System.nanoTime() when the trip became active, for the metrics
 
     String message = "";
 
@@ -208,24 +213,28 @@ public class Trip implements Comparable<Trip> {
     }
 
     public boolean start() {
-        if (SXData.getActualPower() == false) {
+        LayoutState s = SXData.snapshot();  // check everything at the same point in time
+        if (s.getPower() == false) {
             message = "ERROR: keine Gleisspannung, kann Fahrt nicht starten!";
             error(message);
+            Metrics.TRIP_START_FAILED.inc();
             return false;
         }
         PanelElement startSensor = PanelElement.getByAddress(sens1);
 
-        if (startSensor.getState() == STATE_FREE) {
+        if (startSensor.getState(s) == STATE_FREE) {
 
             message = "cannot start trip id=" + adr + " because no train on start-sensor " + sens1;
             error(message);
+            Metrics.TRIP_START_FAILED.inc();
             return false;
         }
 
-        int trainNumber = startSensor.getTrain();
+        int trainNumber = startSensor.getTrain(s);
         if (trainNumber != locoAddr) {
             message = "cannot start trip id=" + adr + " because WRONG train=" + trainNumber + " on start-sensor " + sens1;
             error(message);
+            Metrics.TRIP_START_FAILED.inc();
             return false;
         }
 
@@ -233,7 +242,8 @@ public class Trip implements Comparable<Trip> {
         if (!couldSetRoutes) {
             message = "waiting for loco start for trip id=" + adr + " - cannot set (comp)route id=" + route;
             error(message);
-            state = TripState.WAITING_FOR_ROUTE;
+            setState(TripState.WAITING_FOR_ROUTE);
+            Metrics.TRIP_WAITING.inc();
             return true;
         }
 
@@ -241,7 +251,8 @@ public class Trip implements Comparable<Trip> {
         prepareStartLoco();
         message = "starting trip id=" + adr;
         debug(message);
-        state = TripState.ACTIVE;
+        setState(TripState.ACTIVE);
+        started();
         return true;
     }
     
@@ -257,7 +268,20 @@ public class Trip implements Comparable<Trip> {
         prepareStartLoco();
         message = "finally starting trip id=" + adr;
         debug(message);
-        state = TripState.ACTIVE;
+        setState(TripState.ACTIVE);
+        started();
+    }
+
+    private void setState(TripState st) {
+        if (st != state) {
+            Flight.trip(adr, locoAddr, route, state.name(), st.name(), message);
+        }
+        state = st;
+    }
+
+    private void started() {
+        startedAt = System.nanoTime();
+        Metrics.TRIP_STARTED.inc();
     }
 
     public void finish() {
@@ -266,7 +290,12 @@ public class Trip implements Comparable<Trip> {
         stopLoco();
         clearRoutes();
         stopAllTimelines();
-        state = TripState.INACTIVE;
+        setState(TripState.INACTIVE);
+        if (startedAt != 0) {
+            Metrics.TRIP_DURATION.since(startedAt);
+            Metrics.TRIP_FINISHED.inc();
+            startedAt = 0;
+        }
 
     }
 
@@ -285,7 +314,7 @@ public class Trip implements Comparable<Trip> {
         loco.setForward(locoDir == 0);
         loco.setLicht(true);
 
-        SXData.update(loco.getAddr(), loco.getSX(), true); // true => send to SXinterface
+        sendLoco();
     }
 
     private void startLoco() {
@@ -294,7 +323,7 @@ public class Trip implements Comparable<Trip> {
         loco.setForward(locoDir == 0);
         loco.setLicht(true);
         currSpeedPercent = 0;
-        SXData.update(loco.getAddr(), loco.getSX(), true); // true => send to SXinterface
+        sendLoco();
         Timeline timeline = new Timeline(new KeyFrame(
                 Duration.millis(1000),
                 ae -> incrLocoSpeed()
@@ -325,7 +354,16 @@ public class Trip implements Comparable<Trip> {
         loco.setSpeed(0);
         loco.setForward(locoDir == 0);
         //sxi.sendLoco(loco.getLok_adr(), loco.getSpeed(), true, loco.isForward(),  false);  // light = true, horn = false
-        SXData.update(loco.getAddr(), loco.getSX(), true); // true => send to SXinterface
+        sendLoco();
+    }
+
+    private void sendLoco() {
+        int src = History.enter(History.trip(adr));
+        try {
+            SXData.update(loco.getAddr(), loco.getSX(), true); // true => send to SXinterface
+        } finally {
+            History.exit(src);
+        }
     }
 
     private void finishTripDelayed() {
@@ -415,7 +453,7 @@ public class Trip implements Comparable<Trip> {
             if (tr.state == TripState.ACTIVE) {
                 boolean endSensorReached = tr.checkEndSensor();
                 if (endSensorReached) {
-                    tr.state = TripState.WAITING;  // avaid triggering finish a second time
+                    tr.setState(TripState.WAITING);  // avaid triggering finish a second time
                     tr.finishTripDelayed();  // incl. finish loco
                 }
             } else if (tr.state == TripState.WAITING_FOR_ROUTE) {